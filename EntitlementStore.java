@@ -0,0 +1,322 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * offline entitlement snapshot keyed by sku
+ * served right at startup from a signed binary file,then reconciled with queryPurchasesAsync results
+ * and updated as purchases settle. subscriptions expire at their estimated renewal unless google play
+ * confirms the renewal.
+ * file format: [int magic][int count]([utf sku][utf token][byte state][long expiry])*[32 bytes HMAC-SHA256]
+ * a file with a bad signature is ignored.
+ */
+public class EntitlementStore {
+    public static final String TAG = "EntitlementStore";
+
+    private static final int MAGIC = 0x49414245;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    private final File mFile;
+    private final byte[] mKey;
+    private final Executor mIoExecutor;
+
+    //sku -> entitlement,replaced as a whole on reconcile
+    private volatile Map<String, Entitlement> mEntitlements = Collections.emptyMap();
+
+
+    /**
+     * @param file snapshot file
+     * @param key signing key of the snapshot
+     * @param ioExecutor serial executor the snapshot is saved on
+     */
+    public EntitlementStore(File file, byte[] key, Executor ioExecutor){
+        mFile = file;
+        mKey = key.clone();
+        mIoExecutor = ioExecutor;
+    }
+
+
+    /**
+     * load the snapshot,call it as early as possible at startup
+     * @return loaded entitlements,empty if missing or not trusted
+     */
+    public Map<String, Entitlement> load(){
+        Map<String, Entitlement> entitlements;
+        try {
+            entitlements = read();
+        } catch (IOException e) {
+            IabLog.e(TAG, "load: ", e.getMessage());
+            entitlements = Collections.emptyMap();
+        }
+        mEntitlements = entitlements;
+        return entitlements;
+    }
+
+
+    public boolean isEntitled(String sku){
+        Entitlement entitlement = mEntitlements.get(sku);
+        return entitlement != null && entitlement.isActive(System.currentTimeMillis());
+    }
+
+
+    public Entitlement get(String sku){
+        return mEntitlements.get(sku);
+    }
+
+
+    public Map<String, Entitlement> getAll(){
+        return mEntitlements;
+    }
+
+
+    /**
+     * reconcile with purchases owned now,report differences and save the snapshot in background
+     * @param purchases owned purchases that grant an entitlement,subscriptions and non-consumable items,
+     *                  consumables owned until consumed don't belong here
+     * @param estimator optional,every entitlement never expires without it
+     * @param listener optional
+     */
+    public void reconcile(List<Purchase> purchases, ExpiryEstimator estimator, OnEntitlementChangedListener listener){
+        Map<String, Entitlement> latest = new HashMap<String, Entitlement>();
+        for(Purchase purchase : purchases){
+            if(purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED){
+                latest.put(purchase.getSku(), new Entitlement(purchase.getSku(), purchase.getPurchaseToken(),
+                        purchase.getPurchaseState(), estimator != null ? estimator.getExpiryTime(purchase) : 0));
+            }
+        }
+
+        Map<String, Entitlement> previous;
+        synchronized (this){
+            previous = mEntitlements;
+            mEntitlements = Collections.unmodifiableMap(latest);
+        }
+
+        boolean changed = false;
+        for(Entitlement entitlement : latest.values()){
+            Entitlement old = previous.get(entitlement.sku);
+            if(old == null){
+                changed = true;
+                if(listener != null){
+                    listener.onEntitlementAdded(entitlement);
+                }
+            }else if(isChanged(old, entitlement)){
+                changed = true;
+                if(listener != null){
+                    listener.onEntitlementChanged(old, entitlement);
+                }
+            }
+        }
+        for(Entitlement old : previous.values()){
+            if(!latest.containsKey(old.sku)){
+                changed = true;
+                if(listener != null){
+                    listener.onEntitlementRemoved(old);
+                }
+            }
+        }
+
+        if(changed){
+            saveAsync();
+        }
+    }
+
+
+    /**
+     * a settled purchase,added or changed without waiting for the next queryPurchasesAsync
+     * @param purchase a PURCHASED purchase,others are ignored
+     * @param expiryTime 0 never expires
+     * @param listener optional
+     */
+    public void update(Purchase purchase, long expiryTime, OnEntitlementChangedListener listener){
+        if(purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED){
+            return;
+        }
+
+        Entitlement entitlement = new Entitlement(purchase.getSku(), purchase.getPurchaseToken(),
+                purchase.getPurchaseState(), expiryTime);
+        Entitlement old;
+        synchronized (this){
+            old = mEntitlements.get(entitlement.sku);
+            if(old != null && !isChanged(old, entitlement)){
+                return;
+            }
+            Map<String, Entitlement> latest = new HashMap<String, Entitlement>(mEntitlements);
+            latest.put(entitlement.sku, entitlement);
+            mEntitlements = Collections.unmodifiableMap(latest);
+        }
+
+        if(listener != null){
+            if(old == null){
+                listener.onEntitlementAdded(entitlement);
+            }else{
+                listener.onEntitlementChanged(old, entitlement);
+            }
+        }
+        saveAsync();
+    }
+
+
+    //a renewal keeps its token,only its expiry moves
+    private static boolean isChanged(Entitlement old, Entitlement entitlement){
+        return !old.purchaseToken.equals(entitlement.purchaseToken) || old.purchaseState != entitlement.purchaseState
+                || old.expiryTime != entitlement.expiryTime;
+    }
+
+
+    private void saveAsync(){
+        try {
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(mEntitlements);
+                    } catch (IOException e) {
+                        IabLog.e(TAG, "save: ", e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //io executor is shut down on dispose,the next reconcile saves it
+            IabLog.e(TAG, "save: io executor is shut down.");
+        }
+    }
+
+
+    private Map<String, Entitlement> read() throws IOException {
+        if(!mFile.exists()){
+            return Collections.emptyMap();
+        }
+
+        byte[] data = new byte[(int) mFile.length()];
+        DataInputStream fileIn = new DataInputStream(new FileInputStream(mFile));
+        try {
+            fileIn.readFully(data);
+        } finally {
+            fileIn.close();
+        }
+
+        if(data.length < 8 + MAC_LENGTH){
+            throw new IOException("snapshot is too short.");
+        }
+
+        int bodyLength = data.length - MAC_LENGTH;
+        byte[] expected = sign(data, bodyLength);
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(data, bodyLength, actual, 0, MAC_LENGTH);
+        if(!MessageDigest.isEqual(expected, actual)){
+            throw new IOException("snapshot signature mismatch.");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+        if(in.readInt() != MAGIC){
+            throw new IOException("not a snapshot file.");
+        }
+
+        int count = in.readInt();
+        Map<String, Entitlement> entitlements = new HashMap<String, Entitlement>(count * 2);
+        for(int i = 0; i < count; i++){
+            Entitlement entitlement = new Entitlement(in.readUTF(), in.readUTF(), in.readByte(), in.readLong());
+            entitlements.put(entitlement.sku, entitlement);
+        }
+        return Collections.unmodifiableMap(entitlements);
+    }
+
+
+    private synchronized void write(Map<String, Entitlement> entitlements) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(entitlements.size());
+        for(Entitlement entitlement : entitlements.values()){
+            out.writeUTF(entitlement.sku);
+            out.writeUTF(entitlement.purchaseToken);
+            out.writeByte(entitlement.purchaseState);
+            out.writeLong(entitlement.expiryTime);
+        }
+        out.flush();
+
+        byte[] body = bytes.toByteArray();
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            fileOut.write(body);
+            fileOut.write(sign(body, body.length));
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if(!tmpFile.renameTo(mFile)){
+            throw new IOException("rename snapshot failed.");
+        }
+    }
+
+
+    private byte[] sign(byte[] data, int length) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(mKey, MAC_ALGORITHM));
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+
+    public static class Entitlement{
+        public final String sku;
+        public final String purchaseToken;
+        public final int purchaseState;
+        //0 means never expires
+        public final long expiryTime;
+
+        public Entitlement(String sku, String purchaseToken, int purchaseState, long expiryTime){
+            this.sku = sku;
+            this.purchaseToken = purchaseToken;
+            this.purchaseState = purchaseState;
+            this.expiryTime = expiryTime;
+        }
+
+        public boolean isActive(long now){
+            return purchaseState == Purchase.PurchaseState.PURCHASED && (expiryTime == 0 || expiryTime > now);
+        }
+    }
+
+
+    //expiry time of a purchase,0 never expires
+    public interface ExpiryEstimator{
+        long getExpiryTime(Purchase purchase);
+    }
+
+
+    //entitlement differences found on reconcile or update
+    public interface OnEntitlementChangedListener{
+        void onEntitlementAdded(Entitlement entitlement);
+
+        void onEntitlementChanged(Entitlement oldEntitlement, Entitlement newEntitlement);
+
+        void onEntitlementRemoved(Entitlement entitlement);
+    }
+}
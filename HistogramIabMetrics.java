@@ -0,0 +1,156 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * in-memory IabMetrics
+ * latency histogram per operation with power of 2 millisecond buckets,
+ * response code counters and in-flight gauges,all preallocated.
+ */
+public class HistogramIabMetrics implements IabMetrics {
+
+    //bucket i holds latencies in [2^(i-1), 2^i) ms,bucket 0 is < 1ms,the last one is unbounded
+    private static final int BUCKET_COUNT = 20;
+
+    //google play codes -3..8,IAB_BILLING_CLIENT_NULL,IAB_TIMEOUT,canceled,others
+    private static final int MIN_PLAY_CODE = BillingClient.BillingResponseCode.SERVICE_TIMEOUT;
+    private static final int MAX_PLAY_CODE = BillingClient.BillingResponseCode.ITEM_NOT_OWNED;
+    private static final int PLAY_CODE_SLOTS = MAX_PLAY_CODE - MIN_PLAY_CODE + 1;
+    private static final int SLOT_CLIENT_NULL = PLAY_CODE_SLOTS;
+    private static final int SLOT_TIMEOUT = PLAY_CODE_SLOTS + 1;
+    private static final int SLOT_CANCELED = PLAY_CODE_SLOTS + 2;
+    private static final int SLOT_OTHER = PLAY_CODE_SLOTS + 3;
+    private static final int CODE_SLOTS = PLAY_CODE_SLOTS + 4;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(OP_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mCodes = new AtomicLongArray(OP_COUNT * CODE_SLOTS);
+    private final AtomicIntegerArray mInFlight = new AtomicIntegerArray(OP_COUNT);
+
+
+    @Override
+    public void onStart(int op) {
+        mInFlight.incrementAndGet(op);
+    }
+
+
+    @Override
+    public void onFinish(int op, int responseCode, long latencyNanos) {
+        mInFlight.decrementAndGet(op);
+        mBuckets.incrementAndGet(op * BUCKET_COUNT + bucketOf(latencyNanos));
+        mTotalNanos.addAndGet(op, latencyNanos);
+        mCodes.incrementAndGet(op * CODE_SLOTS + slotOf(responseCode));
+    }
+
+
+    public int getInFlight(int op){
+        return mInFlight.get(op);
+    }
+
+
+    public long getCount(int op){
+        long count = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            count += mBuckets.get(op * BUCKET_COUNT + i);
+        }
+        return count;
+    }
+
+
+    public long getMeanMillis(int op){
+        long count = getCount(op);
+        return count == 0 ? 0 : mTotalNanos.get(op) / count / 1000000L;
+    }
+
+
+    /**
+     * @param op
+     * @param percentile 0-100
+     * @return upper bound of the bucket holding the percentile,in milliseconds
+     */
+    public long getPercentileMillis(int op, double percentile){
+        long count = getCount(op);
+        if(count == 0){
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += mBuckets.get(op * BUCKET_COUNT + i);
+            if(seen >= rank){
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+
+
+    public long getResponseCount(int op, int responseCode){
+        return mCodes.get(op * CODE_SLOTS + slotOf(responseCode));
+    }
+
+
+    public void reset(){
+        for(int i = 0; i < mBuckets.length(); i++){
+            mBuckets.set(i, 0);
+        }
+        for(int i = 0; i < mCodes.length(); i++){
+            mCodes.set(i, 0);
+        }
+        for(int i = 0; i < OP_COUNT; i++){
+            mTotalNanos.set(i, 0);
+        }
+    }
+
+
+    /**
+     * @return readable summary,allocates,don't call it on hot path
+     */
+    public String dump(){
+        StringBuilder builder = new StringBuilder();
+        for(int op = 0; op < OP_COUNT; op++){
+            long count = getCount(op);
+            if(count == 0 && getInFlight(op) == 0){
+                continue;
+            }
+            builder.append(OP_NAMES[op])
+                    .append(" count=").append(count)
+                    .append(" inFlight=").append(getInFlight(op))
+                    .append(" mean=").append(getMeanMillis(op)).append("ms")
+                    .append(" p50<=").append(getPercentileMillis(op, 50)).append("ms")
+                    .append(" p99<=").append(getPercentileMillis(op, 99)).append("ms")
+                    .append(" ok=").append(getResponseCount(op, BillingClient.BillingResponseCode.OK))
+                    .append(" timeout=").append(getResponseCount(op, IabHelper.IAB_TIMEOUT))
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    private static int bucketOf(long latencyNanos){
+        long millis = latencyNanos / 1000000L;
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+
+    private static int slotOf(int responseCode){
+        if(responseCode >= MIN_PLAY_CODE && responseCode <= MAX_PLAY_CODE){
+            return responseCode - MIN_PLAY_CODE;
+        }
+        switch (responseCode){
+            case IabHelper.IAB_BILLING_CLIENT_NULL:
+                return SLOT_CLIENT_NULL;
+            case IabHelper.IAB_TIMEOUT:
+                return SLOT_TIMEOUT;
+            case RESPONSE_CANCELED:
+                return SLOT_CANCELED;
+            default:
+                return SLOT_OTHER;
+        }
+    }
+}
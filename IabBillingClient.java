@@ -0,0 +1,53 @@
+package com.tencent.imsdk.samples;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+/**
+ * the part of BillingClient used by IabHelper
+ * PlayBillingClient talks to google play,FakeBillingService simulates it in process.
+ */
+public interface IabBillingClient {
+
+    boolean isReady();
+
+    void startConnection(BillingClientStateListener listener);
+
+    void endConnection();
+
+    BillingResult isFeatureSupported(String feature);
+
+    BillingResult launchBillingFlow(Activity activity, BillingFlowParams params);
+
+    void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener);
+
+    //blocking ipc
+    Purchase.PurchasesResult queryPurchases(@BillingClient.SkuType String skuType);
+
+    void queryPurchaseHistoryAsync(@BillingClient.SkuType String skuType, PurchaseHistoryResponseListener listener);
+
+    void consumeAsync(ConsumeParams params, ConsumeResponseListener listener);
+
+    void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener);
+
+
+    /**
+     * create a client delivering purchase updates to listener
+     */
+    interface Factory{
+        IabBillingClient create(PurchasesUpdatedListener listener);
+    }
+}
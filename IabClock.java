@@ -0,0 +1,20 @@
+package com.tencent.imsdk.samples;
+
+/**
+ * time source used by IabHelper,replace it with a virtual clock in tests
+ */
+public interface IabClock {
+
+    /**
+     * @return monotonic time in milliseconds
+     */
+    long now();
+
+
+    IabClock SYSTEM = new IabClock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+}
@@ -0,0 +1,128 @@
+package com.tencent.imsdk.samples;
+
+/**
+ * ring buffer of billing events for post-mortem,recording allocates nothing
+ * every event is a row of fixed-width fields in preallocated arrays,
+ * purchase tokens are kept as hashes only,text is built when the buffer is dumped.
+ */
+public class IabEventLog {
+    public static final String TAG = "IabEventLog";
+
+    public static final int EVENT_PURCHASE_UPDATE = 0;
+    public static final int EVENT_HANDLE = 1;
+    public static final int EVENT_VERIFY = 2;
+    public static final int EVENT_ACKNOWLEDGE = 3;
+    public static final int EVENT_CONSUME = 4;
+    public static final int EVENT_LAUNCH = 5;
+    public static final int EVENT_QUERY_PURCHASES = 6;
+
+    private static final String[] EVENT_NAMES = {
+            "update", "handle", "verify", "acknowledge", "consume", "launch", "queryPurchases"
+    };
+
+    //no latency measured
+    public static final long NO_LATENCY = -1;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final IabClock mClock;
+    private final int mCapacity;
+
+    //guarded by this
+    private final long[] mTimes;
+    private final int[] mEvents;
+    private final String[] mSkus;
+    private final int[] mTokenHashes;
+    private final int[] mStates;
+    private final int[] mResponseCodes;
+    private final long[] mLatencies;
+    private long mCount = 0;
+
+
+    public IabEventLog(){
+        this(DEFAULT_CAPACITY, IabClock.SYSTEM);
+    }
+
+
+    public IabEventLog(int capacity, IabClock clock){
+        mCapacity = Math.max(1, capacity);
+        mClock = clock;
+        mTimes = new long[mCapacity];
+        mEvents = new int[mCapacity];
+        mSkus = new String[mCapacity];
+        mTokenHashes = new int[mCapacity];
+        mStates = new int[mCapacity];
+        mResponseCodes = new int[mCapacity];
+        mLatencies = new long[mCapacity];
+    }
+
+
+    /**
+     * record an event,the oldest one is overwritten when full
+     * @param event EVENT_*
+     * @param sku kept by reference
+     * @param purchaseToken only its hash is kept,may be null
+     * @param state purchase state,0 if none
+     * @param responseCode
+     * @param latencyMs NO_LATENCY if not measured
+     */
+    public void record(int event, String sku, String purchaseToken, int state, int responseCode, long latencyMs){
+        long now = mClock.now();
+        int tokenHash = purchaseToken != null ? purchaseToken.hashCode() : 0;
+        synchronized (this){
+            int i = (int) (mCount % mCapacity);
+            mTimes[i] = now;
+            mEvents[i] = event;
+            mSkus[i] = sku;
+            mTokenHashes[i] = tokenHash;
+            mStates[i] = state;
+            mResponseCodes[i] = responseCode;
+            mLatencies[i] = latencyMs;
+            mCount++;
+        }
+    }
+
+
+    public synchronized int size(){
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+
+    public synchronized void clear(){
+        mCount = 0;
+        for(int i = 0; i < mCapacity; i++){
+            mSkus[i] = null;
+        }
+    }
+
+
+    /**
+     * format buffered events,oldest first
+     * @return one line per event: time event sku token=#hash state code latency
+     */
+    public synchronized String dump(){
+        int size = size();
+        StringBuilder builder = new StringBuilder(size * 64);
+        for(long n = mCount - size; n < mCount; n++){
+            int i = (int) (n % mCapacity);
+            int event = mEvents[i];
+            builder.append(mTimes[i])
+                    .append(' ').append(event >= 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : String.valueOf(event))
+                    .append(' ').append(mSkus[i])
+                    .append(" token=#").append(Integer.toHexString(mTokenHashes[i]))
+                    .append(" state=").append(mStates[i])
+                    .append(" code=").append(mResponseCodes[i]);
+            if(mLatencies[i] != NO_LATENCY){
+                builder.append(" latency=").append(mLatencies[i]).append("ms");
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    //write the dump to logcat
+    public void dumpToLog(){
+        IabLog.i(TAG, dump());
+    }
+}
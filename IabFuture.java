@@ -0,0 +1,366 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * result of an async IabHelper operation
+ * a light CompletableFuture,which is not available before android api 24.
+ * callbacks run on the completing thread unless an executor is given,cancelled futures don't call back.
+ * a chained step that throws or returns null completes the chain with an ERROR result instead of leaving it hanging.
+ */
+public class IabFuture<T> {
+    public static final String TAG = "IabFuture";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private T mResult;
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>(1);
+
+
+    public static <T> IabFuture<T> completed(T result){
+        IabFuture<T> future = new IabFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+
+    /**
+     * complete with a result,only the first completion counts
+     * @param result
+     * @return true if this call completed the future
+     */
+    public boolean complete(T result){
+        return finish(result, false);
+    }
+
+
+    /**
+     * cancel the future,a queued operation will not be sent to google play
+     * @return true if this call cancelled the future
+     */
+    public boolean cancel(){
+        return finish(null, true);
+    }
+
+
+    private boolean finish(T result, boolean cancelled){
+        List<Runnable> callbacks;
+        synchronized (this){
+            if(mDone){
+                return false;
+            }
+            mDone = true;
+            mCancelled = cancelled;
+            mResult = result;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+
+        for(Runnable callback : callbacks){
+            callback.run();
+        }
+        return true;
+    }
+
+
+    public synchronized boolean isDone(){
+        return mDone;
+    }
+
+
+    public synchronized boolean isCancelled(){
+        return mCancelled;
+    }
+
+
+    /**
+     * @param valueIfAbsent
+     * @return result if completed,otherwise valueIfAbsent
+     */
+    public synchronized T getNow(T valueIfAbsent){
+        return mDone && !mCancelled ? mResult : valueIfAbsent;
+    }
+
+
+    /**
+     * block till completed,never call it on main thread
+     */
+    public synchronized T get() throws InterruptedException {
+        while (!mDone){
+            wait();
+        }
+        return resultOrThrow();
+    }
+
+
+    /**
+     * block till completed or timeout,never call it on main thread
+     */
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone){
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0){
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return resultOrThrow();
+    }
+
+
+    private T resultOrThrow(){
+        if(mCancelled){
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+
+
+    public IabFuture<T> addListener(Callback<T> callback){
+        return addListener(callback, DIRECT);
+    }
+
+
+    /**
+     * call back with the result on executor
+     * @param callback
+     * @param executor
+     * @return this
+     */
+    public IabFuture<T> addListener(final Callback<T> callback, final Executor executor){
+        onDone(new Runnable() {
+            @Override
+            public void run() {
+                if(isCancelled()){
+                    return;
+                }
+                final T result = getNow(null);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onComplete(result);
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+
+    /**
+     * chain a dependent operation,cancelling either future cancels the chain
+     * a step that throws or returns null cancels the chain,pass errorResult to complete it instead
+     * @param transform start the next operation with this result
+     * @return future of the next operation
+     */
+    public <R> IabFuture<R> then(Transform<T, IabFuture<R>> transform){
+        return then(transform, null);
+    }
+
+
+    /**
+     * chain a dependent operation,cancelling either future cancels the chain
+     * @param transform start the next operation with this result
+     * @param errorResult build the result of the chain from an ERROR BillingResult if the step throws or is null,
+     *                    like new IabHelper.ConsumeResult(billingResult, null),null to cancel the chain instead
+     * @return future of the next operation
+     */
+    public <R> IabFuture<R> then(final Transform<T, IabFuture<R>> transform, final Transform<BillingResult, R> errorResult){
+        final IabFuture<R> next = new IabFuture<R>();
+        onDone(new Runnable() {
+            @Override
+            public void run() {
+                if(isCancelled()){
+                    next.cancel();
+                    return;
+                }
+
+                final IabFuture<R> step;
+                try {
+                    step = transform.apply(getNow(null));
+                } catch (RuntimeException e) {
+                    IabLog.e(TAG, "then: step failed: ", e);
+                    fail(next, errorResult, "Chained step failed: " + e);
+                    return;
+                }
+                if(step == null){
+                    IabLog.e(TAG, "then: step is null.");
+                    fail(next, errorResult, "Chained step is null.");
+                    return;
+                }
+                next.onDone(cancelOnDone(step, next));
+                step.onDone(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(step.isCancelled()){
+                            next.cancel();
+                        }else{
+                            next.complete(step.getNow(null));
+                        }
+                    }
+                });
+            }
+        });
+        next.onDone(cancelOnDone(this, next));
+        return next;
+    }
+
+
+    /**
+     * map the result,a transform that throws cancels the chain
+     * @param transform
+     * @return
+     */
+    public <R> IabFuture<R> map(Transform<T, R> transform){
+        return map(transform, null);
+    }
+
+
+    /**
+     * map the result
+     * @param transform
+     * @param errorResult build the result from an ERROR BillingResult if transform throws,null to cancel instead
+     * @return
+     */
+    public <R> IabFuture<R> map(final Transform<T, R> transform, Transform<BillingResult, R> errorResult){
+        return then(new Transform<T, IabFuture<R>>() {
+            @Override
+            public IabFuture<R> apply(T value) {
+                return IabFuture.completed(transform.apply(value));
+            }
+        }, errorResult);
+    }
+
+
+    //a failed step ends the chain with an ERROR result,or cancels it if the result can't be built
+    private static <R> void fail(IabFuture<R> next, Transform<BillingResult, R> errorResult, String debugMessage){
+        if(errorResult == null){
+            next.cancel();
+            return;
+        }
+
+        R result;
+        try {
+            result = errorResult.apply(BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                    .setDebugMessage(debugMessage)
+                    .build());
+        } catch (RuntimeException e) {
+            IabLog.e(TAG, "then: error result failed: ", e);
+            next.cancel();
+            return;
+        }
+        next.complete(result);
+    }
+
+
+    /**
+     * complete with timeoutResult if not done within delayMillis
+     * @param delayMillis
+     * @param scheduler
+     * @param timeoutResult
+     * @return this
+     */
+    public IabFuture<T> orTimeout(long delayMillis, IabScheduler scheduler, final T timeoutResult){
+        final IabScheduler.Cancellable task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(timeoutResult);
+            }
+        }, delayMillis);
+        onDone(new Runnable() {
+            @Override
+            public void run() {
+                task.cancel();
+            }
+        });
+        return this;
+    }
+
+
+    /**
+     * wait for all futures,run independent operations in parallel
+     * @param futures
+     * @return results in the order of futures,cancelled if any of them is cancelled
+     */
+    public static <T> IabFuture<List<T>> allOf(final List<IabFuture<T>> futures){
+        final IabFuture<List<T>> all = new IabFuture<List<T>>();
+        if(futures.isEmpty()){
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for(final IabFuture<T> future : futures){
+            future.onDone(new Runnable() {
+                @Override
+                public void run() {
+                    if(future.isCancelled()){
+                        all.cancel();
+                        return;
+                    }
+                    if(remaining.decrementAndGet() == 0){
+                        List<T> results = new ArrayList<T>(futures.size());
+                        for(IabFuture<T> f : futures){
+                            results.add(f.getNow(null));
+                        }
+                        all.complete(results);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+
+    //run once done or cancelled
+    void onDone(Runnable runnable){
+        synchronized (this){
+            if(!mDone){
+                mCallbacks.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+
+    private static Runnable cancelOnDone(final IabFuture<?> upstream, final IabFuture<?> downstream){
+        return new Runnable() {
+            @Override
+            public void run() {
+                if(downstream.isCancelled()){
+                    upstream.cancel();
+                }
+            }
+        };
+    }
+
+
+    public interface Callback<T>{
+        void onComplete(T result);
+    }
+
+
+    public interface Transform<T, R>{
+        R apply(T value);
+    }
+}
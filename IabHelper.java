@@ -2,8 +2,9 @@ package com.tencent.imsdk.samples;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
@@ -14,35 +15,244 @@ import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
 import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
 import com.android.billingclient.api.PurchaseHistoryResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
 import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * google play billing library封装
+ * threading: synchronous google play calls (queryPurchases,isFeatureSupported) run on a serial billing thread,
+ * never on the calling thread,listener callbacks are delivered on the callback executor (main thread by default).
  * @author zachzeng
  */
 public class IabHelper implements PurchasesUpdatedListener{
     public static final String TAG = "IabHelper";
 
+    //queryPurchasesAsync legs
+    public static final String QUERY_LEG_INAPP = "inapp";
+    public static final String QUERY_LEG_SUBS = "subs";
+    public static final String QUERY_LEG_FEATURE = "feature";
+
+    //every BillingClient.FeatureType,checked in bulk after connected
+    private static final String[] ALL_FEATURES = {
+            BillingClient.FeatureType.SUBSCRIPTIONS,
+            BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE,
+            BillingClient.FeatureType.IN_APP_ITEMS_ON_VR,
+            BillingClient.FeatureType.SUBSCRIPTIONS_ON_VR,
+            BillingClient.FeatureType.PRICE_CHANGE_CONFIRMATION
+    };
+
     //自定义新增错误码
     public static final int IAB_BILLING_CLIENT_NULL = -3000;
+    public static final int IAB_TIMEOUT = -3001;
+
+    public static final long DEFAULT_OPERATION_TIMEOUT_MS = 30 * 1000;
+    public static final long DEFAULT_CONNECTION_TIMEOUT_MS = 15 * 1000;
+
+    //connection state
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+    private static final int STATE_CLOSED = 3;
+
+    //what startServiceConnection does with a request,decided under mPendingRequests
+    private static final int CONNECTION_RUN = 0;
+    private static final int CONNECTION_QUEUED = 1;
+    private static final int CONNECTION_CONNECT = 2;
+    private static final int CONNECTION_CLIENT_NULL = 3;
+    private static final int CONNECTION_CIRCUIT_OPEN = 4;
+
+    //written by constructor and dispose,read from billing,query and main threads
+    private volatile IabBillingClient mBillingClient;
+    //a new client replaces one whose setup hangs
+    private final IabBillingClient.Factory mBillingClientFactory;
+    //route purchase updates to the flows that started them
+    private final PurchaseUpdateDispatcher mPurchaseDispatcher = new PurchaseUpdateDispatcher();
+
+    //guarded by mPendingRequests
+    private int mConnectionState = STATE_DISCONNECTED;
+
+    //requests waiting for the in-flight connection, drained in order
+    private final List<IabRunnable> mPendingRequests = new ArrayList<IabRunnable>();
+
+    //reconnect after service disconnected or a retryable setup failure
+    private volatile IabReconnectPolicy mReconnectPolicy = new IabReconnectPolicy();
+    private volatile IabScheduler mScheduler;
+    private IabScheduler.Cancellable mReconnectTask;
+
+    //deadlines,0 means never time out
+    private volatile long mOperationTimeoutMs = DEFAULT_OPERATION_TIMEOUT_MS;
+    private volatile long mConnectionTimeoutMs = DEFAULT_CONNECTION_TIMEOUT_MS;
+    private IabScheduler.Cancellable mConnectionTimeoutTask;
+
+    //latency and response code metrics,no-op by default
+    private volatile IabMetrics mMetrics = IabMetrics.NOOP;
+    private long mConnectStartNanos;
+    //guarded by mPendingRequests
+    private boolean mConnectTracked = false;
+
+    //serial thread for synchronous google play calls,guarded by this
+    private ExecutorService mBillingExecutor;
+    //listener callbacks
+    private volatile Executor mCallbackExecutor;
+
+    //interactive requests go ahead of background settlement and prefetch
+    private volatile IabRequestScheduler mRequestScheduler = new IabRequestScheduler();
+
+    //run in-app query,subs query and feature check concurrently
+    private volatile boolean mParallelPurchaseQuery = false;
+    private ExecutorService mQueryExecutor;
+    private volatile OnIabQueryTimingListener mQueryTimingListener;
+
+    //feature type -> supported,valid for one connection session
+    private final Map<String, Boolean> mFeatureSupport = new ConcurrentHashMap<String, Boolean>();
+    private volatile boolean mWarmFeatureCache = true;
 
-    private BillingClient mBillingClient;
-    private OnIabPurchaseListener mPurchaseListener;
 
-    //true if billing service is connected
-    private boolean mIsServiceConnected = false;
+    public IabHelper(Context context){
+        this(PlayBillingClient.factory(context));
+    }
 
 
-    public IabHelper(Context context){
-        mBillingClient = BillingClient.newBuilder(context)
-                .setListener(this)
-                .enablePendingPurchases()
-                .build();
+    /**
+     * talk to another billing client,like FakeBillingService
+     * @param factory
+     */
+    public IabHelper(IabBillingClient.Factory factory){
+        this(factory, new MainThreadExecutor(), new IabScheduler.MainThreadScheduler());
+    }
+
+
+    /**
+     * talk to another billing client off the main thread,nothing touches Looper,
+     * so it also runs on a plain JVM with FakeBillingService.
+     * @param factory
+     * @param callbackExecutor listener callbacks and purchase flow launches
+     * @param scheduler reconnects and deadlines
+     */
+    public IabHelper(IabBillingClient.Factory factory, Executor callbackExecutor, IabScheduler scheduler){
+        mCallbackExecutor = callbackExecutor;
+        mScheduler = scheduler;
+        mBillingClientFactory = factory;
+        mBillingClient = factory.create(this);
+    }
+
+
+    /**
+     * replace the default reconnect policy,call before startSetup
+     * @param policy
+     */
+    public void setReconnectPolicy(IabReconnectPolicy policy){
+        if(policy != null){
+            mReconnectPolicy = policy;
+        }
+    }
+
+
+    /**
+     * replace the default main thread scheduler,call before startSetup
+     * @param scheduler
+     */
+    public void setScheduler(IabScheduler scheduler){
+        if(scheduler != null){
+            mScheduler = scheduler;
+        }
+    }
+
+
+    /**
+     * replace the default priority classes caps,call before any request
+     * @param scheduler
+     */
+    public void setRequestScheduler(IabRequestScheduler scheduler){
+        if(scheduler != null){
+            mRequestScheduler = scheduler;
+        }
+    }
+
+
+    /**
+     * deliver listener callbacks on executor,main thread by default.
+     * purchase flows are launched on it too,keep it on main thread with google play.
+     * futures complete on any thread,use IabFuture.addListener(callback, getCallbackExecutor()) for the same guarantee.
+     * @param executor
+     */
+    public void setCallbackExecutor(Executor executor){
+        mCallbackExecutor = executor != null ? executor : new MainThreadExecutor();
+    }
+
+
+    public Executor getCallbackExecutor(){
+        return mCallbackExecutor;
+    }
+
+
+    /**
+     * record latency,response codes and in-flight count of every operation
+     * @param metrics
+     */
+    public void setMetrics(IabMetrics metrics){
+        mMetrics = metrics != null ? metrics : IabMetrics.NOOP;
+    }
+
+
+    /**
+     * fail an operation with IAB_TIMEOUT if google play doesn't call back in time,late responses are dropped.
+     * launch purchase flow is not limited,user may stay in the purchase dialog for a long time.
+     * @param timeoutMs 0 means never time out
+     */
+    public void setOperationTimeout(long timeoutMs){
+        mOperationTimeoutMs = timeoutMs;
+    }
+
+
+    /**
+     * fail requests waiting for the connection with IAB_TIMEOUT if setup doesn't finish in time
+     * @param timeoutMs 0 means never time out
+     */
+    public void setConnectionTimeout(long timeoutMs){
+        mConnectionTimeoutMs = timeoutMs;
+    }
+
+
+    /**
+     * run queryPurchasesAsync legs concurrently on a query executor instead of one after another on the billing thread
+     * @param parallel
+     */
+    public void setParallelPurchaseQuery(boolean parallel){
+        mParallelPurchaseQuery = parallel;
+    }
+
+
+    /**
+     * receive latency of every queryPurchasesAsync leg
+     * @param listener
+     */
+    public void setQueryTimingListener(OnIabQueryTimingListener listener){
+        mQueryTimingListener = listener;
+    }
+
+
+    /**
+     * check every feature type off the main thread right after connected,default true
+     * @param warm
+     */
+    public void setWarmFeatureCache(boolean warm){
+        mWarmFeatureCache = warm;
     }
 
 
@@ -51,12 +261,17 @@ public class IabHelper implements PurchasesUpdatedListener{
      * @param listener
      */
     public void startSetup(final OnIabSetupFinishedListener listener){
-        Log.i(TAG,"startSetup");
+        IabLog.i(TAG,"startSetup");
         startServiceConnection(new IabRunnable() {
             @Override
-            public void run(BillingResult result) {
+            public void run(final BillingResult result) {
                 if(listener != null){
-                    listener.onIabSetupFinished(result);
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onIabSetupFinished(result);
+                        }
+                    });
                 }
             }
         });
@@ -66,38 +281,151 @@ public class IabHelper implements PurchasesUpdatedListener{
     /**
      * start a purchase or subscription replace flow
      * @param billingFlowParams
+     * @return result of launchBillingFlow,completes once the purchase dialog is launched
      */
-    public void launchPurchaseFlow(final Activity activity,final BillingFlowParams billingFlowParams, final OnIabPurchaseListener listener){
-        Log.i(TAG,"launchPurchaseFlow");
+    public IabFuture<BillingResult> launchPurchaseFlow(final Activity activity,final BillingFlowParams billingFlowParams, final OnIabPurchaseListener listener){
+        IabLog.d(TAG,"launchPurchaseFlow");
 
         if(listener == null){
-            Log.e(TAG,"launchPurchaseFlow: listener is null.");
-            return;
+            IabLog.e(TAG,"launchPurchaseFlow: listener is null.");
+            return IabFuture.completed(buildResult(BillingClient.BillingResponseCode.DEVELOPER_ERROR, "listener is null."));
         }
 
-        //cached
-        mPurchaseListener = listener;
+        //wait for the purchase update of this sku
+        final IabMetrics metrics = mMetrics;
+        final LaunchTracker tracker = metrics != IabMetrics.NOOP ? new LaunchTracker(listener, metrics) : null;
+        final OnIabPurchaseListener flowListener = tracker != null ? tracker : listener;
+        final Object flow = mPurchaseDispatcher.beginFlow(billingFlowParams.getSku(), flowListener, tracker);
 
-        IabRunnable runnable = new IabRunnable() {
+        //the purchase slot is held until the purchase dialog is launched,not until the user finishes it
+        final IabFuture<BillingResult> launched = new IabFuture<BillingResult>();
+        final IabRunnable runnable = new IabRunnable() {
             @Override
             public void run(BillingResult result) {
-                if(mBillingClient != null){
-                    Log.i(TAG,"Launching in-app purchase flow, Replace old SKU ? "+(billingFlowParams.getOldSku() != null));
-                    mBillingClient.launchBillingFlow(activity,billingFlowParams);
-                }else{
-                    Log.e(TAG,"launchPurchaseFlow: BillingClient is null.");
-
-                    BillingResult billingResult = BillingResult.newBuilder()
-                            .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                            .setDebugMessage("BillingClient is null.")
-                            .build();
+                if(isConnectionFailure(result)){
+                    //no connection,the flow ends with the connection result
+                    IabLog.e(TAG,"launchPurchaseFlow", result);
+                    launched.complete(result);
+                    flowListener.onPurchaseResponse(result, null);
+                    mPurchaseDispatcher.endFlow(flow);
+                    return;
+                }
 
-                    listener.onPurchaseResponse(billingResult, null);
+                IabBillingClient billingClient = mBillingClient;
+                if(billingClient != null){
+                    IabLog.d(TAG,"Launching in-app purchase flow, Replace old SKU ? ", billingFlowParams.getOldSku() != null);
+                    launched.complete(billingClient.launchBillingFlow(activity,billingFlowParams));
+                }else{
+                    IabLog.e(TAG,"launchPurchaseFlow: BillingClient is null.");
+                    launched.complete(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."));
+                    flowListener.onPurchaseResponse(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), null);
+                    mPurchaseDispatcher.endFlow(flow);
                 }
             }
         };
 
-        executeServiceRequest(runnable);
+        mRequestScheduler.submit(IabRequestScheduler.PRIORITY_PURCHASE, new Runnable() {
+            @Override
+            public void run() {
+                //launchBillingFlow must run on main thread,the default callback executor
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        executeServiceRequest(runnable);
+                    }
+                });
+            }
+        }, launched);
+        return launched;
+    }
+
+
+    //record launch to first purchase update latency,finished once by the first update,
+    //or as canceled when the flow expires or ends without one
+    private static class LaunchTracker implements OnIabPurchaseListener, PurchaseUpdateDispatcher.OnFlowEndedListener{
+        private final OnIabPurchaseListener mListener;
+        private final IabMetrics mMetrics;
+        private final long mStart;
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        LaunchTracker(OnIabPurchaseListener listener, IabMetrics metrics){
+            mListener = listener;
+            mMetrics = metrics;
+            mStart = System.nanoTime();
+            metrics.onStart(IabMetrics.OP_LAUNCH_TO_UPDATE);
+        }
+
+        @Override
+        public void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList) {
+            finish(result.getResponseCode());
+            mListener.onPurchaseResponse(result, purchasesList);
+        }
+
+        @Override
+        public void onFlowEnded() {
+            finish(IabMetrics.RESPONSE_CANCELED);
+        }
+
+        private void finish(int responseCode){
+            if(mFinished.compareAndSet(false, true)){
+                mMetrics.onFinish(IabMetrics.OP_LAUNCH_TO_UPDATE, responseCode, System.nanoTime() - mStart);
+            }
+        }
+    }
+
+
+    /**
+     * receive purchase updates no purchase flow is waiting for,like pending purchases completed in background
+     * @param listener
+     */
+    public void addPurchaseUpdateListener(OnIabPurchaseListener listener){
+        if(listener != null){
+            mPurchaseDispatcher.addSubscriber(listener);
+        }
+    }
+
+
+    public void removePurchaseUpdateListener(OnIabPurchaseListener listener){
+        mPurchaseDispatcher.removeSubscriber(listener);
+    }
+
+
+    /**
+     * a pending purchase is paid or cancelled as seen by a restore or a check,the purchase flow waiting for it ends
+     * @param purchaseToken
+     */
+    public void endPurchaseFlow(String purchaseToken){
+        if(purchaseToken != null){
+            mPurchaseDispatcher.endPendingFlow(purchaseToken);
+        }
+    }
+
+
+    /**
+     * deliver purchase updates on executor,by default on the thread of onPurchasesUpdated
+     * @param executor
+     */
+    public void setPurchaseUpdateExecutor(Executor executor){
+        mPurchaseDispatcher.setExecutor(executor);
+    }
+
+
+    /**
+     * start a purchase flow,the future completes with the first purchase update.
+     * with pending transaction,later updates of the flow are ignored by the future.
+     * @param activity
+     * @param billingFlowParams
+     * @return
+     */
+    public IabFuture<PurchaseListResult> launchPurchase(Activity activity, BillingFlowParams billingFlowParams){
+        final IabFuture<PurchaseListResult> future = new IabFuture<PurchaseListResult>();
+        launchPurchaseFlow(activity, billingFlowParams, new OnIabPurchaseListener() {
+            @Override
+            public void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList) {
+                future.complete(new PurchaseListResult(result, purchasesList));
+            }
+        });
+        return future;
     }
 
 
@@ -107,100 +435,343 @@ public class IabHelper implements PurchasesUpdatedListener{
      * @param listener
      */
     public void querySkuDetailsAsync(final SkuDetailsParams skuDetailsParams, final SkuDetailsResponseListener listener){
-        Log.i(TAG,"querySkuDetailsAsync");
-
         if(listener == null){
-            Log.e(TAG,"querySkuDetailsAsync: listener is null.");
+            IabLog.e(TAG,"querySkuDetailsAsync: listener is null.");
             return;
         }
 
+        querySkuDetails(skuDetailsParams).addListener(new IabFuture.Callback<SkuDetailsResult>() {
+            @Override
+            public void onComplete(SkuDetailsResult result) {
+                listener.onSkuDetailsResponse(result.billingResult, result.skuDetailsList);
+            }
+        }, mCallbackExecutor);
+    }
+
+
+    /**
+     * query sku details
+     * @param skuDetailsParams
+     * @return
+     */
+    public IabFuture<SkuDetailsResult> querySkuDetails(SkuDetailsParams skuDetailsParams){
+        return querySkuDetails(skuDetailsParams, IabRequestScheduler.PRIORITY_QUERY);
+    }
+
+
+    /**
+     * query sku details
+     * @param skuDetailsParams
+     * @param priority IabRequestScheduler.PRIORITY_QUERY,or PRIORITY_PREFETCH for lookups nobody is waiting for
+     * @return
+     */
+    public IabFuture<SkuDetailsResult> querySkuDetails(final SkuDetailsParams skuDetailsParams, int priority){
+        IabLog.d(TAG,"querySkuDetailsAsync");
+
+        final IabFuture<SkuDetailsResult> future = new IabFuture<SkuDetailsResult>();
         IabRunnable iabRunnable = new IabRunnable() {
             @Override
             public void run(BillingResult result) {
-                if(mBillingClient != null){
-                    mBillingClient.querySkuDetailsAsync(skuDetailsParams,listener);
-                }else{
-                    Log.e(TAG,"querySkuDetailsAsync: BillingClient is null.");
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(new SkuDetailsResult(result, null));
+                    return;
+                }
 
-                    BillingResult billingResult = BillingResult.newBuilder()
-                            .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                            .setDebugMessage("BillingClient is null.")
-                            .build();
-                    listener.onSkuDetailsResponse(billingResult, null);
+                IabBillingClient billingClient = mBillingClient;
+                if(billingClient != null){
+                    billingClient.querySkuDetailsAsync(skuDetailsParams, new SkuDetailsResponseListener() {
+                        @Override
+                        public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                            future.complete(new SkuDetailsResult(billingResult, skuDetailsList));
+                        }
+                    });
+                }else{
+                    IabLog.e(TAG,"querySkuDetailsAsync: BillingClient is null.");
+                    future.complete(new SkuDetailsResult(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), null));
                 }
             }
         };
 
-        executeServiceRequest(iabRunnable);
+        track(IabMetrics.OP_QUERY_SKU_DETAILS, future);
+        withTimeout(future, new SkuDetailsResult(timeoutResult(), null));
+        schedule(priority, iabRunnable, future);
+        return future;
     }
 
 
     /**
-     * query purchases,block till the result back
-     * @return
+     * query purchases,in-app and subs
+     * @param listener
      */
     public void queryPurchasesAsync(final OnIabQueryPurchasesListener listener){
-        Log.i(TAG,"queryPurchasesAsync");
-
         if(listener == null){
-            Log.e(TAG,"queryPurchasesAsync: listener is null.");
+            IabLog.e(TAG,"queryPurchasesAsync: listener is null.");
             return;
         }
 
+        queryPurchases().addListener(new IabFuture.Callback<PurchaseListResult>() {
+            @Override
+            public void onComplete(PurchaseListResult result) {
+                listener.onQueryPurchasesResponse(result.billingResult, result.purchasesList);
+            }
+        }, mCallbackExecutor);
+    }
+
+
+    /**
+     * query purchases,in-app and subs
+     * in parallel mode the two queries and the feature check run concurrently on a query executor,
+     * otherwise they run one after another on the billing thread.
+     * the future completes on a worker thread.
+     * @return
+     */
+    public IabFuture<PurchaseListResult> queryPurchases(){
+        IabLog.d(TAG,"queryPurchasesAsync");
+
+        final IabFuture<PurchaseListResult> future = new IabFuture<PurchaseListResult>();
         IabRunnable iabRunnable = new IabRunnable() {
             @Override
             public void run(BillingResult result) {
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(new PurchaseListResult(result, null));
+                    return;
+                }
+
+                final IabBillingClient billingClient = mBillingClient;
+                if(billingClient == null){
+                    IabLog.e(TAG,"queryPurchasesAsync: BillingClient is null.");
+                    future.complete(new PurchaseListResult(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), null));
+                    return;
+                }
 
-               if(mBillingClient != null){
-                   ArrayList<Purchase> resultList = new ArrayList<Purchase>();
-
-                    //1. query in-app
-                   Purchase.PurchasesResult inAppResult = mBillingClient.queryPurchases(BillingClient.SkuType.INAPP);
-
-                   //add to result list
-                   if (inAppResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
-                       List<Purchase> inAppPurchaseList = inAppResult.getPurchasesList();
-                       if(inAppPurchaseList != null && !inAppPurchaseList.isEmpty()) {
-                           resultList.addAll(inAppPurchaseList);
-                       }
-                   }else{
-                       Log.e(TAG,"queryPurchasesAsync: Get an error response trying to query in-app purchases.");
-                   }
-
-
-                   //2. query subs
-                   if(isSubscriptionSupported()){
-                       Purchase.PurchasesResult subResult = mBillingClient.queryPurchases(BillingClient.SkuType.SUBS);
-
-                       //add to result list
-                       if(subResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
-                           List<Purchase> subPurchaseList = subResult.getPurchasesList();
-                           if(subPurchaseList != null && !subPurchaseList.isEmpty()) {
-                               resultList.addAll(subPurchaseList);
-                           }
-                       }else{
-                           Log.e(TAG,"queryPurchasesAsync: Get an error response trying to query subscription purchases.");
-                       }
-                   }else{
-                       Log.i(TAG,"queryPurchasesAsync: don't support subscription.");
-                   }
-
-                   //callback
-                   listener.onQueryPurchasesResponse(inAppResult.getBillingResult(), resultList);
-
-               }else {
-                   Log.e(TAG,"queryPurchasesAsync: BillingClient is null.");
-
-                   BillingResult billingResult = BillingResult.newBuilder()
-                           .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                           .setDebugMessage("BillingClient is null.")
-                           .build();
-                   listener.onQueryPurchasesResponse(billingResult, null);
-               }
+                if(mParallelPurchaseQuery){
+                    queryPurchasesParallel(billingClient, future);
+                }else{
+                    //queryPurchases is a blocking ipc,keep it off the calling thread
+                    getBillingExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            //1. query in-app
+                            Purchase.PurchasesResult inAppResult = queryPurchasesLeg(billingClient, BillingClient.SkuType.INAPP);
+
+                            //2. query subs
+                            boolean subsSupported = isSubscriptionSupported();
+                            Purchase.PurchasesResult subResult = subsSupported
+                                    ? queryPurchasesLeg(billingClient, BillingClient.SkuType.SUBS) : null;
+
+                            //callback
+                            future.complete(mergePurchasesResults(inAppResult, subResult, subsSupported));
+                        }
+                    });
+                }
             }
         };
 
-        executeServiceRequest(iabRunnable);
+        track(IabMetrics.OP_QUERY_PURCHASES, future);
+        withTimeout(future, new PurchaseListResult(timeoutResult(), null));
+        schedule(IabRequestScheduler.PRIORITY_QUERY, iabRunnable, future);
+        return future;
+    }
+
+
+    /**
+     * query purchases of one sku type only,one ipc on the billing thread,
+     * used to re-validate subscriptions without a full in-app and subs restore.
+     * @param skuType
+     * @return
+     */
+    public IabFuture<PurchaseListResult> queryPurchases(final @BillingClient.SkuType String skuType){
+        IabLog.d(TAG,"queryPurchasesAsync: ", skuType);
+
+        final IabFuture<PurchaseListResult> future = new IabFuture<PurchaseListResult>();
+        IabRunnable iabRunnable = new IabRunnable() {
+            @Override
+            public void run(BillingResult result) {
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(new PurchaseListResult(result, null));
+                    return;
+                }
+
+                final IabBillingClient billingClient = mBillingClient;
+                if(billingClient == null){
+                    IabLog.e(TAG,"queryPurchasesAsync: BillingClient is null.");
+                    future.complete(new PurchaseListResult(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), null));
+                    return;
+                }
+
+                getBillingExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Purchase.PurchasesResult purchasesResult = queryPurchasesLeg(billingClient, skuType);
+                        List<Purchase> purchasesList = purchasesResult.getPurchasesList();
+                        boolean subs = BillingClient.SkuType.SUBS.equals(skuType);
+                        future.complete(new PurchaseListResult(purchasesResult.getBillingResult(), purchasesList,
+                                subs ? null : purchasesList, subs ? purchasesList : null));
+                    }
+                });
+            }
+        };
+
+        track(IabMetrics.OP_QUERY_PURCHASES, future);
+        withTimeout(future, new PurchaseListResult(timeoutResult(), null));
+        schedule(IabRequestScheduler.PRIORITY_QUERY, iabRunnable, future);
+        return future;
+    }
+
+
+    private void queryPurchasesParallel(final IabBillingClient billingClient, final IabFuture<PurchaseListResult> future){
+        final Purchase.PurchasesResult[] results = new Purchase.PurchasesResult[2];
+        final boolean[] subsSupported = new boolean[1];
+        final AtomicInteger remaining = new AtomicInteger(3);
+
+        final Runnable merge = new Runnable() {
+            @Override
+            public void run() {
+                if(remaining.decrementAndGet() != 0){
+                    return;
+                }
+
+                //merge on the last finished leg,callbacks hop to the callback executor
+                synchronized (results){
+                    future.complete(mergePurchasesResults(results[0], subsSupported[0] ? results[1] : null, subsSupported[0]));
+                }
+            }
+        };
+
+        ExecutorService executor = getQueryExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Purchase.PurchasesResult inAppResult = queryPurchasesLeg(billingClient, BillingClient.SkuType.INAPP);
+                synchronized (results){
+                    results[0] = inAppResult;
+                }
+                merge.run();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean supported = isSubscriptionSupported();
+                synchronized (results){
+                    subsSupported[0] = supported;
+                }
+                merge.run();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //ask for subs before the feature check is back,dropped if not supported
+                Purchase.PurchasesResult subResult = queryPurchasesLeg(billingClient, BillingClient.SkuType.SUBS);
+                synchronized (results){
+                    results[1] = subResult;
+                }
+                merge.run();
+            }
+        });
+    }
+
+
+    private Purchase.PurchasesResult queryPurchasesLeg(IabBillingClient billingClient, @BillingClient.SkuType String skuType){
+        long start = System.nanoTime();
+        Purchase.PurchasesResult purchasesResult = billingClient.queryPurchases(skuType);
+        onQueryLegFinished(BillingClient.SkuType.INAPP.equals(skuType) ? QUERY_LEG_INAPP : QUERY_LEG_SUBS, start);
+        return purchasesResult;
+    }
+
+
+    private void onQueryLegFinished(String leg, long startNanos){
+        OnIabQueryTimingListener timingListener = mQueryTimingListener;
+        if(timingListener != null){
+            timingListener.onQueryLegFinished(leg, (System.nanoTime() - startNanos) / 1000000L);
+        }
+    }
+
+
+    /**
+     * merge in-app and subs purchases
+     * the combined result is the first failed leg,or OK if both succeeded.
+     */
+    private static PurchaseListResult mergePurchasesResults(Purchase.PurchasesResult inAppResult, Purchase.PurchasesResult subResult,
+                                                            boolean subsSupported){
+        ArrayList<Purchase> resultList = new ArrayList<Purchase>();
+        List<Purchase> inAppPurchaseList = null;
+        List<Purchase> subPurchaseList = null;
+        BillingResult combinedResult = inAppResult.getBillingResult();
+
+        //add to result list
+        if (inAppResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+            inAppPurchaseList = inAppResult.getPurchasesList();
+            if(inAppPurchaseList != null && !inAppPurchaseList.isEmpty()) {
+                resultList.addAll(inAppPurchaseList);
+            }
+        }else{
+            IabLog.e(TAG,"queryPurchasesAsync: Get an error response trying to query in-app purchases.");
+        }
+
+        if(subsSupported){
+            //add to result list
+            if(subResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                subPurchaseList = subResult.getPurchasesList();
+                if(subPurchaseList != null && !subPurchaseList.isEmpty()) {
+                    resultList.addAll(subPurchaseList);
+                }
+            }else{
+                IabLog.e(TAG,"queryPurchasesAsync: Get an error response trying to query subscription purchases.");
+                if(combinedResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    combinedResult = subResult.getBillingResult();
+                }
+            }
+        }else{
+            IabLog.i(TAG,"queryPurchasesAsync: don't support subscription.");
+        }
+
+        return new PurchaseListResult(combinedResult, resultList, inAppPurchaseList, subPurchaseList);
+    }
+
+
+    private synchronized ExecutorService getBillingExecutor(){
+        if(mBillingExecutor == null){
+            mBillingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IabBilling");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mBillingExecutor;
+    }
+
+
+    private synchronized ExecutorService getQueryExecutor(){
+        if(mQueryExecutor == null){
+            mQueryExecutor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "IabQuery-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mQueryExecutor;
     }
 
 
@@ -211,30 +782,71 @@ public class IabHelper implements PurchasesUpdatedListener{
      * @param listener
      */
     public void consumeAsync(final ConsumeParams params, final ConsumeResponseListener listener){
-        Log.i(TAG,"consumeAsync");
-
         if(listener == null){
-            Log.e(TAG,"consumeAsync: listener is null.");
+            IabLog.e(TAG,"consumeAsync: listener is null.");
             return;
         }
 
+        consume(params).addListener(new IabFuture.Callback<ConsumeResult>() {
+            @Override
+            public void onComplete(ConsumeResult result) {
+                listener.onConsumeResponse(result.billingResult, result.purchaseToken);
+            }
+        }, mCallbackExecutor);
+    }
+
+
+    /**
+     * consume special purchase token
+     * @param params
+     * @return
+     */
+    public IabFuture<ConsumeResult> consume(ConsumeParams params){
+        return consume(params, IabRequestScheduler.PRIORITY_SETTLEMENT);
+    }
+
+
+    /**
+     * consume special purchase token
+     * @param params
+     * @param priority IabRequestScheduler.PRIORITY_SETTLEMENT by default
+     * @return
+     */
+    public IabFuture<ConsumeResult> consume(final ConsumeParams params, int priority){
+        IabLog.d(TAG,"consumeAsync");
+
+        final IabFuture<ConsumeResult> future = new IabFuture<ConsumeResult>();
         IabRunnable iabRunnable = new IabRunnable() {
             @Override
             public void run(final BillingResult result) {
-                if(mBillingClient != null){
-                    mBillingClient.consumeAsync(params,listener);
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(new ConsumeResult(result, ""));
+                    return;
+                }
+
+                IabBillingClient billingClient = mBillingClient;
+                if(billingClient != null){
+                    billingClient.consumeAsync(params, new ConsumeResponseListener() {
+                        @Override
+                        public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
+                            future.complete(new ConsumeResult(billingResult, purchaseToken));
+                        }
+                    });
                 }else{
-                    Log.e(TAG,"consumeAsync: BillingClient is null.");
-                    BillingResult billingResult = BillingResult.newBuilder()
-                            .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                            .setDebugMessage("BillingClient is null.")
-                            .build();
-                    listener.onConsumeResponse(billingResult, "");
+                    IabLog.e(TAG,"consumeAsync: BillingClient is null.");
+                    future.complete(new ConsumeResult(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), ""));
                 }
             }
         };
 
-        executeServiceRequest(iabRunnable);
+        track(IabMetrics.OP_CONSUME, future);
+        withTimeout(future, new ConsumeResult(timeoutResult(), ""));
+        schedule(priority, iabRunnable, future);
+        return future;
     }
 
 
@@ -276,31 +888,60 @@ public class IabHelper implements PurchasesUpdatedListener{
      */
     public void queryPurchaseHistoryAsync(
             final @BillingClient.SkuType String skuType, final PurchaseHistoryResponseListener listener){
-        Log.i(TAG,"queryPurchaseHistoryAsync");
-
         if(listener == null){
-            Log.e(TAG,"queryPurchaseHistoryAsync: listener is null.");
+            IabLog.e(TAG,"queryPurchaseHistoryAsync: listener is null.");
             return;
         }
 
+        queryPurchaseHistory(skuType).addListener(new IabFuture.Callback<PurchaseHistoryResult>() {
+            @Override
+            public void onComplete(PurchaseHistoryResult result) {
+                listener.onPurchaseHistoryResponse(result.billingResult, result.purchaseHistoryRecordList);
+            }
+        }, mCallbackExecutor);
+    }
+
+
+    /**
+     * query history purchases
+     * @param skuType
+     * @return
+     */
+    public IabFuture<PurchaseHistoryResult> queryPurchaseHistory(final @BillingClient.SkuType String skuType){
+        IabLog.d(TAG,"queryPurchaseHistoryAsync");
 
+        final IabFuture<PurchaseHistoryResult> future = new IabFuture<PurchaseHistoryResult>();
         IabRunnable iabRunnable = new IabRunnable() {
             @Override
             public void run(BillingResult result) {
-                if(mBillingClient != null){
-                    mBillingClient.queryPurchaseHistoryAsync(skuType,listener);
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(new PurchaseHistoryResult(result, null));
+                    return;
+                }
+
+                IabBillingClient billingClient = mBillingClient;
+                if(billingClient != null){
+                    billingClient.queryPurchaseHistoryAsync(skuType, new PurchaseHistoryResponseListener() {
+                        @Override
+                        public void onPurchaseHistoryResponse(BillingResult billingResult, List<PurchaseHistoryRecord> purchaseHistoryRecordList) {
+                            future.complete(new PurchaseHistoryResult(billingResult, purchaseHistoryRecordList));
+                        }
+                    });
                 }else{
-                    Log.e(TAG,"queryPurchaseHistoryAsync: BillingClient null.");
-                    BillingResult res = BillingResult.newBuilder()
-                            .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                            .setDebugMessage("BillingClient is null.")
-                            .build();
-                    listener.onPurchaseHistoryResponse(res, null);
+                    IabLog.e(TAG,"queryPurchaseHistoryAsync: BillingClient null.");
+                    future.complete(new PurchaseHistoryResult(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."), null));
                 }
             }
         };
 
-        executeServiceRequest(iabRunnable);
+        track(IabMetrics.OP_QUERY_HISTORY, future);
+        withTimeout(future, new PurchaseHistoryResult(timeoutResult(), null));
+        schedule(IabRequestScheduler.PRIORITY_QUERY, iabRunnable, future);
+        return future;
     }
 
 
@@ -311,40 +952,165 @@ public class IabHelper implements PurchasesUpdatedListener{
      * @param listener
      */
     public void acknowledge(final AcknowledgePurchaseParams acknowledgePurchaseParams, final AcknowledgePurchaseResponseListener listener){
-        Log.i(TAG,"acknowledge");
-
         if(listener == null){
-            Log.e(TAG,"acknowledge: listener is null.");
+            IabLog.e(TAG,"acknowledge: listener is null.");
             return;
         }
 
+        acknowledgePurchase(acknowledgePurchaseParams).addListener(new IabFuture.Callback<BillingResult>() {
+            @Override
+            public void onComplete(BillingResult result) {
+                listener.onAcknowledgePurchaseResponse(result);
+            }
+        }, mCallbackExecutor);
+    }
+
+
+    /**
+     * send a acknowledge notification to google
+     * @param acknowledgePurchaseParams
+     * @return
+     */
+    public IabFuture<BillingResult> acknowledgePurchase(AcknowledgePurchaseParams acknowledgePurchaseParams){
+        return acknowledgePurchase(acknowledgePurchaseParams, IabRequestScheduler.PRIORITY_SETTLEMENT);
+    }
+
+
+    /**
+     * send a acknowledge notification to google
+     * @param acknowledgePurchaseParams
+     * @param priority IabRequestScheduler.PRIORITY_SETTLEMENT by default
+     * @return
+     */
+    public IabFuture<BillingResult> acknowledgePurchase(final AcknowledgePurchaseParams acknowledgePurchaseParams, int priority){
+        IabLog.d(TAG,"acknowledge");
+
+        final IabFuture<BillingResult> future = new IabFuture<BillingResult>();
         IabRunnable runnable = new IabRunnable() {
             @Override
             public void run(BillingResult result) {
-                if(mBillingClient != null){
-                    mBillingClient.acknowledgePurchase(acknowledgePurchaseParams,listener);
+                if(future.isDone()){
+                    //cancelled or timed out while waiting for the connection
+                    return;
+                }
+                if(isConnectionFailure(result)){
+                    future.complete(result);
+                    return;
+                }
+
+                IabBillingClient billingClient = mBillingClient;
+                if(billingClient != null){
+                    billingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
+                        @Override
+                        public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+                            future.complete(billingResult);
+                        }
+                    });
                 }else{
-                    Log.e(TAG,"acknowledge: BillingClient null.");
-                    BillingResult res = BillingResult.newBuilder()
-                            .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                            .setDebugMessage("BillingClient is null.")
-                            .build();
-                    listener.onAcknowledgePurchaseResponse(res);
+                    IabLog.e(TAG,"acknowledge: BillingClient null.");
+                    future.complete(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."));
                 }
             }
         };
 
-        executeServiceRequest(runnable);
-
+        track(IabMetrics.OP_ACKNOWLEDGE, future);
+        withTimeout(future, timeoutResult());
+        schedule(priority, runnable, future);
+        return future;
     }
 
 
     private boolean isSubscriptionSupported(){
-        if(mBillingClient != null){
-            BillingResult result = mBillingClient.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS);
-            return  result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+        return isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS);
+    }
+
+
+    /**
+     * check if a feature is supported on the billing thread
+     * @param feature BillingClient.FeatureType
+     * @return
+     */
+    public IabFuture<Boolean> queryFeatureSupported(final String feature){
+        Boolean cached = mFeatureSupport.get(feature);
+        if(cached != null){
+            return IabFuture.completed(cached);
+        }
+
+        final IabFuture<Boolean> future = new IabFuture<Boolean>();
+        getBillingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(isFeatureSupported(feature));
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * check if a feature is supported,only the first check in a connection session asks google play.
+     * it blocks on an ipc when not cached,don't call it on main thread,use queryFeatureSupported instead.
+     * @param feature BillingClient.FeatureType
+     * @return
+     */
+    public boolean isFeatureSupported(String feature){
+        Boolean cached = mFeatureSupport.get(feature);
+        if(cached != null){
+            return cached;
+        }
+
+        IabBillingClient billingClient = mBillingClient;
+        if(billingClient == null){
+            return false;
+        }
+
+        if(mCallbackExecutor instanceof MainThreadExecutor && Looper.myLooper() == Looper.getMainLooper()){
+            IabLog.e(TAG,"isFeatureSupported: blocking ipc on main thread, feature: ", feature);
+        }
+
+        long start = System.nanoTime();
+        BillingResult result = billingClient.isFeatureSupported(feature);
+        if(BillingClient.FeatureType.SUBSCRIPTIONS.equals(feature)){
+            onQueryLegFinished(QUERY_LEG_FEATURE, start);
         }
-        return false;
+
+        int responseCode = result.getResponseCode();
+        boolean supported = responseCode == BillingClient.BillingResponseCode.OK;
+        //errors like SERVICE_DISCONNECTED are not an answer,ask again next time
+        if((supported || responseCode == BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED) && isServiceConnected()){
+            mFeatureSupport.put(feature, supported);
+        }
+        return supported;
+    }
+
+
+    /**
+     * cached feature support of current connection session,never asks google play
+     * @param feature BillingClient.FeatureType
+     * @return null if unknown
+     */
+    @Nullable
+    public Boolean getCachedFeatureSupport(String feature){
+        return mFeatureSupport.get(feature);
+    }
+
+
+    private void warmFeatureCache(){
+        if(!mWarmFeatureCache){
+            return;
+        }
+
+        getBillingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for(String feature : ALL_FEATURES){
+                    if(!isServiceConnected()){
+                        return;
+                    }
+                    isFeatureSupported(feature);
+                }
+            }
+        });
     }
 
 
@@ -352,70 +1118,388 @@ public class IabHelper implements PurchasesUpdatedListener{
      * dispose
      */
     public void dispose(){
-        Log.i(TAG,"dispose");
-        if(mBillingClient != null && mBillingClient.isReady()){
-            mBillingClient.endConnection();
-            mIsServiceConnected = false;
-            mBillingClient = null;
-            mPurchaseListener = null;
+        IabLog.i(TAG,"dispose");
+        List<IabRunnable> pending;
+        synchronized (mPendingRequests){
+            mConnectionState = STATE_CLOSED;
+            cancelReconnect();
+            cancelConnectionTimeout();
+            pending = drainPendingRequests();
+        }
+        //requests waiting for a slot run now and see the closed state
+        mRequestScheduler.flush();
+
+        IabBillingClient billingClient = mBillingClient;
+        mBillingClient = null;
+        if(billingClient != null && billingClient.isReady()){
+            billingClient.endConnection();
+        }
+        mPurchaseDispatcher.clear();
+        mFeatureSupport.clear();
+
+        synchronized (this){
+            if(mQueryExecutor != null){
+                mQueryExecutor.shutdown();
+                mQueryExecutor = null;
+            }
+            if(mBillingExecutor != null){
+                mBillingExecutor.shutdown();
+                mBillingExecutor = null;
+            }
         }
+
+        //queued requests will see a null BillingClient and report it to their listeners
+        runPendingRequests(pending, buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is disposed."));
     }
 
 
     /**
      * AIDL Connect
+     * only one connection attempt is in flight at a time,
+     * requests arriving meanwhile (or while a reconnect is scheduled) are queued and share its result.
      * @param iabRunnable
      */
     private void startServiceConnection(final IabRunnable iabRunnable) {
-        if(mIsServiceConnected){
-            Log.i(TAG,"Service is connected.");
+        //decided once under the lock,a circuit cooling down meanwhile can't change it
+        int action;
+        synchronized (mPendingRequests){
+            if(mConnectionState == STATE_CONNECTED){
+                action = CONNECTION_RUN;
+            }else if(mConnectionState == STATE_CLOSED || mBillingClient == null){
+                action = CONNECTION_CLIENT_NULL;
+            }else if(mConnectionState == STATE_CONNECTING){
+                mPendingRequests.add(iabRunnable);
+                action = CONNECTION_QUEUED;
+            }else if(!mReconnectPolicy.allowAttempt()){
+                action = CONNECTION_CIRCUIT_OPEN;
+            }else{
+                mConnectionState = STATE_CONNECTING;
+                mPendingRequests.add(iabRunnable);
+                action = CONNECTION_CONNECT;
+            }
+        }
+
+        switch (action){
+            case CONNECTION_RUN:
+                IabLog.d(TAG,"Service is connected.");
+                iabRunnable.run(buildResult(BillingClient.BillingResponseCode.OK, null));
+                break;
+            case CONNECTION_QUEUED:
+                IabLog.d(TAG,"Service is connecting, request is queued.");
+                break;
+            case CONNECTION_CLIENT_NULL:
+                IabLog.e(TAG,"startServiceConnection: BillingClient is null.");
+                iabRunnable.run(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."));
+                break;
+            case CONNECTION_CIRCUIT_OPEN:
+                IabLog.e(TAG,"startServiceConnection: too many failed reconnects, circuit is open.");
+                iabRunnable.run(buildResult(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE, "Reconnect circuit is open."));
+                break;
+            default:
+                connect();
+                break;
+        }
+    }
+
+
+    private void connect(){
+        final IabBillingClient billingClient = mBillingClient;
+        if(billingClient == null){
+            onConnectionFailed(buildResult(IAB_BILLING_CLIENT_NULL, "BillingClient is null."));
             return;
         }
 
-        if(mBillingClient != null) {
-            mBillingClient.startConnection(new BillingClientStateListener() {
-                @Override
-                public void onBillingSetupFinished(BillingResult billingResult) {
-                    int billingResponseCode = billingResult.getResponseCode();
-                    if (billingResponseCode == BillingClient.BillingResponseCode.OK) {
-                        mIsServiceConnected = true;
+        scheduleConnectionTimeout();
+        synchronized (mPendingRequests){
+            mConnectStartNanos = System.nanoTime();
+            mConnectTracked = true;
+        }
+        mMetrics.onStart(IabMetrics.OP_CONNECT);
+        billingClient.startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(BillingResult billingResult) {
+                if(billingClient != mBillingClient){
+                    //given up after a setup timeout,or disposed
+                    return;
+                }
+                cancelConnectionTimeout();
+                onConnectFinished(billingResult.getResponseCode());
+                if(billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                    IabLog.e(TAG,"onBillingSetupFinished", billingResult);
+                    if(!isRetryable(billingResult.getResponseCode()) || !scheduleReconnect()){
+                        onConnectionFailed(billingResult);
                     }
+                    return;
+                }
 
-                    iabRunnable.run(billingResult);
+                List<IabRunnable> pending;
+                synchronized (mPendingRequests){
+                    if(mConnectionState != STATE_CLOSED){
+                        mConnectionState = STATE_CONNECTED;
+                    }
+                    pending = drainPendingRequests();
                 }
+                mReconnectPolicy.onSuccess();
+                warmFeatureCache();
 
+                runPendingRequests(pending, billingResult);
+            }
 
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                if(billingClient != mBillingClient){
+                    return;
+                }
+                IabLog.e(TAG,"onBillingServiceDisconnected");
+                cancelConnectionTimeout();
+                onConnectFinished(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+                mFeatureSupport.clear();
+                //keep queued requests,they are replayed once the connection comes back
+                if(!scheduleReconnect()){
+                    onConnectionFailed(buildResult(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, null));
+                }
+            }
+        });
+    }
+
+
+    /**
+     * schedule a reconnect with backoff,requests arriving meanwhile are queued
+     * @return false if closed or the reconnect budget is used up
+     */
+    private boolean scheduleReconnect(){
+        synchronized (mPendingRequests){
+            if(mConnectionState == STATE_CLOSED){
+                return false;
+            }
+
+            long delay = mReconnectPolicy.nextDelay();
+            if(delay < 0){
+                IabLog.e(TAG,"scheduleReconnect: reconnect budget is used up.");
+                return false;
+            }
+
+            IabLog.i(TAG,"scheduleReconnect: delay(ms) ", delay);
+            mConnectionState = STATE_CONNECTING;
+            cancelReconnect();
+            mReconnectTask = mScheduler.schedule(new Runnable() {
                 @Override
-                public void onBillingServiceDisconnected() {
-                    mIsServiceConnected = false;
+                public void run() {
+                    synchronized (mPendingRequests){
+                        mReconnectTask = null;
+                        if(mConnectionState != STATE_CONNECTING){
+                            return;
+                        }
+                    }
+                    connect();
+                }
+            }, delay);
+            return true;
+        }
+    }
 
-                    BillingResult result = BillingResult.newBuilder()
-                            .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
-                            .build();
-                    iabRunnable.run(result);
+
+    /**
+     * fail queued requests if setup hangs,then give up the hung client and reconnect with a new one through
+     * the reconnect policy,because BillingClient rejects another startConnection while it is connecting.
+     */
+    private void scheduleConnectionTimeout(){
+        long timeoutMs = mConnectionTimeoutMs;
+        if(timeoutMs <= 0){
+            return;
+        }
+
+        synchronized (mPendingRequests){
+            cancelConnectionTimeout();
+            mConnectionTimeoutTask = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    List<IabRunnable> pending;
+                    IabBillingClient hungClient;
+                    synchronized (mPendingRequests){
+                        mConnectionTimeoutTask = null;
+                        if(mConnectionState != STATE_CONNECTING){
+                            return;
+                        }
+                        pending = drainPendingRequests();
+                        hungClient = mBillingClient;
+                        mBillingClient = mBillingClientFactory.create(IabHelper.this);
+                        mConnectionState = STATE_DISCONNECTED;
+                    }
+
+                    IabLog.e(TAG,"startServiceConnection: setup timeout, failed requests: ", pending.size());
+                    onConnectFinished(IAB_TIMEOUT);
+                    if(hungClient != null){
+                        hungClient.endConnection();
+                    }
+                    runPendingRequests(pending, timeoutResult());
+
+                    //later requests wait for the reconnect,or fail at once if the budget is used up
+                    if(!scheduleReconnect()){
+                        onConnectionFailed(timeoutResult());
+                    }
                 }
-            });
-        }else{
-            Log.e(TAG,"startServiceConnection: BillingClient is null.");
-            BillingResult result = BillingResult.newBuilder()
-                    .setResponseCode(IAB_BILLING_CLIENT_NULL)
-                    .setDebugMessage("BillingClient is null.")
-                    .build();
-            iabRunnable.run(result);
+            }, timeoutMs);
+        }
+    }
+
+
+    //record the connection attempt once,by setup result,disconnect or timeout
+    private void onConnectFinished(int responseCode){
+        long latencyNanos;
+        synchronized (mPendingRequests){
+            if(!mConnectTracked){
+                return;
+            }
+            mConnectTracked = false;
+            latencyNanos = System.nanoTime() - mConnectStartNanos;
         }
+        mMetrics.onFinish(IabMetrics.OP_CONNECT, responseCode, latencyNanos);
+    }
+
+
+    private void cancelConnectionTimeout(){
+        synchronized (mPendingRequests){
+            if(mConnectionTimeoutTask != null){
+                mConnectionTimeoutTask.cancel();
+                mConnectionTimeoutTask = null;
+            }
+        }
+    }
+
+
+    private void onConnectionFailed(BillingResult result){
+        List<IabRunnable> pending;
+        synchronized (mPendingRequests){
+            if(mConnectionState != STATE_CLOSED){
+                mConnectionState = STATE_DISCONNECTED;
+            }
+            pending = drainPendingRequests();
+        }
+
+        runPendingRequests(pending, result);
+    }
+
+
+    //must hold mPendingRequests
+    private void cancelReconnect(){
+        if(mReconnectTask != null){
+            mReconnectTask.cancel();
+            mReconnectTask = null;
+        }
+    }
+
+
+    private static boolean isRetryable(int responseCode){
+        return responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED
+                || responseCode == BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE
+                || responseCode == BillingClient.BillingResponseCode.SERVICE_TIMEOUT;
+    }
+
+
+    //wait for a slot of the priority class,the slot is released once future is done
+    private void schedule(int priority, final IabRunnable runnable, IabFuture<?> future){
+        mRequestScheduler.submit(priority, new Runnable() {
+            @Override
+            public void run() {
+                executeServiceRequest(runnable);
+            }
+        }, future);
     }
 
 
     private void executeServiceRequest(IabRunnable runnable){
-        if(mIsServiceConnected){
+        if(isServiceConnected()){
             runnable.run(null);
         }else {
-            //if billing service was disconnected,we try to reconnect 1 time.
+            //if billing service was disconnected,we try to reconnect,
+            //concurrent requests share one connection attempt or wait for the scheduled reconnect.
             startServiceConnection(runnable);
         }
     }
 
 
+    private boolean isServiceConnected(){
+        synchronized (mPendingRequests){
+            return mConnectionState == STATE_CONNECTED;
+        }
+    }
+
+
+    //must hold mPendingRequests
+    private List<IabRunnable> drainPendingRequests(){
+        List<IabRunnable> pending = new ArrayList<IabRunnable>(mPendingRequests);
+        mPendingRequests.clear();
+        return pending;
+    }
+
+
+    private static void runPendingRequests(List<IabRunnable> pending, BillingResult result){
+        for(IabRunnable runnable : pending){
+            runnable.run(result);
+        }
+    }
+
+
+    //record latency and response code once the future is done,nothing with the no-op metrics
+    private <T> void track(final int op, final IabFuture<T> future){
+        final IabMetrics metrics = mMetrics;
+        if(metrics == IabMetrics.NOOP){
+            return;
+        }
+
+        final long start = System.nanoTime();
+        metrics.onStart(op);
+        future.onDone(new Runnable() {
+            @Override
+            public void run() {
+                metrics.onFinish(op, responseCodeOf(future), System.nanoTime() - start);
+            }
+        });
+    }
+
+
+    private static int responseCodeOf(IabFuture<?> future){
+        Object result = future.getNow(null);
+        if(result instanceof BillingResult){
+            return ((BillingResult) result).getResponseCode();
+        }
+        if(result instanceof OperationResult){
+            return ((OperationResult) result).billingResult.getResponseCode();
+        }
+        return IabMetrics.RESPONSE_CANCELED;
+    }
+
+
+    //a queued request runs with the setup result,null or OK means connected
+    private static boolean isConnectionFailure(BillingResult result){
+        return result != null && result.getResponseCode() != BillingClient.BillingResponseCode.OK;
+    }
+
+
+    private <T> void withTimeout(IabFuture<T> future, T timeoutValue){
+        long timeoutMs = mOperationTimeoutMs;
+        if(timeoutMs > 0){
+            future.orTimeout(timeoutMs, mScheduler, timeoutValue);
+        }
+    }
+
+
+    private static BillingResult timeoutResult(){
+        return buildResult(IAB_TIMEOUT, "Google play doesn't respond in time.");
+    }
+
+
+    private static BillingResult buildResult(int responseCode, String debugMessage){
+        BillingResult.Builder builder = BillingResult.newBuilder().setResponseCode(responseCode);
+        if(debugMessage != null){
+            builder.setDebugMessage(debugMessage);
+        }
+        return builder.build();
+    }
+
+
     /********************************* onPurchasesUpdated *************************************/
 
     /**
@@ -426,9 +1510,23 @@ public class IabHelper implements PurchasesUpdatedListener{
      */
     @Override
     public void onPurchasesUpdated(BillingResult billingResult, @Nullable List<Purchase> purchases) {
-        Log.i(TAG,"onPurchasesUpdated");
-        if(mPurchaseListener != null){
-            mPurchaseListener.onPurchaseResponse(billingResult, purchases);
+        IabLog.d(TAG,"onPurchasesUpdated");
+        mPurchaseDispatcher.dispatch(billingResult, purchases);
+    }
+
+    /**
+     * default callback executor,run directly on main thread,otherwise post to it
+     */
+    private static class MainThreadExecutor implements Executor{
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            if(Looper.myLooper() == Looper.getMainLooper()){
+                command.run();
+            }else{
+                mHandler.post(command);
+            }
         }
     }
 
@@ -448,8 +1546,71 @@ public class IabHelper implements PurchasesUpdatedListener{
         void onQueryPurchasesResponse(BillingResult result, List<Purchase> purchasesList);
     }
 
+    //queryPurchasesAsync leg latency callback
+    public interface OnIabQueryTimingListener{
+        void onQueryLegFinished(String leg, long elapsedMillis);
+    }
+
     //pay callback
     public  interface OnIabPurchaseListener{
         void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList);
     }
+
+    /********************************* API Result *************************************/
+
+    public abstract static class OperationResult{
+        public final BillingResult billingResult;
+
+        OperationResult(BillingResult billingResult){
+            this.billingResult = billingResult;
+        }
+    }
+
+    public static class SkuDetailsResult extends OperationResult{
+        public final List<SkuDetails> skuDetailsList;
+
+        public SkuDetailsResult(BillingResult billingResult, List<SkuDetails> skuDetailsList){
+            super(billingResult);
+            this.skuDetailsList = skuDetailsList;
+        }
+    }
+
+    //query purchases or purchase update
+    public static class PurchaseListResult extends OperationResult{
+        public final List<Purchase> purchasesList;
+        //purchasesList by the query leg it came from,empty if the leg failed or the sku type is unknown,
+        //like the result of a purchase flow
+        public final List<Purchase> inAppPurchasesList;
+        public final List<Purchase> subsPurchasesList;
+
+        public PurchaseListResult(BillingResult billingResult, List<Purchase> purchasesList){
+            this(billingResult, purchasesList, null, null);
+        }
+
+        public PurchaseListResult(BillingResult billingResult, List<Purchase> purchasesList,
+                                  List<Purchase> inAppPurchasesList, List<Purchase> subsPurchasesList){
+            super(billingResult);
+            this.purchasesList = purchasesList;
+            this.inAppPurchasesList = inAppPurchasesList != null ? inAppPurchasesList : Collections.<Purchase>emptyList();
+            this.subsPurchasesList = subsPurchasesList != null ? subsPurchasesList : Collections.<Purchase>emptyList();
+        }
+    }
+
+    public static class ConsumeResult extends OperationResult{
+        public final String purchaseToken;
+
+        public ConsumeResult(BillingResult billingResult, String purchaseToken){
+            super(billingResult);
+            this.purchaseToken = purchaseToken;
+        }
+    }
+
+    public static class PurchaseHistoryResult extends OperationResult{
+        public final List<PurchaseHistoryRecord> purchaseHistoryRecordList;
+
+        public PurchaseHistoryResult(BillingResult billingResult, List<PurchaseHistoryRecord> purchaseHistoryRecordList){
+            super(billingResult);
+            this.purchaseHistoryRecordList = purchaseHistoryRecordList;
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingResult;
+
+/**
+ * level gated logger for billing
+ * messages are only built when the level is enabled,so disabled logs cost no string garbage.
+ * pass values as arguments instead of concatenating them,messages with two values have their own overloads.
+ */
+public final class IabLog {
+
+    private static volatile int sLevel = Log.INFO;
+
+    private IabLog(){
+    }
+
+
+    /**
+     * @param level android.util.Log level,Log.DEBUG for development
+     */
+    public static void setLevel(int level){
+        sLevel = level;
+    }
+
+
+    public static boolean isLoggable(int level){
+        return level >= sLevel;
+    }
+
+
+    public static void d(String tag, String msg){
+        log(Log.DEBUG, tag, msg);
+    }
+
+
+    public static void d(String tag, String msg, long value){
+        if(isLoggable(Log.DEBUG)){
+            log(Log.DEBUG, tag, msg + value);
+        }
+    }
+
+
+    public static void d(String tag, String msg, Object value){
+        if(isLoggable(Log.DEBUG)){
+            log(Log.DEBUG, tag, msg + value);
+        }
+    }
+
+
+    public static void d(String tag, String msg, long value, String msg2, long value2){
+        if(isLoggable(Log.DEBUG)){
+            log(Log.DEBUG, tag, msg + value + msg2 + value2);
+        }
+    }
+
+
+    public static void d(String tag, String msg, Object value, String msg2, Object value2){
+        if(isLoggable(Log.DEBUG)){
+            log(Log.DEBUG, tag, msg + value + msg2 + value2);
+        }
+    }
+
+
+    public static void d(String tag, String msg, BillingResult result){
+        if(isLoggable(Log.DEBUG)){
+            log(Log.DEBUG, tag, format(msg, result));
+        }
+    }
+
+
+    public static void i(String tag, String msg){
+        log(Log.INFO, tag, msg);
+    }
+
+
+    public static void i(String tag, String msg, long value){
+        if(isLoggable(Log.INFO)){
+            log(Log.INFO, tag, msg + value);
+        }
+    }
+
+
+    public static void i(String tag, String msg, Object value){
+        if(isLoggable(Log.INFO)){
+            log(Log.INFO, tag, msg + value);
+        }
+    }
+
+
+    public static void i(String tag, String msg, Object value, String msg2, long value2){
+        if(isLoggable(Log.INFO)){
+            log(Log.INFO, tag, msg + value + msg2 + value2);
+        }
+    }
+
+
+    public static void e(String tag, String msg){
+        log(Log.ERROR, tag, msg);
+    }
+
+
+    public static void e(String tag, String msg, long value){
+        if(isLoggable(Log.ERROR)){
+            log(Log.ERROR, tag, msg + value);
+        }
+    }
+
+
+    public static void e(String tag, String msg, Object value){
+        if(isLoggable(Log.ERROR)){
+            log(Log.ERROR, tag, msg + value);
+        }
+    }
+
+
+    public static void e(String tag, String msg, BillingResult result){
+        if(isLoggable(Log.ERROR)){
+            log(Log.ERROR, tag, format(msg, result));
+        }
+    }
+
+
+    private static String format(String msg, BillingResult result){
+        return msg + ": " + result.getResponseCode() + ",debugMsg: " + result.getDebugMessage();
+    }
+
+
+    private static void log(int level, String tag, String msg){
+        if(level < sLevel){
+            return;
+        }
+
+        switch (level){
+            case Log.DEBUG:
+                Log.d(tag, msg);
+                break;
+            case Log.INFO:
+                Log.i(tag, msg);
+                break;
+            case Log.WARN:
+                Log.w(tag, msg);
+                break;
+            case Log.ERROR:
+                Log.e(tag, msg);
+                break;
+            default:
+                Log.v(tag, msg);
+                break;
+        }
+    }
+}
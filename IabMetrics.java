@@ -0,0 +1,51 @@
+package com.tencent.imsdk.samples;
+
+/**
+ * metrics sink of billing operations
+ * implementations must not allocate,they are called on every operation.
+ */
+public interface IabMetrics {
+    int OP_CONNECT = 0;
+    int OP_QUERY_SKU_DETAILS = 1;
+    int OP_QUERY_PURCHASES = 2;
+    int OP_ACKNOWLEDGE = 3;
+    int OP_CONSUME = 4;
+    int OP_QUERY_HISTORY = 5;
+    //from launch to the first purchase update of the flow
+    int OP_LAUNCH_TO_UPDATE = 6;
+    int OP_COUNT = 7;
+
+    String[] OP_NAMES = {
+            "connect", "querySkuDetails", "queryPurchases", "acknowledge", "consume", "queryHistory", "launchToUpdate"
+    };
+
+    //response code of a cancelled operation
+    int RESPONSE_CANCELED = Integer.MIN_VALUE;
+
+
+    /**
+     * an operation is sent,in-flight + 1
+     * @param op
+     */
+    void onStart(int op);
+
+
+    /**
+     * an operation is finished,in-flight - 1
+     * @param op
+     * @param responseCode
+     * @param latencyNanos
+     */
+    void onFinish(int op, int responseCode, long latencyNanos);
+
+
+    IabMetrics NOOP = new IabMetrics() {
+        @Override
+        public void onStart(int op) {
+        }
+
+        @Override
+        public void onFinish(int op, int responseCode, long latencyNanos) {
+        }
+    };
+}
@@ -0,0 +1,97 @@
+package com.tencent.imsdk.samples;
+
+import java.util.Random;
+
+/**
+ * reconnect policy for billing service
+ * jittered exponential backoff with a max attempts budget,
+ * once the budget is used up the circuit opens and connection requests fail fast till cool down.
+ */
+public class IabReconnectPolicy {
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 30 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_COOL_DOWN_MS = 60 * 1000;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final long mCoolDownMs;
+    private final IabClock mClock;
+    private final Random mRandom;
+
+    private int mAttempts = 0;
+    private long mOpenUntil = 0;
+    private boolean mOpen = false;
+
+
+    public IabReconnectPolicy(){
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS, DEFAULT_COOL_DOWN_MS, IabClock.SYSTEM, new Random());
+    }
+
+
+    public IabReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, long coolDownMs,
+                              IabClock clock, Random random){
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mCoolDownMs = coolDownMs;
+        mClock = clock;
+        mRandom = random;
+    }
+
+
+    /**
+     * @return true if a connection attempt is allowed now,false while the circuit is open
+     */
+    public synchronized boolean allowAttempt(){
+        if(mOpen && mClock.now() < mOpenUntil){
+            return false;
+        }
+
+        if(mOpen){
+            //half open,give one more budget after cool down
+            mOpen = false;
+            mAttempts = 0;
+        }
+        return true;
+    }
+
+
+    /**
+     * delay before next reconnect
+     * @return delay in milliseconds,or -1 if the budget is used up and the circuit opens
+     */
+    public synchronized long nextDelay(){
+        if(mAttempts >= mMaxAttempts){
+            mOpen = true;
+            mOpenUntil = mClock.now() + mCoolDownMs;
+            return -1;
+        }
+
+        long delay = mBaseDelayMs << Math.min(mAttempts, 30);
+        if(delay <= 0 || delay > mMaxDelayMs){
+            delay = mMaxDelayMs;
+        }
+        mAttempts++;
+
+        //equal jitter,keep at least half of the delay
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+
+    /**
+     * connection is back,reset budget and close the circuit
+     */
+    public synchronized void onSuccess(){
+        mAttempts = 0;
+        mOpen = false;
+        mOpenUntil = 0;
+    }
+
+
+    public synchronized boolean isOpen(){
+        return mOpen && mClock.now() < mOpenUntil;
+    }
+}
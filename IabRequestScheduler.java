@@ -0,0 +1,208 @@
+package com.tencent.imsdk.samples;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * run billing requests by priority class in front of BillingClient
+ * every class has a concurrency cap,the background caps leave room for interactive requests,
+ * a request waiting longer than maxWait is served before higher classes so it never starves.
+ * a request holds its slot until its future is done.
+ */
+public class IabRequestScheduler {
+    public static final String TAG = "IabRequestScheduler";
+
+    //priority classes,high to low
+    public static final int PRIORITY_PURCHASE = 0;
+    public static final int PRIORITY_QUERY = 1;
+    public static final int PRIORITY_SETTLEMENT = 2;
+    public static final int PRIORITY_PREFETCH = 3;
+    static final int PRIORITY_COUNT = 4;
+
+    public static final int[] DEFAULT_CAPS = {1, 3, 2, 1};
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_MAX_WAIT_MS = 2000;
+
+    private final int[] mCaps;
+    private final int mMaxInFlight;
+    private final long mMaxWaitMs;
+    private final IabClock mClock;
+
+    //guarded by this
+    private final List<ArrayDeque<Request>> mQueues = new ArrayList<ArrayDeque<Request>>(PRIORITY_COUNT);
+    private final int[] mInFlight = new int[PRIORITY_COUNT];
+    private int mTotalInFlight = 0;
+    private boolean mDispatching = false;
+
+
+    public IabRequestScheduler(){
+        this(DEFAULT_CAPS, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_WAIT_MS, IabClock.SYSTEM);
+    }
+
+
+    /**
+     * @param caps concurrency cap of every priority class
+     * @param maxInFlight concurrency cap of all classes
+     * @param maxWaitMs a request waiting longer is served first
+     * @param clock
+     */
+    public IabRequestScheduler(int[] caps, int maxInFlight, long maxWaitMs, IabClock clock){
+        if(caps.length != PRIORITY_COUNT){
+            throw new IllegalArgumentException("caps must have " + PRIORITY_COUNT + " priority classes.");
+        }
+
+        mCaps = new int[PRIORITY_COUNT];
+        for(int i = 0; i < PRIORITY_COUNT; i++){
+            mCaps[i] = Math.max(1, caps[i]);
+            mQueues.add(new ArrayDeque<Request>());
+        }
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mMaxWaitMs = maxWaitMs;
+        mClock = clock;
+    }
+
+
+    /**
+     * run task when a slot of its class is free,the slot is released once done is done
+     * @param priority PRIORITY_*
+     * @param task
+     * @param done
+     */
+    public void submit(int priority, Runnable task, IabFuture<?> done){
+        synchronized (this){
+            mQueues.get(priority).add(new Request(priority, task, done, mClock.now()));
+        }
+        dispatch();
+    }
+
+
+    /**
+     * run every queued request now,ignoring caps,used when the helper is disposed
+     */
+    public void flush(){
+        List<Request> requests = new ArrayList<Request>();
+        synchronized (this){
+            for(ArrayDeque<Request> queue : mQueues){
+                requests.addAll(queue);
+                queue.clear();
+            }
+            for(Request request : requests){
+                mInFlight[request.priority]++;
+                mTotalInFlight++;
+            }
+        }
+
+        for(Request request : requests){
+            start(request);
+        }
+    }
+
+
+    public synchronized int getQueued(int priority){
+        return mQueues.get(priority).size();
+    }
+
+
+    public synchronized int getInFlight(int priority){
+        return mInFlight[priority];
+    }
+
+
+    //non-reentrant,a slot released while starting a request is picked up by the running loop
+    private void dispatch(){
+        while (true){
+            Request next;
+            synchronized (this){
+                if(mDispatching){
+                    return;
+                }
+                next = poll();
+                if(next == null){
+                    return;
+                }
+                mDispatching = true;
+            }
+
+            try {
+                start(next);
+            } finally {
+                synchronized (this){
+                    mDispatching = false;
+                }
+            }
+        }
+    }
+
+
+    private void start(final Request request){
+        request.done.onDone(new Runnable() {
+            @Override
+            public void run() {
+                release(request.priority);
+            }
+        });
+        if(!request.done.isDone()){
+            request.task.run();
+        }
+    }
+
+
+    private void release(int priority){
+        synchronized (this){
+            mInFlight[priority]--;
+            mTotalInFlight--;
+        }
+        dispatch();
+    }
+
+
+    //must hold this,take the starved request first,then by priority
+    private Request poll(){
+        if(mTotalInFlight >= mMaxInFlight){
+            return null;
+        }
+
+        long now = mClock.now();
+        ArrayDeque<Request> starved = null;
+        long oldest = Long.MAX_VALUE;
+        for(int i = 0; i < PRIORITY_COUNT; i++){
+            Request head = mQueues.get(i).peek();
+            if(head != null && mInFlight[i] < mCaps[i]
+                    && now - head.enqueueTime > mMaxWaitMs && head.enqueueTime < oldest){
+                starved = mQueues.get(i);
+                oldest = head.enqueueTime;
+            }
+        }
+
+        ArrayDeque<Request> queue = starved;
+        for(int i = 0; queue == null && i < PRIORITY_COUNT; i++){
+            if(!mQueues.get(i).isEmpty() && mInFlight[i] < mCaps[i]){
+                queue = mQueues.get(i);
+            }
+        }
+        if(queue == null){
+            return null;
+        }
+
+        Request request = queue.poll();
+        mInFlight[request.priority]++;
+        mTotalInFlight++;
+        return request;
+    }
+
+
+    private static class Request{
+        final int priority;
+        final Runnable task;
+        final IabFuture<?> done;
+        final long enqueueTime;
+
+        Request(int priority, Runnable task, IabFuture<?> done, long enqueueTime){
+            this.priority = priority;
+            this.task = task;
+            this.done = done;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tencent.imsdk.samples;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * delayed task scheduler used by IabHelper,replace it with a virtual scheduler in tests
+ */
+public interface IabScheduler {
+
+    /**
+     * run task after delayMillis
+     * @param task
+     * @param delayMillis
+     * @return handle to cancel the task
+     */
+    Cancellable schedule(Runnable task, long delayMillis);
+
+
+    interface Cancellable{
+        void cancel();
+    }
+
+
+    /**
+     * default scheduler,run tasks on main thread like BillingClient callbacks
+     */
+    class MainThreadScheduler implements IabScheduler{
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public Cancellable schedule(final Runnable task, long delayMillis) {
+            mHandler.postDelayed(task, delayMillis);
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                    mHandler.removeCallbacks(task);
+                }
+            };
+        }
+    }
+
+
+    /**
+     * run tasks on a ScheduledExecutorService,no Looper needed,used on a plain JVM
+     */
+    class ExecutorScheduler implements IabScheduler{
+        private final ScheduledExecutorService mExecutor;
+
+        public ExecutorScheduler(ScheduledExecutorService executor){
+            mExecutor = executor;
+        }
+
+        @Override
+        public Cancellable schedule(Runnable task, long delayMillis) {
+            final ScheduledFuture<?> future = mExecutor.schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                    future.cancel(false);
+                }
+            };
+        }
+    }
+}
@@ -16,11 +16,19 @@ import android.view.Menu;
 
 import com.android.billingclient.api.BillingClient;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity
         implements NavigationView.OnNavigationItemSelectedListener {
 
     PayHelper mHelper = null;
 
+    //prewarm billing at startup,set false to measure time to first purchase dialog without it
+    private static final boolean PREWARM = true;
+    private static final List<String> PREWARM_INAPP_SKUS = Arrays.asList("midas_product_1", "midas_product_2", "midas_product_3");
+    private static final List<String> PREWARM_SUBS_SKUS = Arrays.asList("testsub1", "testsub2");
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -44,6 +52,18 @@ public class MainActivity extends AppCompatActivity
         navigationView.setNavigationItemSelectedListener(this);
 
         mHelper = new PayHelper();
+        mHelper.setOnPurchaseDialogShownListener(new PayHelper.OnPurchaseDialogShownListener() {
+            @Override
+            public void onPurchaseDialogShown(String productId, long elapsedMillis, boolean first, boolean prewarmed) {
+                if(first){
+                    IabLog.i(PayHelper.TAG, prewarmed ? "time to first purchase dialog with prewarm(ms) "
+                            : "time to first purchase dialog(ms) ", elapsedMillis);
+                }
+            }
+        });
+        if(PREWARM){
+            mHelper.prewarm(this, PREWARM_INAPP_SKUS, PREWARM_SUBS_SKUS);
+        }
     }
 
     @Override
@@ -1,7 +1,9 @@
 package com.tencent.imsdk.samples;
 
 import android.app.Activity;
-import android.util.Log;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
 
 import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
@@ -12,27 +14,163 @@ import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.SkuDetails;
-import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 public class PayHelper implements
         IabHelper.OnIabPurchaseListener, ConsumeResponseListener {
     public static final String TAG = "PayHelper";
-    private IabHelper mIabHelper = null;
+    //built by init,or lazily off the main thread by prewarm
+    private volatile IabHelper mIabHelper = null;
+
+    //google play by default,injected to run on FakeBillingService
+    private final IabBillingClient.Factory mBillingClientFactory;
+    private final Executor mCallbackExecutor;
+    private volatile IabScheduler mScheduler;
+    //io thread,null for a background priority one on the activity path and a plain one otherwise
+    private final ThreadFactory mIoThreadFactory;
+
+    //sku details looked up before,a cache hit opens the purchase dialog without querying google play
+    private final SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache();
+    //merge sku lookups into batched queries
+    private volatile SkuDetailsBatcher mSkuDetailsBatcher = null;
+
+    //time to first purchase dialog
+    private volatile boolean mPrewarmed = false;
+    private volatile boolean mFirstDialogShown = false;
+    private volatile OnPurchaseDialogShownListener mDialogShownListener = null;
+
+    //purchase token state transitions,survive process death
+    private static final String JOURNAL_FILE_NAME = "purchase_journal";
+    private volatile PurchaseJournal mPurchaseJournal = null;
+
+    //file loads and writes,never on the main thread
+    private ExecutorService mIoExecutor = null;
+    //files are loaded,guarded by this
+    private boolean mReady = false;
+    //work waiting for the files,run on the callback executor once loaded,guarded by this
+    private final List<Runnable> mReadyActions = new ArrayList<Runnable>();
+
+    //offline entitlement snapshot,serve owned skus before google play answers
+    private static final String ENTITLEMENT_FILE_NAME = "entitlements";
+    //set yours signing key here,better from your backend than a constant in the apk
+    private static final byte[] ENTITLEMENT_KEY = "yours entitlement signing key".getBytes(Charset.forName("UTF-8"));
+    private volatile EntitlementStore mEntitlementStore = null;
+    private EntitlementStore.OnEntitlementChangedListener mEntitlementListener = null;
+    //subscriptions expire at their estimated renewal,0 while the period is unknown
+    private final EntitlementStore.ExpiryEstimator mExpiryEstimator = new EntitlementStore.ExpiryEstimator() {
+        @Override
+        public long getExpiryTime(Purchase purchase) {
+            SubscriptionEngine engine = mSubscriptionEngine;
+            SubscriptionEngine.Subscription subscription = engine != null ? engine.get(purchase.getSku()) : null;
+            return subscription != null ? subscription.renewalTime : 0;
+        }
+    };
+
+    //local purchase history,paged from file instead of loading whole history
+    private static final String PURCHASE_HISTORY_FILE_NAME = "purchase_history";
+    private volatile PurchaseHistoryStore mPurchaseHistoryStore = null;
+
+    //backend verification before entitlement and acknowledge,skipped if not set
+    private volatile PurchaseVerifier mPurchaseVerifier = null;
+
+    //last known purchases,restores and targeted queries only work on the differences
+    private final PurchaseDiffer mPurchaseDiffer = new PurchaseDiffer();
+
+    //in-flight and completed purchase tokens
+    private final PurchaseTokenRegistry mTokenRegistry = new PurchaseTokenRegistry();
+
+    //active subscriptions,re-validated near renewal
+    private volatile SubscriptionEngine mSubscriptionEngine = null;
+    //sku -> sku type,from SkuDetails at launch and the query leg a purchase came from
+    private final Map<String, String> mSkuTypes = new ConcurrentHashMap<String, String>();
+
+    //pending purchases,checked with backoff until paid or cancelled
+    private volatile PendingPurchaseTracker mPendingTracker = null;
+
+    //post-mortem trail of purchase events,no strings built on the hot path
+    private final IabEventLog mEventLog = new IabEventLog();
+
+    //restore settlement,bounded acknowledge/consume concurrency,retried with backoff
+    private volatile PurchaseSettlement mSettlement = null;
+
+
+    public PayHelper() {
+        this(null, null, null, null);
+    }
+
+
+    /**
+     * run on another billing client,like FakeBillingService in a load test on a plain JVM.
+     * call init(File) instead of init(Activity).
+     * @param factory null for google play
+     * @param callbackExecutor null for main thread
+     * @param scheduler null for main thread
+     */
+    public PayHelper(IabBillingClient.Factory factory, Executor callbackExecutor, IabScheduler scheduler) {
+        this(factory, callbackExecutor, scheduler, null);
+    }
+
+
+    /**
+     * @param factory null for google play
+     * @param callbackExecutor null for main thread
+     * @param scheduler null for main thread
+     * @param ioThreadFactory thread of the file loads and writes,null for a background priority thread
+     *                        with init(Activity) and a plain daemon thread with init(File)
+     */
+    public PayHelper(IabBillingClient.Factory factory, Executor callbackExecutor, IabScheduler scheduler,
+                     ThreadFactory ioThreadFactory) {
+        mBillingClientFactory = factory;
+        mCallbackExecutor = callbackExecutor;
+        mScheduler = scheduler;
+        mIoThreadFactory = ioThreadFactory;
+    }
 
 
     //purchase update callback
     @Override
     public void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList) {
-        Log.d(TAG, "onPurchaseResponse: " + result.getResponseCode() + ",debugMsg: " + result.getDebugMessage());
+        IabLog.d(TAG, "onPurchaseResponse", result);
 
+        SubscriptionEngine engine = mSubscriptionEngine;
+        PendingPurchaseTracker tracker = mPendingTracker;
+        if (engine == null || tracker == null) {
+            //disposed
+            return;
+        }
         if (result.getResponseCode() == BillingClient.BillingResponseCode.OK
                 && purchasesList != null) {
             for(Purchase purchase : purchasesList){
-                handlePurchase(purchase);
+                mEventLog.record(IabEventLog.EVENT_PURCHASE_UPDATE, purchase.getSku(), purchase.getPurchaseToken(),
+                        purchase.getPurchaseState(), result.getResponseCode(), IabEventLog.NO_LATENCY);
+                if(isSubscription(purchase)){
+                    engine.onPurchaseUpdated(purchase);
+                }
+                //a tracked pending purchase is paid,settled by the tracker
+                if(tracker.onPurchaseUpdated(purchase)){
+                    continue;
+                }
+                processPurchase(purchase, new OnPurchaseHandledListener() {
+                    @Override
+                    public void onPurchaseHandled(Purchase handledPurchase, BillingResult handledResult) {
+                        onPurchaseSettled(handledPurchase, handledResult);
+                    }
+                });
             }
         }
     }
@@ -40,16 +178,98 @@ public class PayHelper implements
     //consume callback
     @Override
     public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
-        Log.d(TAG, "onConsumeResponse: " + billingResult.getResponseCode() + ",debugMsg: " + billingResult.getDebugMessage());
+        IabLog.d(TAG, "onConsumeResponse", billingResult);
+    }
+
+    //init IabHelper,only the first call after construction or dispose does the work
+    public synchronized void init(Activity activity) {
+        if(mIabHelper != null){
+            return;
+        }
+
+        init(activity.getFilesDir(), mBillingClientFactory != null ? mBillingClientFactory : PlayBillingClient.factory(activity),
+                mIoThreadFactory != null ? mIoThreadFactory : backgroundThreadFactory("IabIo"));
+    }
+
+
+    /**
+     * init with the injected billing client factory,files are kept in filesDir
+     * @param filesDir
+     */
+    public synchronized void init(File filesDir) {
+        if(mIabHelper != null){
+            return;
+        }
+        if(mBillingClientFactory == null){
+            IabLog.e(TAG, "init: no billing client factory,use init(Activity).");
+            return;
+        }
+
+        //android.os.Process is not there on a plain JVM
+        init(filesDir, mBillingClientFactory, mIoThreadFactory != null ? mIoThreadFactory : daemonThreadFactory("IabIo"));
     }
 
-    //init IabHelper
-    public void init(Activity activity) {
-        mIabHelper = new IabHelper(activity);
+
+    //no file is touched here,files are loaded on the io executor while the billing service binds
+    private synchronized void init(File filesDir, IabBillingClient.Factory factory, ThreadFactory ioThreadFactory) {
+        if(mScheduler == null){
+            mScheduler = new IabScheduler.MainThreadScheduler();
+        }
+        IabScheduler scheduler = mScheduler;
+
+        mIoExecutor = Executors.newSingleThreadExecutor(ioThreadFactory);
+        mIabHelper = mCallbackExecutor != null
+                ? new IabHelper(factory, mCallbackExecutor, scheduler)
+                : new IabHelper(factory);
+        //restore in-app and subs purchases concurrently,off the main thread
+        mIabHelper.setParallelPurchaseQuery(true);
+        //purchases completed in background,like pending purchases
+        mIabHelper.addPurchaseUpdateListener(this);
+        mSkuDetailsBatcher = new SkuDetailsBatcher(mIabHelper, mSkuDetailsCache, scheduler, SkuDetailsBatcher.DEFAULT_WINDOW_MS);
+        mSettlement = new PurchaseSettlement(new PurchaseSettlement.Settler() {
+            @Override
+            public void settle(Purchase purchase, final OnPurchaseHandledListener listener) {
+                processPurchase(purchase, new OnPurchaseHandledListener() {
+                    @Override
+                    public void onPurchaseHandled(Purchase handledPurchase, BillingResult result) {
+                        onPurchaseSettled(handledPurchase, result);
+                        listener.onPurchaseHandled(handledPurchase, result);
+                    }
+                });
+            }
+        }, PurchaseSettlement.DEFAULT_MAX_CONCURRENCY, PurchaseSettlement.DEFAULT_MAX_RETRIES,
+                scheduler, PurchaseSettlement.DEFAULT_RETRY_DELAY_MS);
+        mSubscriptionEngine = new SubscriptionEngine(new SubscriptionEngine.Revalidator() {
+            @Override
+            public void revalidate() {
+                revalidateSubscriptions();
+            }
+        }, mSkuDetailsCache, scheduler);
+        mPendingTracker = new PendingPurchaseTracker(new PendingPurchaseTracker.Checker() {
+            @Override
+            public void check(PendingPurchaseTracker tracker, String skuType) {
+                checkPendingPurchases(tracker, skuType);
+            }
+        }, new PendingPurchaseTracker.OnPendingPurchaseListener() {
+            @Override
+            public void onPendingPurchasesCompleted(List<Purchase> purchases) {
+                for (Purchase purchase : purchases) {
+                    endPurchaseFlow(purchase.getPurchaseToken());
+                }
+                settle(purchases);
+            }
+
+            @Override
+            public void onPendingPurchaseCancelled(String sku, String purchaseToken) {
+                IabLog.d(TAG, "onPendingPurchaseCancelled: ", sku);
+                endPurchaseFlow(purchaseToken);
+            }
+        }, scheduler);
+        loadFiles(filesDir, mIoExecutor, mIabHelper.getCallbackExecutor());
         mIabHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
             @Override
             public void onIabSetupFinished(BillingResult result) {
-                Log.d(TAG, "onIabSetupFinished: " + result.getResponseCode() + ",debugMsg: " + result.getDebugMessage());
+                IabLog.d(TAG, "onIabSetupFinished", result);
 
                 if(result.getResponseCode() == BillingClient.BillingResponseCode.OK){
                     //query purchases,in-app and subs
@@ -59,58 +279,273 @@ public class PayHelper implements
         });
     }
 
-    //query purchases,in-app and subs
+    /**
+     * prewarm billing at app start,call on main thread from onCreate.
+     * nothing runs until the main thread is idle,then IabHelper is built and bound on a background thread,
+     * and the sku catalog is prefetched so the first pay() opens the purchase dialog from cache.
+     * @param activity
+     * @param inAppSkus
+     * @param subsSkus
+     */
+    public void prewarm(final Activity activity, final Collection<String> inAppSkus, final Collection<String> subsSkus) {
+        mPrewarmed = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                //behind the ui threads,prewarm must not take cpu from the first frames
+                backgroundThreadFactory("IabPrewarm").newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        //BillingClient is set up here and files on the io executor,not on main thread
+                        init(activity);
+                        IabLog.d(TAG, "prewarm: init(ms) ", (System.nanoTime() - start) / 1000000L);
+
+                        prefetchSkus(inAppSkus, BillingClient.SkuType.INAPP, null);
+                        prefetchSkus(subsSkus, BillingClient.SkuType.SUBS, null);
+                    }
+                }).start();
+                //run once
+                return false;
+            }
+        });
+    }
+
+
+    /**
+     * prewarm with the injected billing client factory now,on the calling thread,like init(File)
+     * @param filesDir
+     * @param inAppSkus
+     * @param subsSkus
+     */
+    public void prewarm(File filesDir, Collection<String> inAppSkus, Collection<String> subsSkus) {
+        mPrewarmed = true;
+        init(filesDir);
+        prefetchSkus(inAppSkus, BillingClient.SkuType.INAPP, null);
+        prefetchSkus(subsSkus, BillingClient.SkuType.SUBS, null);
+    }
+
+
+    /**
+     * verify PURCHASED purchases on backend before entitlement and acknowledge
+     * the verifier is yours,it is kept across dispose and init,shut it down when you are done with it.
+     * a shut down verifier answers VERDICT_ERROR,its purchases are not acknowledged and are retried on next restore.
+     * @param verifier null to skip verification
+     */
+    public void setPurchaseVerifier(PurchaseVerifier verifier) {
+        mPurchaseVerifier = verifier;
+    }
+
+
+    /**
+     * receive tap to purchase dialog latency of every pay(),used to compare startup with and without prewarm
+     * @param listener
+     */
+    public void setOnPurchaseDialogShownListener(OnPurchaseDialogShownListener listener) {
+        mDialogShownListener = listener;
+    }
+
+
+    //query purchases,in-app and subs,after the journal is loaded so finished steps are skipped
     public void queryPurchases() {
-        mIabHelper.queryPurchasesAsync(new IabHelper.OnIabQueryPurchasesListener() {
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                restorePurchases();
+            }
+        });
+    }
+
+
+    private void restorePurchases() {
+        final IabHelper iabHelper = mIabHelper;
+        if (iabHelper == null) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        iabHelper.queryPurchases().addListener(new IabFuture.Callback<IabHelper.PurchaseListResult>() {
             @Override
-            public void onQueryPurchasesResponse(BillingResult result, List<Purchase> purchasesList) {
-                Log.d(TAG, "onQueryPurchasesResponse: " + result.getResponseCode() + ",debugMsg: " + result.getDebugMessage());
+            public void onComplete(IabHelper.PurchaseListResult listResult) {
+                BillingResult result = listResult.billingResult;
+                List<Purchase> purchasesList = listResult.purchasesList;
+                IabLog.d(TAG, "onQueryPurchasesResponse", result);
+                mEventLog.record(IabEventLog.EVENT_QUERY_PURCHASES, null, null, 0,
+                        result.getResponseCode(), (System.nanoTime() - start) / 1000000L);
 
+                SubscriptionEngine engine = mSubscriptionEngine;
+                PendingPurchaseTracker tracker = mPendingTracker;
+                if (engine == null || tracker == null) {
+                    //disposed
+                    return;
+                }
                 if (result.getResponseCode() == BillingClient.BillingResponseCode.OK
                     && purchasesList != null) {
-                    for(Purchase purchase : purchasesList){
-                        handlePurchase(purchase);
+                    List<Purchase> inAppList = listResult.inAppPurchasesList;
+                    List<Purchase> subsList = listResult.subsPurchasesList;
+                    rememberSkuTypes(inAppList, BillingClient.SkuType.INAPP);
+                    rememberSkuTypes(subsList, BillingClient.SkuType.SUBS);
+                    engine.update(subsList);
+                    //snapshot served at startup is replaced by what google play says now,after the renewal estimates
+                    EntitlementStore entitlementStore = mEntitlementStore;
+                    if (entitlementStore != null) {
+                        entitlementStore.reconcile(entitlementsOf(purchasesList), mExpiryEstimator, mEntitlementListener);
+                    }
+                    //paid or cancelled pending purchases leave the tracker,the diff below settles paid ones
+                    tracker.onRestored(purchasesList);
+                    for (Purchase purchase : purchasesList) {
+                        if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+                            endPurchaseFlow(purchase.getPurchaseToken());
+                        }
                     }
+
+                    //only new or changed purchases need work,settled ones are skipped
+                    List<Purchase> changedList = mPurchaseDiffer.diff(inAppList, BillingClient.SkuType.INAPP, null);
+                    changedList.addAll(mPurchaseDiffer.diff(subsList, BillingClient.SkuType.SUBS, null));
+                    if (changedList.isEmpty()) {
+                        return;
+                    }
+
+                    //settle with bounded concurrency instead of firing every acknowledge/consume at once
+                    settle(changedList);
                 }
             }
+        }, iabHelper.getCallbackExecutor());
+    }
+
+
+    private void settle(List<Purchase> purchases) {
+        PurchaseSettlement settlement = mSettlement;
+        if (settlement == null) {
+            return;
+        }
+
+        settlement.settle(purchases, new PurchaseSettlement.OnSettlementFinishedListener() {
+            @Override
+            public void onSettlementFinished(Map<String, BillingResult> outcomes) {
+                IabLog.d(TAG, "onSettlementFinished: ", outcomes.size());
+            }
         });
     }
 
-    //query product sku details before purchase
-    public void querySkuDetails(String productId, @BillingClient.SkuType String type, SkuDetailsResponseListener listener) {
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.add(productId);
 
-        SkuDetailsParams skuDetailsParams = SkuDetailsParams.newBuilder()
-                .setSkusList(skuList)
-                .setType(type)
-                .build();
+    //settled purchases are known to the differ,failed ones are forgotten so the next query tries them again
+    private void onPurchaseSettled(Purchase purchase, BillingResult result) {
+        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+            mPurchaseDiffer.forget(purchase.getPurchaseToken());
+        } else if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+            mPurchaseDiffer.settled(purchase, isSubscription(purchase) ? BillingClient.SkuType.SUBS : BillingClient.SkuType.INAPP);
+        }
+    }
+
+    //query product sku details before purchase,cached details are returned without querying google play
+    public void querySkuDetails(final String productId, @BillingClient.SkuType final String type, final SkuDetailsResponseListener listener) {
+        SkuDetails cached = mSkuDetailsCache.get(type, productId);
+        if(cached != null){
+            //stale-while-revalidate,serve the cached one and refresh in background
+            if(mSkuDetailsCache.claimRefresh(type, productId)){
+                refreshSkuDetails(productId, type);
+            }
+
+            BillingResult billingResult = BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.OK)
+                    .build();
+            listener.onSkuDetailsResponse(billingResult, Collections.singletonList(cached));
+            return;
+        }
 
-        mIabHelper.querySkuDetailsAsync(skuDetailsParams, listener);
+        //merged with other lookups,the batcher fills the cache
+        SkuDetailsBatcher batcher = mSkuDetailsBatcher;
+        if(batcher == null){
+            IabLog.e(TAG, "querySkuDetails: not init.");
+            return;
+        }
+        batcher.querySku(productId, type, listener);
     }
 
 
-    //purchase
-    public void pay(final Activity activity, final String productId, String type) {
+    private void refreshSkuDetails(final String productId, @BillingClient.SkuType final String type){
+        SkuDetailsBatcher batcher = mSkuDetailsBatcher;
+        if(batcher == null){
+            return;
+        }
+        batcher.querySku(productId, type, new SkuDetailsResponseListener() {
+            @Override
+            public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                IabLog.d(TAG, "refreshSkuDetails", billingResult);
+            }
+        });
+    }
+
+
+    //prefetch a sku catalog in as few queries as possible,listener is optional
+    public void prefetchSkus(Collection<String> productIds, @BillingClient.SkuType String type, SkuDetailsResponseListener listener) {
+        SkuDetailsBatcher batcher = mSkuDetailsBatcher;
+        if(batcher == null){
+            IabLog.e(TAG, "prefetchSkus: not init.");
+            return;
+        }
+        batcher.prefetchSkus(productIds, type, listener);
+    }
+
+
+    //dump with getEventLog().dump() after a failure
+    public IabEventLog getEventLog() {
+        return mEventLog;
+    }
+
+
+    public SkuDetailsCache getSkuDetailsCache() {
+        return mSkuDetailsCache;
+    }
+
+
+    //purchase,init on first use if neither init nor prewarm was called
+    //the purchase waits for the files of a cold init instead of blocking the main thread on them
+    public void pay(final Activity activity, final String productId, final String type) {
+        final long tapNanos = System.nanoTime();
+        init(activity);
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                launchPurchase(activity, productId, type, tapNanos);
+            }
+        });
+    }
+
+
+    private void launchPurchase(final Activity activity, final String productId, String type, final long tapNanos) {
         //query sku details first
         querySkuDetails(productId, type, new SkuDetailsResponseListener() {
             @Override
             public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
-                Log.d(TAG, "onSkuDetailsResponse: " + billingResult.getResponseCode() + ",debugMsg: " + billingResult.getDebugMessage());
+                IabLog.d(TAG, "onSkuDetailsResponse", billingResult);
 
                 if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK
                     && skuDetailsList != null) {
                     for(SkuDetails skuDetails : skuDetailsList){
                         if (productId.equals(skuDetails.getSku())) {
-                            Log.d(TAG, "SkuDetails: " + skuDetails.toString());
+                            mSkuTypes.put(productId, skuDetails.getType());
+                            mEventLog.record(IabEventLog.EVENT_LAUNCH, productId, null, 0,
+                                    billingResult.getResponseCode(), (System.nanoTime() - tapNanos) / 1000000L);
 
                             BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder()
                                     .setSkuDetails(skuDetails)
                                     .setAccountId("yours account id")
                                     .setDeveloperId("yours developer id")
                                     .build();
+                            IabHelper iabHelper = mIabHelper;
+                            if (iabHelper == null) {
+                                return;
+                            }
                             //purchase
-                            mIabHelper.launchPurchaseFlow(activity, billingFlowParams, PayHelper.this);
+                            iabHelper.launchPurchaseFlow(activity, billingFlowParams, PayHelper.this)
+                                    .addListener(new IabFuture.Callback<BillingResult>() {
+                                        @Override
+                                        public void onComplete(BillingResult result) {
+                                            onPurchaseDialogShown(productId, result, tapNanos);
+                                        }
+                                    });
                         }
                     }
 
@@ -120,73 +555,759 @@ public class PayHelper implements
     }
 
 
+    private void onPurchaseDialogShown(String productId, BillingResult result, long tapNanos){
+        if(result.getResponseCode() != BillingClient.BillingResponseCode.OK){
+            return;
+        }
+
+        long elapsedMillis = (System.nanoTime() - tapNanos) / 1000000L;
+        boolean first = !mFirstDialogShown;
+        mFirstDialogShown = true;
+        IabLog.i(TAG, !first ? "onPurchaseDialogShown: " : mPrewarmed ? "onPurchaseDialogShown first with prewarm: "
+                : "onPurchaseDialogShown first: ", productId, ", ms: ", elapsedMillis);
+
+        OnPurchaseDialogShownListener listener = mDialogShownListener;
+        if(listener != null){
+            listener.onPurchaseDialogShown(productId, elapsedMillis, first, mPrewarmed);
+        }
+    }
+
+
+    //drop duplicate work of a purchase token delivered by both purchase update and query
+    private void processPurchase(final Purchase purchase, final OnPurchaseHandledListener listener){
+        if(purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED){
+            handlePurchase(purchase, listener);
+            return;
+        }
+
+        final String purchaseToken = purchase.getPurchaseToken();
+        boolean owner = mTokenRegistry.begin(purchaseToken, new PurchaseTokenRegistry.OnTokenCompleteListener() {
+            @Override
+            public void onTokenComplete(String token, BillingResult result) {
+                if(listener != null){
+                    listener.onPurchaseHandled(purchase, result);
+                }
+            }
+        });
+        if(!owner){
+            IabLog.d(TAG,"processPurchase: duplicate purchase token,attached to the running work.");
+            return;
+        }
+
+        handlePurchase(purchase, new OnPurchaseHandledListener() {
+            @Override
+            public void onPurchaseHandled(Purchase handledPurchase, BillingResult result) {
+                mTokenRegistry.complete(purchaseToken, result);
+            }
+        });
+    }
+
+
     //handle purchase result
-    private void handlePurchase(final Purchase purchase){
-        Log.d(TAG,"handlePurchase | "+purchase.toString());
-        Log.d(TAG,"handlePurchase purchaseState: "+purchase.getPurchaseState());
+    //steps already finished in the journal are skipped,so a restore only resumes the unfinished ones
+    private void handlePurchase(final Purchase purchase, final OnPurchaseHandledListener listener){
+        mEventLog.record(IabEventLog.EVENT_HANDLE, purchase.getSku(), purchase.getPurchaseToken(),
+                purchase.getPurchaseState(), 0, IabEventLog.NO_LATENCY);
 
         if(purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED){
+            final String purchaseToken = purchase.getPurchaseToken();
+            final int journalState = getJournalState(purchaseToken);
+            if(journalState == PurchaseJournal.STATE_CONSUMED){
+                IabLog.d(TAG,"handlePurchase: already consumed.");
+                notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.OK, null);
+                return;
+            }
+            recordJournal(purchaseToken, PurchaseJournal.STATE_SEEN);
 
-            //1.you can provide your entitlement to user before acknowledge,or provide at step 3
+            //0.verify on backend before anything is granted,verified tokens are journaled as entitled
+            final PurchaseVerifier verifier = mPurchaseVerifier;
+            if(verifier != null && journalState < PurchaseJournal.STATE_ENTITLED){
+                final long verifyStart = System.nanoTime();
+                verifier.verify(purchase, new PurchaseVerifier.OnPurchaseVerifiedListener() {
+                    @Override
+                    public void onPurchaseVerified(String token, int verdict) {
+                        mEventLog.record(IabEventLog.EVENT_VERIFY, purchase.getSku(), token, purchase.getPurchaseState(),
+                                verdict, (System.nanoTime() - verifyStart) / 1000000L);
+                        if(verdict == PurchaseVerifier.VERDICT_VALID){
+                            acknowledgeAndConsume(purchase, journalState, listener);
+                        }else if(verdict == PurchaseVerifier.VERDICT_INVALID){
+                            //not acknowledged,google play refunds it in 3 days
+                            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.DEVELOPER_ERROR, "Purchase failed verification.");
+                        }else{
+                            //retryable,verified again on next restore
+                            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.ERROR, "Purchase verification unavailable.");
+                        }
+                    }
+                });
+                return;
+            }
 
+            acknowledgeAndConsume(purchase, journalState, listener);
+        }else if(purchase.getPurchaseState() == Purchase.PurchaseState.PENDING){
+            //nothing to do until paid,the tracker checks it and settles it then
+            PendingPurchaseTracker tracker = mPendingTracker;
+            if(tracker != null){
+                tracker.track(purchase, isSubscription(purchase) ? BillingClient.SkuType.SUBS : BillingClient.SkuType.INAPP);
+            }
+            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.OK, "Purchase is pending.");
+        }else{
+            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.ERROR, "Purchase is not purchased.");
+        }
+    }
 
-            //2.check if is acknowledged,if not,send an acknowledge notification to google
-            if(!purchase.isAcknowledged()){
-                AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams.newBuilder()
-                        .setPurchaseToken(purchase.getPurchaseToken())
-                        //you can set yours bill number or app user id here for a purchase connection
-                        .setDeveloperPayload("this is a test developer payload")
-                        .build();
 
-                mIabHelper.acknowledge(
-                        acknowledgePurchaseParams,
-                        new AcknowledgePurchaseResponseListener() {
-                            @Override
-                            public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
-                                Log.d(TAG, "onAcknowledgePurchaseResponse: " + billingResult.getResponseCode() + ",debugMsg: " + billingResult.getDebugMessage());
-                                if(billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+    private void acknowledgeAndConsume(final Purchase purchase, int journalState, final OnPurchaseHandledListener listener){
+        final String purchaseToken = purchase.getPurchaseToken();
+        //1.you can provide your entitlement to user before acknowledge,or provide at step 3
+        if(journalState < PurchaseJournal.STATE_ENTITLED){
+            recordJournal(purchaseToken, PurchaseJournal.STATE_ENTITLED);
+        }
 
-                                    //3. you can provide entitlement after acknowledge,and I advised it.
-                                    //if you provide before acknowledge,as you provide failed,your purchase will not contain a developer payload field.
 
+        //2.check if is acknowledged,if not,send an acknowledge notification to google
+        if(!purchase.isAcknowledged() && journalState < PurchaseJournal.STATE_ACKED){
+            AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams.newBuilder()
+                    .setPurchaseToken(purchaseToken)
+                    //you can set yours bill number or app user id here for a purchase connection
+                    .setDeveloperPayload("this is a test developer payload")
+                    .build();
 
-                                    //after provide,you should check if consume the purchase
-                                    consume(purchase);
-                                }
+            IabHelper iabHelper = mIabHelper;
+            if(iabHelper == null){
+                notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, "PayHelper is disposed.");
+                return;
+            }
+            final long start = System.nanoTime();
+            iabHelper.acknowledge(
+                    acknowledgePurchaseParams,
+                    new AcknowledgePurchaseResponseListener() {
+                        @Override
+                        public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+                            IabLog.d(TAG, "onAcknowledgePurchaseResponse", billingResult);
+                            mEventLog.record(IabEventLog.EVENT_ACKNOWLEDGE, purchase.getSku(), purchaseToken, purchase.getPurchaseState(),
+                                    billingResult.getResponseCode(), (System.nanoTime() - start) / 1000000L);
+                            if(billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                                recordJournal(purchaseToken, PurchaseJournal.STATE_ACKED);
+
+                                //3. you can provide entitlement after acknowledge,and I advised it.
+                                //if you provide before acknowledge,as you provide failed,your purchase will not contain a developer payload field.
+
+
+                                //after provide,you should check if consume the purchase
+                                finishPurchase(purchase, listener);
+                            }else if(listener != null){
+                                listener.onPurchaseHandled(purchase, billingResult);
                             }
-                        });
+                        }
+                    });
+
+        }else{
+            recordJournal(purchaseToken, PurchaseJournal.STATE_ACKED);
+
+            //after provide,you should check if consume the purchase
+            finishPurchase(purchase, listener);
+        }
+    }
+
+
+
+    //subscriptions are never consumed,settled once entitled is their final journal state
+    //consumed in-app items are not owned anymore,only subscriptions go to the snapshot
+    private void finishPurchase(Purchase purchase, OnPurchaseHandledListener listener) {
+        if(isEntitlement(purchase)){
+            if(mEntitlementStore != null){
+                mEntitlementStore.update(purchase, mExpiryEstimator.getExpiryTime(purchase), mEntitlementListener);
+            }
+            recordJournal(purchase.getPurchaseToken(), PurchaseJournal.STATE_SETTLED);
+            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.OK, null);
+        }else{
+            consume(purchase, listener);
+        }
+    }
+
+
+    //kept after it is finished,every in-app item is consumed so only subscriptions are entitlements
+    private boolean isEntitlement(Purchase purchase) {
+        return isSubscription(purchase);
+    }
+
+
+    //purchases the snapshot keeps,consumables are owned only until consumed
+    private List<Purchase> entitlementsOf(List<Purchase> purchases) {
+        List<Purchase> entitlements = new ArrayList<Purchase>(purchases.size());
+        for(Purchase purchase : purchases){
+            if(isEntitlement(purchase)){
+                entitlements.add(purchase);
+            }
+        }
+        return entitlements;
+    }
+
+
+    //sku type from the launch or the query leg,otherwise from the index or cached SkuDetails
+    private boolean isSubscription(Purchase purchase) {
+        String skuType = mSkuTypes.get(purchase.getSku());
+        if(skuType != null){
+            return BillingClient.SkuType.SUBS.equals(skuType);
+        }
+        SubscriptionEngine engine = mSubscriptionEngine;
+        return engine != null && engine.isSubscription(purchase.getSku());
+    }
+
+
+    private void rememberSkuTypes(List<Purchase> purchases, @BillingClient.SkuType String skuType) {
+        for(Purchase purchase : purchases){
+            mSkuTypes.put(purchase.getSku(), skuType);
+        }
+    }
 
-                  }else{
 
-                //after provide,you should check if consume the purchase
-                consume(purchase);
+    //re-validate subscriptions only,one subs query instead of a full restore
+    private void revalidateSubscriptions() {
+        final SubscriptionEngine engine = mSubscriptionEngine;
+        IabHelper iabHelper = mIabHelper;
+        if(iabHelper == null || engine == null){
+            return;
+        }
+
+        iabHelper.queryPurchases(BillingClient.SkuType.SUBS).addListener(new IabFuture.Callback<IabHelper.PurchaseListResult>() {
+            @Override
+            public void onComplete(IabHelper.PurchaseListResult result) {
+                IabLog.d(TAG, "revalidateSubscriptions", result.billingResult);
+                if(result.billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK
+                        && result.purchasesList != null){
+                    rememberSkuTypes(result.purchasesList, BillingClient.SkuType.SUBS);
+                    engine.update(result.purchasesList);
+                    //a renewal keeps its token,only new or changed subs like replacing purchases need work
+                    List<Purchase> changedList = mPurchaseDiffer.diff(result.purchasesList, BillingClient.SkuType.SUBS, null);
+                    if(!changedList.isEmpty()){
+                        settle(changedList);
+                    }
+                }else{
+                    engine.onRevalidateFailed();
+                }
             }
+        }, iabHelper.getCallbackExecutor());
+    }
+
+
+    //check pending purchases of one sku type only,instead of a full restore
+    //always reports to the tracker,a check that never answers stops its ticks for good
+    private void checkPendingPurchases(final PendingPurchaseTracker tracker, @BillingClient.SkuType final String skuType) {
+        IabHelper iabHelper = mIabHelper;
+        if(iabHelper == null || tracker != mPendingTracker){
+            //disposed,or the tracker of a previous init
+            tracker.onCheckFailed();
+            return;
         }
+
+        final IabFuture<IabHelper.PurchaseListResult> checked = iabHelper.queryPurchases(skuType);
+        checked.onDone(new Runnable() {
+            @Override
+            public void run() {
+                //a cancelled query never calls back
+                if(checked.isCancelled()){
+                    tracker.onCheckFailed();
+                }
+            }
+        });
+        checked.addListener(new IabFuture.Callback<IabHelper.PurchaseListResult>() {
+            @Override
+            public void onComplete(IabHelper.PurchaseListResult result) {
+                IabLog.d(TAG, "checkPendingPurchases", result.billingResult);
+                if(result.billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK
+                        && result.purchasesList != null){
+                    rememberSkuTypes(result.purchasesList, skuType);
+                    //the tracker settles its completed tokens,other changes of skuType are settled here
+                    List<Purchase> untrackedList = new ArrayList<Purchase>();
+                    for(Purchase purchase : mPurchaseDiffer.diff(result.purchasesList, skuType, null)){
+                        if(!tracker.isTracked(purchase.getPurchaseToken())){
+                            untrackedList.add(purchase);
+                        }
+                    }
+                    tracker.onChecked(skuType, result.purchasesList);
+                    if(!untrackedList.isEmpty()){
+                        settle(untrackedList);
+                    }
+                }else{
+                    tracker.onCheckFailed();
+                }
+            }
+        }, iabHelper.getCallbackExecutor());
+    }
+
+
+    /**
+     * O(1) subscription check,no ipc
+     * @param productId
+     * @return
+     */
+    public boolean isSubscribed(String productId) {
+        SubscriptionEngine engine = mSubscriptionEngine;
+        return engine != null && engine.isActive(productId);
+    }
+
+
+    /**
+     * upgrade or downgrade a subscription
+     * @param activity
+     * @param oldSku active subscription
+     * @param newSku
+     * @param prorationMode BillingFlowParams.ProrationMode
+     */
+    public void changeSubscription(final Activity activity, final String oldSku, final String newSku, final int prorationMode) {
+        init(activity);
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                launchReplace(activity, oldSku, newSku, prorationMode);
+            }
+        });
     }
 
 
+    private void launchReplace(final Activity activity, final String oldSku, final String newSku, final int prorationMode) {
+        IabHelper iabHelper = mIabHelper;
+        if(iabHelper == null){
+            return;
+        }
+        if(!isSubscribed(oldSku)){
+            IabLog.e(TAG, "changeSubscription: not subscribed: ", oldSku);
+            return;
+        }
+        if(Boolean.FALSE.equals(iabHelper.getCachedFeatureSupport(BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE))){
+            IabLog.e(TAG, "changeSubscription: subscriptions update is not supported.");
+            return;
+        }
+
+        querySkuDetails(newSku, BillingClient.SkuType.SUBS, new SkuDetailsResponseListener() {
+            @Override
+            public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK
+                        || skuDetailsList == null || skuDetailsList.isEmpty()) {
+                    IabLog.e(TAG, "changeSubscription", billingResult);
+                    return;
+                }
+
+                final SubscriptionEngine engine = mSubscriptionEngine;
+                IabHelper iabHelper = mIabHelper;
+                if (engine == null || iabHelper == null) {
+                    return;
+                }
+                BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder()
+                        .setSkuDetails(skuDetailsList.get(0))
+                        .setOldSku(oldSku)
+                        .setReplaceSkusProrationMode(prorationMode)
+                        .setAccountId("yours account id")
+                        .setDeveloperId("yours developer id")
+                        .build();
+                mSkuTypes.put(newSku, BillingClient.SkuType.SUBS);
+                engine.beginReplace(oldSku, newSku, prorationMode);
+                iabHelper.launchPurchaseFlow(activity, billingFlowParams, new IabHelper.OnIabPurchaseListener() {
+                    @Override
+                    public void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList) {
+                        //cancelled or failed in the purchase dialog,the old sku stays as it is
+                        if(result.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                            engine.cancelReplace(newSku);
+                        }
+                        PayHelper.this.onPurchaseResponse(result, purchasesList);
+                    }
+                })
+                        .addListener(new IabFuture.Callback<BillingResult>() {
+                            @Override
+                            public void onComplete(BillingResult result) {
+                                if(result.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                                    engine.cancelReplace(newSku);
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
 
     //consume
     //you should check if the purchase need be consumed,like subscription
     public void consume(final Purchase purchase) {
-        Log.d(TAG,"consume | "+purchase.toString());
+        consume(purchase, null);
+    }
+
 
+    private void consume(final Purchase purchase, final OnPurchaseHandledListener listener) {
+        IabHelper iabHelper = mIabHelper;
+        if(iabHelper == null){
+            notifyPurchaseHandled(listener, purchase, BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, "PayHelper is disposed.");
+            return;
+        }
+        final long start = System.nanoTime();
         ConsumeParams consumeParams = ConsumeParams.newBuilder()
                 .setPurchaseToken(purchase.getPurchaseToken())
                 .build();
 
-        mIabHelper.consumeAsync(consumeParams, new ConsumeResponseListener() {
+        iabHelper.consumeAsync(consumeParams, new ConsumeResponseListener() {
             @Override
             public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
-                Log.d(TAG, "onConsumeResponse: " + billingResult.getResponseCode() + ",debugMsg: " + billingResult.getDebugMessage());
+                IabLog.d(TAG, "onConsumeResponse", billingResult);
+                mEventLog.record(IabEventLog.EVENT_CONSUME, purchase.getSku(), purchaseToken, purchase.getPurchaseState(),
+                        billingResult.getResponseCode(), (System.nanoTime() - start) / 1000000L);
+                if(billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    recordJournal(purchase.getPurchaseToken(), PurchaseJournal.STATE_CONSUMED);
+                }
+                if(listener != null){
+                    listener.onPurchaseHandled(purchase, billingResult);
+                }
+            }
+        });
+    }
+
+
+    private static void notifyPurchaseHandled(OnPurchaseHandledListener listener, Purchase purchase, int responseCode, String debugMessage){
+        if(listener == null){
+            return;
+        }
+
+        BillingResult.Builder builder = BillingResult.newBuilder().setResponseCode(responseCode);
+        if(debugMessage != null){
+            builder.setDebugMessage(debugMessage);
+        }
+        listener.onPurchaseHandled(purchase, builder.build());
+    }
+
+
+    //load the files on the io executor,then run the work waiting for them on the callback executor
+    private void loadFiles(final File filesDir, final ExecutorService ioExecutor, final Executor callbackExecutor){
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                PurchaseJournal journal = openJournal(filesDir, ioExecutor);
+                EntitlementStore entitlementStore = new EntitlementStore(new File(filesDir, ENTITLEMENT_FILE_NAME),
+                        ENTITLEMENT_KEY, ioExecutor);
+                final Map<String, EntitlementStore.Entitlement> entitlements = entitlementStore.load();
+                PurchaseHistoryStore historyStore = openPurchaseHistory(filesDir);
+                IabLog.d(TAG, "loadFiles: entitlements: ", entitlements.size(), ", ms: ", (System.nanoTime() - start) / 1000000L);
+
+                final List<Runnable> actions;
+                synchronized (PayHelper.this){
+                    if(mIoExecutor != ioExecutor){
+                        //disposed while loading,the close runs before the executor ends
+                        if(journal != null){
+                            journal.close();
+                        }
+                        closePurchaseHistory(historyStore);
+                        return;
+                    }
+                    mPurchaseJournal = journal;
+                    mEntitlementStore = entitlementStore;
+                    mPurchaseHistoryStore = historyStore;
+                    mReady = true;
+                    actions = new ArrayList<Runnable>(mReadyActions);
+                    mReadyActions.clear();
+                }
+
+                //owned skus are available before the billing connection
+                final EntitlementStore.OnEntitlementChangedListener listener = mEntitlementListener;
+                if(listener != null && !entitlements.isEmpty()){
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for(EntitlementStore.Entitlement entitlement : entitlements.values()){
+                                listener.onEntitlementAdded(entitlement);
+                            }
+                        }
+                    });
+                }
+                for(Runnable action : actions){
+                    callbackExecutor.execute(action);
+                }
+            }
+        });
+    }
+
+
+    //run now if the files are loaded,otherwise once they are
+    private void runWhenReady(Runnable action){
+        synchronized (this){
+            if(!mReady){
+                mReadyActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+
+    //open purchase journal,work is still done without it if it can't be opened
+    private static PurchaseJournal openJournal(File filesDir, Executor ioExecutor){
+        PurchaseJournal journal = new PurchaseJournal(new File(filesDir, JOURNAL_FILE_NAME), ioExecutor);
+        try {
+            journal.open();
+            IabLog.d(TAG, "openJournal: unfinished purchases: ", journal.getUnfinished().size());
+            return journal;
+        } catch (IOException e) {
+            IabLog.e(TAG, "openJournal: ", e.getMessage());
+            return null;
+        }
+    }
+
+
+    //open local purchase history,sync is skipped without it
+    private static PurchaseHistoryStore openPurchaseHistory(File filesDir){
+        PurchaseHistoryStore store = new PurchaseHistoryStore(new File(filesDir, PURCHASE_HISTORY_FILE_NAME));
+        try {
+            store.open();
+            IabLog.d(TAG, "openPurchaseHistory: records: ", store.size(null));
+            return store;
+        } catch (IOException e) {
+            IabLog.e(TAG, "openPurchaseHistory: ", e.getMessage());
+            return null;
+        }
+    }
+
+
+    private static void closePurchaseHistory(PurchaseHistoryStore store){
+        if(store == null){
+            return;
+        }
+
+        try {
+            store.close();
+        } catch (IOException e) {
+            IabLog.e(TAG, "closePurchaseHistory: ", e.getMessage());
+        }
+    }
+
+
+    /**
+     * query purchase history and append records not stored yet
+     * read history with getPurchaseHistoryStore().page() or iterator()
+     * @param skuType
+     * @param listener
+     */
+    public void syncPurchaseHistory(final @BillingClient.SkuType String skuType, final OnPurchaseHistorySyncedListener listener) {
+        if(mIabHelper == null){
+            IabLog.e(TAG, "syncPurchaseHistory: not init.");
+            return;
+        }
+
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                syncPurchaseHistoryNow(skuType, listener);
             }
         });
     }
 
 
-    public void dispose() {
+    private void syncPurchaseHistoryNow(final @BillingClient.SkuType String skuType, final OnPurchaseHistorySyncedListener listener) {
+        final IabHelper iabHelper = mIabHelper;
+        final PurchaseHistoryStore historyStore = mPurchaseHistoryStore;
+        final ExecutorService ioExecutor;
+        synchronized (this){
+            ioExecutor = mIoExecutor;
+        }
+        if(iabHelper == null || historyStore == null || ioExecutor == null){
+            IabLog.e(TAG, "syncPurchaseHistory: no purchase history.");
+            return;
+        }
+
+        final Executor callbackExecutor = iabHelper.getCallbackExecutor();
+        iabHelper.queryPurchaseHistory(skuType).addListener(new IabFuture.Callback<IabHelper.PurchaseHistoryResult>() {
+            @Override
+            public void onComplete(final IabHelper.PurchaseHistoryResult result) {
+                if(result.billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK
+                        || result.purchaseHistoryRecordList == null){
+                    notifyPurchaseHistorySynced(listener, result.billingResult, 0);
+                    return;
+                }
+
+                //the append writes,flushes and sorts the index,on the io executor like the journal
+                try {
+                    ioExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            BillingResult billingResult = result.billingResult;
+                            int newRecords = 0;
+                            try {
+                                newRecords = historyStore.append(skuType, result.purchaseHistoryRecordList);
+                            } catch (IOException e) {
+                                IabLog.e(TAG, "syncPurchaseHistory: ", e.getMessage());
+                                billingResult = errorResult(e.getMessage());
+                            }
+
+                            IabLog.d(TAG, "syncPurchaseHistory: new records: ", newRecords);
+                            final BillingResult syncedResult = billingResult;
+                            final int syncedRecords = newRecords;
+                            callbackExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    notifyPurchaseHistorySynced(listener, syncedResult, syncedRecords);
+                                }
+                            });
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //disposed meanwhile
+                    notifyPurchaseHistorySynced(listener, errorResult("PayHelper is disposed."), 0);
+                }
+            }
+        }, callbackExecutor);
+    }
+
+
+    private static void notifyPurchaseHistorySynced(OnPurchaseHistorySyncedListener listener, BillingResult result, int newRecords){
+        if(listener != null){
+            listener.onPurchaseHistorySynced(result, newRecords);
+        }
+    }
+
+
+    private static BillingResult errorResult(String debugMessage){
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                .setDebugMessage(debugMessage)
+                .build();
+    }
+
+
+    public PurchaseHistoryStore getPurchaseHistoryStore() {
+        return mPurchaseHistoryStore;
+    }
+
+
+    /**
+     * receive entitlements loaded from snapshot at init,and differences after reconciled with google play
+     * @param listener
+     */
+    public void setOnEntitlementChangedListener(EntitlementStore.OnEntitlementChangedListener listener) {
+        mEntitlementListener = listener;
+    }
+
+
+    //answered from the local snapshot,no billing connection needed
+    public boolean isEntitled(String productId) {
+        EntitlementStore entitlementStore = mEntitlementStore;
+        return entitlementStore != null && entitlementStore.isEntitled(productId);
+    }
+
+
+    //a pending purchase flow is settled by a restore or a check instead of its purchase update
+    private void endPurchaseFlow(String purchaseToken){
+        IabHelper iabHelper = mIabHelper;
+        if(iabHelper != null){
+            iabHelper.endPurchaseFlow(purchaseToken);
+        }
+    }
+
+
+    private int getJournalState(String purchaseToken){
+        PurchaseJournal journal = mPurchaseJournal;
+        return journal != null ? journal.getState(purchaseToken) : PurchaseJournal.STATE_NONE;
+    }
+
+
+    private void recordJournal(String purchaseToken, int state){
+        PurchaseJournal journal = mPurchaseJournal;
+        if(journal == null){
+            return;
+        }
+
+        try {
+            journal.record(purchaseToken, state);
+        } catch (IOException e) {
+            IabLog.e(TAG, "recordJournal: ", e.getMessage());
+        }
+    }
+
+
+    //everything built by init is dropped,init can be called again
+    public synchronized void dispose() {
         if (mIabHelper != null) {
             mIabHelper.dispose();
+            mIabHelper = null;
+        }
+        mSkuDetailsBatcher = null;
+        mSettlement = null;
+        mSkuDetailsCache.invalidateAll();
+        mTokenRegistry.clear();
+        mPurchaseDiffer.clear();
+        if (mSubscriptionEngine != null) {
+            mSubscriptionEngine.shutdown();
+            mSubscriptionEngine = null;
         }
+        if (mPendingTracker != null) {
+            mPendingTracker.clear();
+            mPendingTracker = null;
+        }
+        mReady = false;
+        mReadyActions.clear();
+        //the verifier is kept,a purchase after init again is still verified
+
+        if (mPurchaseJournal != null) {
+            mPurchaseJournal.close();
+            mPurchaseJournal = null;
+        }
+        mEntitlementStore = null;
+        closePurchaseHistory(mPurchaseHistoryStore);
+        mPurchaseHistoryStore = null;
+
+        //shut down from its own queue,a load still running and the writes queued until then are kept
+        if (mIoExecutor != null) {
+            final ExecutorService ioExecutor = mIoExecutor;
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ioExecutor.shutdown();
+                }
+            });
+            mIoExecutor = null;
+        }
+    }
+
+
+    //daemon threads at background priority,android only
+    private static ThreadFactory backgroundThreadFactory(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    private static ThreadFactory daemonThreadFactory(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    //handle purchase finished callback
+    public interface OnPurchaseHandledListener{
+        void onPurchaseHandled(Purchase purchase, BillingResult result);
+    }
+
+    //tap to purchase dialog latency callback
+    public interface OnPurchaseDialogShownListener{
+        void onPurchaseDialogShown(String productId, long elapsedMillis, boolean first, boolean prewarmed);
+    }
+
+    //purchase history sync finished callback
+    public interface OnPurchaseHistorySyncedListener{
+        void onPurchaseHistorySynced(BillingResult result, int newRecords);
     }
 }
@@ -0,0 +1,311 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * track PENDING purchases (cash,deferred payment) until they complete or are cancelled
+ * a transition is taken from purchase updates first,otherwise from a check of only the sku types with
+ * pending tokens,scheduled with backoff on a single timer,so no full restore is needed to finish them.
+ */
+public class PendingPurchaseTracker {
+    public static final String TAG = "PendingPurchaseTracker";
+
+    public static final long DEFAULT_BASE_DELAY_MS = 30 * 1000L;
+    public static final long DEFAULT_MAX_DELAY_MS = 30 * 60 * 1000L;
+
+    private final Checker mChecker;
+    private final OnPendingPurchaseListener mListener;
+    private final IabScheduler mScheduler;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+
+    //purchase token -> sku type,guarded by this
+    private final Map<String, Tracked> mTracked = new HashMap<String, Tracked>();
+    private IabScheduler.Cancellable mTimer;
+    private long mDelayMs;
+    //checks of the current tick not answered yet,one per sku type
+    private int mChecking;
+    //a check of the current tick completed or cancelled a token
+    private boolean mTickMoved;
+    //a check of the current tick failed
+    private boolean mTickFailed;
+
+
+    public PendingPurchaseTracker(Checker checker, OnPendingPurchaseListener listener, IabScheduler scheduler){
+        this(checker, listener, scheduler, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+
+    public PendingPurchaseTracker(Checker checker, OnPendingPurchaseListener listener, IabScheduler scheduler,
+                                  long baseDelayMs, long maxDelayMs){
+        mChecker = checker;
+        mListener = listener;
+        mScheduler = scheduler;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = Math.max(baseDelayMs, maxDelayMs);
+        mDelayMs = baseDelayMs;
+    }
+
+
+    /**
+     * track a PENDING purchase,a new token restarts the backoff
+     * @param purchase
+     * @param skuType
+     */
+    public synchronized void track(Purchase purchase, @BillingClient.SkuType String skuType){
+        if(purchase.getPurchaseState() != Purchase.PurchaseState.PENDING
+                || mTracked.containsKey(purchase.getPurchaseToken())){
+            return;
+        }
+
+        mTracked.put(purchase.getPurchaseToken(), new Tracked(purchase.getSku(), skuType));
+        IabLog.d(TAG, "track: pending purchases: ", mTracked.size());
+        mDelayMs = mBaseDelayMs;
+        schedule();
+    }
+
+
+    public synchronized boolean isTracked(String purchaseToken){
+        return mTracked.containsKey(purchaseToken);
+    }
+
+
+    public synchronized int size(){
+        return mTracked.size();
+    }
+
+
+    /**
+     * a purchase from a purchase update
+     * @param purchase
+     * @return true if it completed a tracked pending purchase,the completion is already emitted
+     */
+    public boolean onPurchaseUpdated(Purchase purchase){
+        synchronized (this){
+            if(purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED
+                    || mTracked.remove(purchase.getPurchaseToken()) == null){
+                return false;
+            }
+            cancelTimerIfIdle();
+        }
+
+        IabLog.d(TAG, "onPurchaseUpdated: pending purchase completed.");
+        List<Purchase> completed = new ArrayList<Purchase>(1);
+        completed.add(purchase);
+        mListener.onPendingPurchasesCompleted(completed);
+        return true;
+    }
+
+
+    /**
+     * result of a check,every purchase of skuType currently owned
+     * @param skuType
+     * @param purchases
+     */
+    public void onChecked(@BillingClient.SkuType String skuType, List<Purchase> purchases){
+        List<Purchase> completed = new ArrayList<Purchase>();
+        Map<String, String> cancelled = new HashMap<String, String>();
+        synchronized (this){
+            Map<String, Purchase> owned = new HashMap<String, Purchase>(purchases.size() * 2);
+            for(Purchase purchase : purchases){
+                owned.put(purchase.getPurchaseToken(), purchase);
+            }
+
+            Iterator<Map.Entry<String, Tracked>> iterator = mTracked.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, Tracked> entry = iterator.next();
+                if(!entry.getValue().skuType.equals(skuType)){
+                    continue;
+                }
+
+                Purchase purchase = owned.get(entry.getKey());
+                if(purchase == null){
+                    //never paid
+                    cancelled.put(entry.getKey(), entry.getValue().sku);
+                    iterator.remove();
+                }else if(purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED){
+                    completed.add(purchase);
+                    iterator.remove();
+                }
+            }
+
+            if(!completed.isEmpty() || !cancelled.isEmpty()){
+                mTickMoved = true;
+            }
+            onCheckDone();
+        }
+
+        IabLog.d(TAG, "onChecked: completed ", completed.size(), ", cancelled ", cancelled.size());
+        for(Map.Entry<String, String> entry : cancelled.entrySet()){
+            mListener.onPendingPurchaseCancelled(entry.getValue(), entry.getKey());
+        }
+        if(!completed.isEmpty()){
+            mListener.onPendingPurchasesCompleted(completed);
+        }
+    }
+
+
+    //the check failed,back off and try again
+    public synchronized void onCheckFailed(){
+        mTickFailed = true;
+        onCheckDone();
+    }
+
+
+    //must hold this,the last check of a tick backs off at most once and schedules the next tick
+    private void onCheckDone(){
+        if(mChecking > 0){
+            mChecking--;
+        }
+        if(mChecking > 0){
+            return;
+        }
+
+        //nothing moved in any check of the tick or one failed,check less often
+        if(mTickFailed || !mTickMoved){
+            mDelayMs = Math.min(mMaxDelayMs, mDelayMs * 2);
+        }
+        mTickMoved = false;
+        mTickFailed = false;
+        if(!cancelTimerIfIdle()){
+            schedule();
+        }
+    }
+
+
+    /**
+     * a full restore settles completed purchases itself,only drop them from tracking
+     * @param purchases every owned purchase,in-app and subs
+     */
+    public void onRestored(List<Purchase> purchases){
+        Set<String> owned = new HashSet<String>(purchases.size() * 2);
+        for(Purchase purchase : purchases){
+            if(purchase.getPurchaseState() == Purchase.PurchaseState.PENDING){
+                owned.add(purchase.getPurchaseToken());
+            }
+        }
+
+        Map<String, String> cancelled = new HashMap<String, String>();
+        synchronized (this){
+            Iterator<Map.Entry<String, Tracked>> iterator = mTracked.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, Tracked> entry = iterator.next();
+                if(owned.contains(entry.getKey())){
+                    continue;
+                }
+
+                iterator.remove();
+                if(!containsToken(purchases, entry.getKey())){
+                    cancelled.put(entry.getKey(), entry.getValue().sku);
+                }
+            }
+            cancelTimerIfIdle();
+        }
+
+        for(Map.Entry<String, String> entry : cancelled.entrySet()){
+            mListener.onPendingPurchaseCancelled(entry.getValue(), entry.getKey());
+        }
+    }
+
+
+    public synchronized void clear(){
+        mTracked.clear();
+        cancelTimerIfIdle();
+    }
+
+
+    //must hold this
+    private void schedule(){
+        if(mTimer != null){
+            mTimer.cancel();
+        }
+
+        IabLog.d(TAG, "schedule check(ms) ", mDelayMs);
+        mTimer = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> skuTypes = new HashSet<String>();
+                synchronized (PendingPurchaseTracker.this){
+                    mTimer = null;
+                    for(Tracked tracked : mTracked.values()){
+                        skuTypes.add(tracked.skuType);
+                    }
+                    mChecking = skuTypes.size();
+                    mTickMoved = false;
+                    mTickFailed = false;
+                }
+
+                //only the sku types with pending tokens,every check must end,a check that throws failed
+                for(String skuType : skuTypes){
+                    try {
+                        mChecker.check(PendingPurchaseTracker.this, skuType);
+                    } catch (RuntimeException e) {
+                        IabLog.e(TAG, "check: ", e);
+                        onCheckFailed();
+                    }
+                }
+            }
+        }, mDelayMs);
+    }
+
+
+    //must hold this
+    private boolean cancelTimerIfIdle(){
+        if(!mTracked.isEmpty()){
+            return false;
+        }
+        if(mTimer != null){
+            mTimer.cancel();
+            mTimer = null;
+        }
+        mDelayMs = mBaseDelayMs;
+        return true;
+    }
+
+
+    private static boolean containsToken(List<Purchase> purchases, String purchaseToken){
+        for(Purchase purchase : purchases){
+            if(purchase.getPurchaseToken().equals(purchaseToken)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * query purchases of one sku type,call tracker.onChecked() or tracker.onCheckFailed() when done
+     * exactly once on every path,the next tick is scheduled only after every check of the tick reported.
+     */
+    public interface Checker{
+        void check(PendingPurchaseTracker tracker, @BillingClient.SkuType String skuType);
+    }
+
+
+    public interface OnPendingPurchaseListener{
+        //paid,ready for settlement
+        void onPendingPurchasesCompleted(List<Purchase> purchases);
+
+        void onPendingPurchaseCancelled(String sku, String purchaseToken);
+    }
+
+
+    private static class Tracked{
+        final String sku;
+        final String skuType;
+
+        Tracked(String sku, String skuType){
+            this.sku = sku;
+            this.skuType = skuType;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.tencent.imsdk.samples;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+/**
+ * default IabBillingClient,delegate to google play BillingClient
+ */
+public class PlayBillingClient implements IabBillingClient {
+    private final BillingClient mBillingClient;
+
+
+    public PlayBillingClient(BillingClient billingClient){
+        mBillingClient = billingClient;
+    }
+
+
+    /**
+     * @param context
+     * @return factory building a BillingClient with pending purchases enabled
+     */
+    public static Factory factory(final Context context){
+        return new Factory() {
+            @Override
+            public IabBillingClient create(PurchasesUpdatedListener listener) {
+                return new PlayBillingClient(BillingClient.newBuilder(context)
+                        .setListener(listener)
+                        .enablePendingPurchases()
+                        .build());
+            }
+        };
+    }
+
+
+    @Override
+    public boolean isReady() {
+        return mBillingClient.isReady();
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        mBillingClient.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        mBillingClient.endConnection();
+    }
+
+    @Override
+    public BillingResult isFeatureSupported(String feature) {
+        return mBillingClient.isFeatureSupported(feature);
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+        return mBillingClient.launchBillingFlow(activity, params);
+    }
+
+    @Override
+    public void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener) {
+        mBillingClient.querySkuDetailsAsync(params, listener);
+    }
+
+    @Override
+    public Purchase.PurchasesResult queryPurchases(String skuType) {
+        return mBillingClient.queryPurchases(skuType);
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(String skuType, PurchaseHistoryResponseListener listener) {
+        mBillingClient.queryPurchaseHistoryAsync(skuType, listener);
+    }
+
+    @Override
+    public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+        mBillingClient.consumeAsync(params, listener);
+    }
+
+    @Override
+    public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+        mBillingClient.acknowledgePurchase(params, listener);
+    }
+}
@@ -0,0 +1,139 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * incremental diff of queryPurchasesAsync results
+ * keeps the last known purchases indexed by token,every new result of a sku type only reports
+ * added,removed and changed (purchase state or acknowledged) purchases of that sku type.
+ * a full restore diffs its in-app and subs legs,a targeted query diffs its own sku type,
+ * purchases settled outside a diff are recorded with settled().
+ * unchanged purchases cost a lookup and no allocation,the known set is in memory only,
+ * a new process starts empty and its first restore reports every purchase as added.
+ */
+public class PurchaseDiffer {
+
+    //token -> last known state,guarded by this
+    private final Map<String, Known> mKnown = new HashMap<String, Known>();
+    //stamped on every purchase seen by a diff,the ones left with an older stamp are gone
+    private int mGeneration;
+
+
+    /**
+     * diff every owned purchase of one sku type against the last known ones of that type,
+     * known purchases of the other sku type are kept as they are
+     * @param purchases full result of queryPurchasesAsync for skuType
+     * @param skuType
+     * @param listener optional,receive every difference
+     * @return added and changed purchases,the ones needing downstream work
+     */
+    public synchronized List<Purchase> diff(List<Purchase> purchases, @BillingClient.SkuType String skuType,
+                                            OnPurchaseDiffListener listener){
+        int generation = ++mGeneration;
+        List<Purchase> changedList = new ArrayList<Purchase>();
+
+        for(Purchase purchase : purchases){
+            String purchaseToken = purchase.getPurchaseToken();
+            Known known = mKnown.get(purchaseToken);
+            if(known == null){
+                mKnown.put(purchaseToken, new Known(purchase, skuType, generation));
+                changedList.add(purchase);
+                if(listener != null){
+                    listener.onPurchaseAdded(purchase);
+                }
+            }else if(known.purchaseState != purchase.getPurchaseState() || known.acknowledged != purchase.isAcknowledged()){
+                mKnown.put(purchaseToken, new Known(purchase, skuType, generation));
+                changedList.add(purchase);
+                if(listener != null){
+                    listener.onPurchaseChanged(purchase, known.purchaseState, known.acknowledged);
+                }
+            }else{
+                known.generation = generation;
+            }
+        }
+
+        //not seen in this result of its sku type,consumed or refunded
+        Iterator<Map.Entry<String, Known>> iterator = mKnown.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<String, Known> entry = iterator.next();
+            Known known = entry.getValue();
+            if(known.generation != generation && skuType.equals(known.skuType)){
+                iterator.remove();
+                if(listener != null){
+                    listener.onPurchaseRemoved(entry.getKey(), known.sku);
+                }
+            }
+        }
+        return changedList;
+    }
+
+
+    /**
+     * a purchase settled outside a diff,like from a purchase update or a pending check,
+     * the next diff only reports it if it changes again
+     * @param purchase settled PURCHASED purchase
+     * @param skuType
+     */
+    public synchronized void settled(Purchase purchase, @BillingClient.SkuType String skuType){
+        //acknowledged once settled,even if the purchase object is older
+        mKnown.put(purchase.getPurchaseToken(), new Known(purchase.getSku(), skuType, purchase.getPurchaseState(),
+                true, mGeneration));
+    }
+
+
+    /**
+     * forget a purchase,it is reported as added by the next diff.
+     * call it when downstream work of the purchase failed and should be retried.
+     * @param purchaseToken
+     */
+    public synchronized void forget(String purchaseToken){
+        mKnown.remove(purchaseToken);
+    }
+
+
+    public synchronized void clear(){
+        mKnown.clear();
+    }
+
+
+    public synchronized int size(){
+        return mKnown.size();
+    }
+
+
+    private static class Known{
+        final String sku;
+        final String skuType;
+        final int purchaseState;
+        final boolean acknowledged;
+        int generation;
+
+        Known(Purchase purchase, String skuType, int generation){
+            this(purchase.getSku(), skuType, purchase.getPurchaseState(), purchase.isAcknowledged(), generation);
+        }
+
+        Known(String sku, String skuType, int purchaseState, boolean acknowledged, int generation){
+            this.sku = sku;
+            this.skuType = skuType;
+            this.purchaseState = purchaseState;
+            this.acknowledged = acknowledged;
+            this.generation = generation;
+        }
+    }
+
+
+    public interface OnPurchaseDiffListener{
+        void onPurchaseAdded(Purchase purchase);
+
+        void onPurchaseChanged(Purchase purchase, int oldPurchaseState, boolean oldAcknowledged);
+
+        void onPurchaseRemoved(String purchaseToken, String sku);
+    }
+}
@@ -0,0 +1,329 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * local append-only purchase history
+ * only an index (sku,purchase time,file offset) is kept in memory,records are read from file lazily.
+ * google play only returns the latest purchase of every sku,so the store accumulates history over syncs,
+ * and a sync only appends records whose purchase token is not stored yet,a late record older than the watermark
+ * of its sku type is still appended.
+ * record format: [byte skuType][utf sku][long purchaseTime][utf token][utf originalJson][utf signature]
+ */
+public class PurchaseHistoryStore {
+    public static final String TAG = "PurchaseHistoryStore";
+
+    private static final byte TYPE_INAPP = 0;
+    private static final byte TYPE_SUBS = 1;
+
+    private final File mFile;
+
+    //all records sorted by purchase time,newest first,and per sku
+    private final List<IndexEntry> mIndex = new ArrayList<IndexEntry>();
+    private final Map<String, List<IndexEntry>> mSkuIndex = new HashMap<String, List<IndexEntry>>();
+    private final Set<String> mTokens = new HashSet<String>();
+    private final long[] mWatermarks = new long[2];
+
+    private DataOutputStream mOut;
+    //valid length of file when opened,appended bytes are counted by mOut
+    private long mLength;
+
+
+    public PurchaseHistoryStore(File file){
+        mFile = file;
+    }
+
+
+    /**
+     * build the index from file and open it for append
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        mIndex.clear();
+        mSkuIndex.clear();
+        mTokens.clear();
+        mWatermarks[TYPE_INAPP] = 0;
+        mWatermarks[TYPE_SUBS] = 0;
+        mLength = 0;
+
+        if(mFile.exists()){
+            CountingInputStream counter = new CountingInputStream(new FileInputStream(mFile));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                while (true){
+                    long offset = mLength;
+                    byte type = in.readByte();
+                    String sku = in.readUTF();
+                    long purchaseTime = in.readLong();
+                    String purchaseToken = in.readUTF();
+                    in.readUTF();
+                    in.readUTF();
+                    addToIndex(new IndexEntry(type, sku, purchaseTime, offset), purchaseToken);
+                    mLength = counter.count;
+                }
+            } catch (EOFException e){
+                //end of store or torn tail record
+            } finally {
+                in.close();
+            }
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(mFile, true);
+        if(fileOut.getChannel().size() > mLength){
+            fileOut.getChannel().truncate(mLength);
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(fileOut));
+        sortIndex();
+    }
+
+
+    /**
+     * append records not stored yet
+     * @param skuType
+     * @param records result of queryPurchaseHistoryAsync
+     * @return count of new records
+     * @throws IOException
+     */
+    public synchronized int append(@BillingClient.SkuType String skuType, List<PurchaseHistoryRecord> records) throws IOException {
+        if(mOut == null){
+            throw new IOException("PurchaseHistoryStore is not open.");
+        }
+
+        byte type = typeOf(skuType);
+        int count = 0;
+        for(PurchaseHistoryRecord record : records){
+            //by token only,the watermark is per sku type and another sku may be newer than this record
+            if(mTokens.contains(record.getPurchaseToken())){
+                continue;
+            }
+
+            long offset = mLength + mOut.size();
+            mOut.writeByte(type);
+            mOut.writeUTF(record.getSku());
+            mOut.writeLong(record.getPurchaseTime());
+            mOut.writeUTF(record.getPurchaseToken());
+            mOut.writeUTF(record.getOriginalJson());
+            mOut.writeUTF(record.getSignature());
+
+            addToIndex(new IndexEntry(type, record.getSku(), record.getPurchaseTime(), offset), record.getPurchaseToken());
+            count++;
+        }
+
+        if(count > 0){
+            mOut.flush();
+            sortIndex();
+        }
+        return count;
+    }
+
+    /**
+     * @param skuType
+     * @return purchase time of the newest stored record of skuType,a sync newer than it has nothing old to page
+     */
+    public synchronized long getWatermark(@BillingClient.SkuType String skuType){
+        return mWatermarks[typeOf(skuType)];
+    }
+
+
+    /**
+     * @param sku null for all skus
+     * @return count of records
+     */
+    public synchronized int size(String sku){
+        List<IndexEntry> entries = sku == null ? mIndex : mSkuIndex.get(sku);
+        return entries == null ? 0 : entries.size();
+    }
+
+
+    /**
+     * read one page of records,newest first
+     * @param sku null for all skus
+     * @param offset
+     * @param limit
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<PurchaseHistoryRecord> page(String sku, int offset, int limit) throws IOException {
+        List<IndexEntry> entries = sku == null ? mIndex : mSkuIndex.get(sku);
+        if(entries == null || offset >= entries.size()){
+            return Collections.emptyList();
+        }
+
+        int end = Math.min(entries.size(), offset + limit);
+        List<PurchaseHistoryRecord> page = new ArrayList<PurchaseHistoryRecord>(end - offset);
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            for(int i = offset; i < end; i++){
+                page.add(readRecord(file, entries.get(i).offset));
+            }
+        } finally {
+            file.close();
+        }
+        return page;
+    }
+
+
+    /**
+     * iterate records lazily,newest first,one page is read at a time
+     * @param sku null for all skus
+     * @return
+     */
+    public Iterator<PurchaseHistoryRecord> iterator(final String sku){
+        final int pageSize = 50;
+        return new Iterator<PurchaseHistoryRecord>() {
+            private List<PurchaseHistoryRecord> mPage = Collections.emptyList();
+            private int mPageStart = 0;
+            private int mPosition = 0;
+
+            @Override
+            public boolean hasNext() {
+                if(mPosition - mPageStart < mPage.size()){
+                    return true;
+                }
+
+                try {
+                    mPageStart = mPosition;
+                    mPage = page(sku, mPosition, pageSize);
+                } catch (IOException e) {
+                    IabLog.e(TAG, "iterator: ", e.getMessage());
+                    mPage = Collections.emptyList();
+                }
+                return !mPage.isEmpty();
+            }
+
+            @Override
+            public PurchaseHistoryRecord next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return mPage.get(mPosition++ - mPageStart);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    public synchronized void close() throws IOException {
+        if(mOut != null){
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+
+    private void addToIndex(IndexEntry entry, String purchaseToken){
+        mIndex.add(entry);
+        List<IndexEntry> skuEntries = mSkuIndex.get(entry.sku);
+        if(skuEntries == null){
+            skuEntries = new ArrayList<IndexEntry>();
+            mSkuIndex.put(entry.sku, skuEntries);
+        }
+        skuEntries.add(entry);
+        mTokens.add(purchaseToken);
+        mWatermarks[entry.type] = Math.max(mWatermarks[entry.type], entry.purchaseTime);
+    }
+
+
+    private void sortIndex(){
+        Collections.sort(mIndex);
+        for(List<IndexEntry> skuEntries : mSkuIndex.values()){
+            Collections.sort(skuEntries);
+        }
+    }
+
+
+    private static PurchaseHistoryRecord readRecord(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        file.readByte();
+        file.readUTF();
+        file.readLong();
+        file.readUTF();
+        String originalJson = file.readUTF();
+        String signature = file.readUTF();
+        try {
+            return new PurchaseHistoryRecord(originalJson, signature);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+
+    private static byte typeOf(String skuType){
+        return BillingClient.SkuType.SUBS.equals(skuType) ? TYPE_SUBS : TYPE_INAPP;
+    }
+
+
+    private static class IndexEntry implements Comparable<IndexEntry>{
+        final byte type;
+        final String sku;
+        final long purchaseTime;
+        final long offset;
+
+        IndexEntry(byte type, String sku, long purchaseTime, long offset){
+            this.type = type;
+            this.sku = sku;
+            this.purchaseTime = purchaseTime;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(IndexEntry other) {
+            //newest first
+            return purchaseTime > other.purchaseTime ? -1 : purchaseTime < other.purchaseTime ? 1 : 0;
+        }
+    }
+
+
+    private static class CountingInputStream extends BufferedInputStream{
+        long count;
+
+        CountingInputStream(FileInputStream in){
+            super(in);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if(b >= 0){
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0){
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.tencent.imsdk.samples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * append-only journal of purchase token state transitions,SEEN -> ENTITLED -> ACKED -> CONSUMED,
+ * a subscription is never consumed,it ends as SETTLED once acknowledged and entitled.
+ * states are updated in memory at once,records are written through to the file on a serial io executor
+ * so no caller waits for the disk,fsync is batched every SYNC_BATCH records or on sync()/close().
+ * a failed background write is thrown from the next record().
+ * record format: [byte state][utf token],a torn tail record is dropped on replay.
+ * no android dependency,can be used on a plain JVM.
+ */
+public class PurchaseJournal {
+    public static final int STATE_NONE = 0;
+    public static final int STATE_SEEN = 1;
+    public static final int STATE_ENTITLED = 2;
+    public static final int STATE_ACKED = 3;
+    public static final int STATE_CONSUMED = 4;
+    //final state of a subscription
+    public static final int STATE_SETTLED = 5;
+
+    private static final int SYNC_BATCH = 16;
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private final File mFile;
+    private final Executor mIoExecutor;
+
+    //guarded by this
+    private final Map<String, Integer> mStates = new HashMap<String, Integer>();
+    private boolean mOpen;
+    private IOException mWriteError;
+
+    //file,guarded by mWriteLock,only touched on the io executor once open
+    private final Object mWriteLock = new Object();
+    private FileOutputStream mFileOut;
+    private DataOutputStream mOut;
+    private int mRecordCount;
+    private int mUnsyncedCount;
+
+
+    //write on the caller thread
+    public PurchaseJournal(File file){
+        this(file, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+
+    /**
+     * @param file
+     * @param ioExecutor serial executor the file is written on
+     */
+    public PurchaseJournal(File file, Executor ioExecutor){
+        mFile = file;
+        mIoExecutor = ioExecutor;
+    }
+
+
+    /**
+     * replay the journal and open it for append,done on the caller thread
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        synchronized (mWriteLock){
+            synchronized (this){
+                mStates.clear();
+                mRecordCount = 0;
+                long validLength = replay();
+                openStream(validLength);
+                mWriteError = null;
+                mOpen = true;
+            }
+        }
+    }
+
+
+    //must hold mWriteLock
+    private void openStream(long validLength) throws IOException {
+        mFileOut = new FileOutputStream(mFile, true);
+        if(mFileOut.getChannel().size() > validLength){
+            //drop torn tail record
+            mFileOut.getChannel().truncate(validLength);
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+    }
+
+
+    private long replay() throws IOException {
+        if(!mFile.exists()){
+            return 0;
+        }
+
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            while (true){
+                int state = in.readByte();
+                String token = in.readUTF();
+                apply(token, state);
+                mRecordCount++;
+                //1 byte state + 2 bytes length + modified utf-8
+                validLength += 3 + utfLength(token);
+            }
+        } catch (EOFException e){
+            //end of journal or torn tail record
+        } finally {
+            in.close();
+        }
+        return validLength;
+    }
+
+
+    /**
+     * record a state transition,transitions that don't move forward are ignored
+     * the state is visible to getState() at once,the record is written on the io executor.
+     * @param purchaseToken
+     * @param state
+     * @throws IOException if not open or a previous background write failed
+     */
+    public void record(final String purchaseToken, final int state) throws IOException {
+        synchronized (this){
+            if(!mOpen){
+                throw new IOException("PurchaseJournal is not open.");
+            }
+            if(mWriteError != null){
+                IOException error = mWriteError;
+                mWriteError = null;
+                throw error;
+            }
+            if(!apply(purchaseToken, state)){
+                return;
+            }
+        }
+
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(purchaseToken, state);
+                } catch (IOException e) {
+                    onWriteError(e);
+                }
+            }
+        });
+    }
+
+
+    //on the io executor
+    private void append(String purchaseToken, int state) throws IOException {
+        synchronized (mWriteLock){
+            if(mOut == null){
+                //closed meanwhile
+                return;
+            }
+
+            mOut.writeByte(state);
+            mOut.writeUTF(purchaseToken);
+            mOut.flush();
+            mRecordCount++;
+
+            if(++mUnsyncedCount >= SYNC_BATCH){
+                syncStream();
+            }
+
+            int stateCount;
+            synchronized (this){
+                stateCount = mStates.size();
+            }
+            if(mRecordCount >= COMPACT_MIN_RECORDS && mRecordCount > 2 * stateCount){
+                compactStream();
+            }
+        }
+    }
+
+
+    private synchronized void onWriteError(IOException e){
+        if(mWriteError == null){
+            mWriteError = e;
+        }
+    }
+
+
+    public synchronized int getState(String purchaseToken){
+        Integer state = mStates.get(purchaseToken);
+        return state != null ? state : STATE_NONE;
+    }
+
+
+    /**
+     * @return tokens which are not consumed or settled yet and their last state
+     */
+    public synchronized Map<String, Integer> getUnfinished(){
+        Map<String, Integer> unfinished = new HashMap<String, Integer>();
+        for(Map.Entry<String, Integer> entry : mStates.entrySet()){
+            if(entry.getValue() < STATE_CONSUMED){
+                unfinished.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unfinished;
+    }
+
+
+    /**
+     * flush and fsync on the io executor
+     */
+    public void sync(){
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mWriteLock){
+                    try {
+                        syncStream();
+                    } catch (IOException e) {
+                        onWriteError(e);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * rewrite the journal with only the last state of unfinished tokens,on the io executor
+     * consumed and settled tokens are forgotten,their state is STATE_NONE afterwards.
+     */
+    public void compact(){
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mWriteLock){
+                    try {
+                        compactStream();
+                    } catch (IOException e) {
+                        onWriteError(e);
+                    }
+                }
+            }
+        });
+    }
+
+
+    //must hold mWriteLock
+    private void syncStream() throws IOException {
+        if(mOut == null){
+            return;
+        }
+        mOut.flush();
+        mFileOut.getFD().sync();
+        mUnsyncedCount = 0;
+    }
+
+
+    //must hold mWriteLock
+    private void compactStream() throws IOException {
+        if(mOut == null){
+            return;
+        }
+
+        //consumed and settled tokens are forgotten,records queued after this are appended to the compacted file
+        Map<String, Integer> unfinished = new HashMap<String, Integer>();
+        synchronized (this){
+            Iterator<Map.Entry<String, Integer>> iterator = mStates.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, Integer> entry = iterator.next();
+                if(entry.getValue() < STATE_CONSUMED){
+                    unfinished.put(entry.getKey(), entry.getValue());
+                }else{
+                    iterator.remove();
+                }
+            }
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream tmpFileOut = new FileOutputStream(tmpFile);
+        DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFileOut));
+        try {
+            for(Map.Entry<String, Integer> entry : unfinished.entrySet()){
+                tmpOut.writeByte(entry.getValue());
+                tmpOut.writeUTF(entry.getKey());
+            }
+            tmpOut.flush();
+            tmpFileOut.getFD().sync();
+        } finally {
+            tmpOut.close();
+        }
+
+        syncStream();
+        closeStream();
+        boolean renamed = false;
+        try {
+            renamed = tmpFile.renameTo(mFile);
+            if(!renamed){
+                throw new IOException("PurchaseJournal compact: rename failed.");
+            }
+        } finally {
+            //append to the compacted file,or keep appending to the old one which is still complete
+            if(!renamed){
+                tmpFile.delete();
+            }
+            openStream(mFile.length());
+            if(renamed){
+                mRecordCount = unfinished.size();
+            }
+        }
+    }
+
+
+    /**
+     * no more records,queued records are written,synced and the file is closed on the io executor
+     */
+    public void close(){
+        synchronized (this){
+            mOpen = false;
+        }
+
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mWriteLock){
+                    try {
+                        syncStream();
+                        closeStream();
+                    } catch (IOException e) {
+                        onWriteError(e);
+                    }
+                }
+            }
+        });
+    }
+
+
+    //must hold mWriteLock
+    private void closeStream() throws IOException {
+        if(mOut != null){
+            mOut.close();
+            mOut = null;
+            mFileOut = null;
+        }
+        mUnsyncedCount = 0;
+    }
+
+
+    private boolean apply(String purchaseToken, int state){
+        Integer current = mStates.get(purchaseToken);
+        if(current != null && current >= state){
+            return false;
+        }
+        mStates.put(purchaseToken, state);
+        return true;
+    }
+
+
+    private static int utfLength(String s){
+        int length = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F){
+                length++;
+            }else if(c > 0x07FF){
+                length += 3;
+            }else{
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,185 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * settle a batch of purchases (acknowledge/consume) with bounded concurrency
+ * failed items with a retryable response are retried up to maxRetries times with exponential backoff,
+ * one aggregated callback reports the outcome of every purchase token.
+ */
+public class PurchaseSettlement {
+    public static final String TAG = "PurchaseSettlement";
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_RETRY_DELAY_MS = 1000;
+
+    private final Settler mSettler;
+    private final int mMaxConcurrency;
+    private final int mMaxRetries;
+    private final IabScheduler mScheduler;
+    private final long mRetryDelayMs;
+
+
+    public PurchaseSettlement(Settler settler){
+        this(settler, DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_RETRIES, new IabScheduler.MainThreadScheduler(), DEFAULT_RETRY_DELAY_MS);
+    }
+
+
+    /**
+     * @param settler
+     * @param maxConcurrency
+     * @param maxRetries
+     * @param scheduler retries are scheduled on it
+     * @param retryDelayMs delay of the first retry,doubled for every next one
+     */
+    public PurchaseSettlement(Settler settler, int maxConcurrency, int maxRetries, IabScheduler scheduler, long retryDelayMs){
+        mSettler = settler;
+        mMaxConcurrency = Math.max(1, maxConcurrency);
+        mMaxRetries = Math.max(0, maxRetries);
+        mScheduler = scheduler;
+        mRetryDelayMs = Math.max(0, retryDelayMs);
+    }
+
+
+    /**
+     * settle purchases,at most maxConcurrency of them are in flight at a time
+     * @param purchases
+     * @param listener receive outcomes keyed by purchase token,in the order of purchases
+     */
+    public void settle(List<Purchase> purchases, OnSettlementFinishedListener listener){
+        IabLog.d(TAG,"settle: ", purchases.size());
+        new Batch(purchases, listener).start();
+    }
+
+
+    private static boolean isRetryable(int responseCode){
+        return responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED
+                || responseCode == BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE
+                || responseCode == BillingClient.BillingResponseCode.SERVICE_TIMEOUT
+                || responseCode == BillingClient.BillingResponseCode.ERROR;
+    }
+
+
+    private class Batch implements PayHelper.OnPurchaseHandledListener{
+        private final ArrayDeque<Purchase> mQueue;
+        private final Map<String, BillingResult> mOutcomes = new LinkedHashMap<String, BillingResult>();
+        private final Map<String, Integer> mAttempts = new LinkedHashMap<String, Integer>();
+        private final OnSettlementFinishedListener mListener;
+        private final long mStartNanos = System.nanoTime();
+        private int mInFlight = 0;
+        private boolean mDispatching = false;
+        private int mRemaining;
+
+        Batch(List<Purchase> purchases, OnSettlementFinishedListener listener){
+            mQueue = new ArrayDeque<Purchase>(purchases);
+            mRemaining = purchases.size();
+            mListener = listener;
+            for(Purchase purchase : purchases){
+                //keep input order in outcomes
+                mOutcomes.put(purchase.getPurchaseToken(), null);
+            }
+        }
+
+        void start(){
+            if(mRemaining == 0){
+                finish();
+                return;
+            }
+            dispatch();
+        }
+
+        //single dispatcher at a time,settlers that call back synchronously don't recurse
+        private void dispatch(){
+            synchronized (this){
+                if(mDispatching){
+                    return;
+                }
+                mDispatching = true;
+            }
+
+            while (true){
+                Purchase next;
+                synchronized (this){
+                    if(mInFlight >= mMaxConcurrency || mQueue.isEmpty()){
+                        mDispatching = false;
+                        return;
+                    }
+                    next = mQueue.poll();
+                    mInFlight++;
+                    Integer attempts = mAttempts.get(next.getPurchaseToken());
+                    mAttempts.put(next.getPurchaseToken(), attempts == null ? 1 : attempts + 1);
+                }
+                mSettler.settle(next, this);
+            }
+        }
+
+        @Override
+        public void onPurchaseHandled(final Purchase purchase, BillingResult result) {
+            boolean finished;
+            long retryDelayMs = -1;
+            synchronized (this){
+                mInFlight--;
+                String purchaseToken = purchase.getPurchaseToken();
+                int attempts = mAttempts.get(purchaseToken);
+                if(result.getResponseCode() != BillingClient.BillingResponseCode.OK
+                        && purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED
+                        && isRetryable(result.getResponseCode())
+                        && attempts <= mMaxRetries){
+                    //back off,the slot is free for other purchases meanwhile
+                    retryDelayMs = mRetryDelayMs << Math.min(attempts - 1, 16);
+                    finished = false;
+                }else{
+                    mOutcomes.put(purchaseToken, result);
+                    finished = --mRemaining == 0;
+                }
+            }
+
+            if(retryDelayMs >= 0){
+                IabLog.d(TAG,"retry in(ms) ", retryDelayMs);
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Batch.this){
+                            mQueue.add(purchase);
+                        }
+                        dispatch();
+                    }
+                }, retryDelayMs);
+            }
+
+            if(finished){
+                finish();
+            }else{
+                dispatch();
+            }
+        }
+
+        private void finish(){
+            IabLog.d(TAG,"settle finished: ", mOutcomes.size(), ", cost(ms) ", (System.nanoTime() - mStartNanos) / 1000000L);
+            if(mListener != null){
+                mListener.onSettlementFinished(Collections.unmodifiableMap(mOutcomes));
+            }
+        }
+    }
+
+
+    //settle one purchase,call back the listener exactly once
+    public interface Settler{
+        void settle(Purchase purchase, PayHelper.OnPurchaseHandledListener listener);
+    }
+
+
+    //aggregated settlement callback
+    public interface OnSettlementFinishedListener{
+        void onSettlementFinished(Map<String, BillingResult> outcomes);
+    }
+}
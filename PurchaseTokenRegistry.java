@@ -0,0 +1,203 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * in-flight and completed purchase tokens
+ * the first caller of a token owns the work,concurrent callers attach to its result,
+ * callers after a successful completion get the cached result till it expires.
+ * failed work is forgotten so it can be retried.
+ */
+public class PurchaseTokenRegistry {
+    public static final long DEFAULT_EXPIRE_MS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final ConcurrentHashMap<String, TokenEntry> mEntries = new ConcurrentHashMap<String, TokenEntry>();
+    private final long mExpireMs;
+    private final int mMaxSize;
+    private final IabClock mClock;
+
+
+    public PurchaseTokenRegistry(){
+        this(DEFAULT_EXPIRE_MS, DEFAULT_MAX_SIZE, IabClock.SYSTEM);
+    }
+
+
+    public PurchaseTokenRegistry(long expireMs, int maxSize, IabClock clock){
+        mExpireMs = expireMs;
+        mMaxSize = maxSize;
+        mClock = clock;
+    }
+
+
+    /**
+     * begin work of a token
+     * @param purchaseToken
+     * @param listener receive the result of the work,may be called immediately with a cached result
+     * @return true if caller owns the work and must call complete(),false if it is a duplicate
+     */
+    public boolean begin(String purchaseToken, OnTokenCompleteListener listener){
+        while (true){
+            TokenEntry entry = mEntries.get(purchaseToken);
+            if(entry == null){
+                TokenEntry newEntry = new TokenEntry();
+                newEntry.waiters.add(listener);
+                if(mEntries.putIfAbsent(purchaseToken, newEntry) == null){
+                    return true;
+                }
+                continue;
+            }
+
+            BillingResult result;
+            synchronized (entry){
+                if(!entry.done){
+                    entry.waiters.add(listener);
+                    return false;
+                }
+
+                if(mClock.now() >= entry.expireAt){
+                    mEntries.remove(purchaseToken, entry);
+                    continue;
+                }
+                result = entry.result;
+            }
+
+            listener.onTokenComplete(purchaseToken, result);
+            return false;
+        }
+    }
+
+
+    /**
+     * finish work of a token,notify the owner and every attached caller
+     * @param purchaseToken
+     * @param result
+     */
+    public void complete(String purchaseToken, BillingResult result){
+        TokenEntry entry = mEntries.get(purchaseToken);
+        if(entry == null){
+            return;
+        }
+
+        boolean ok = result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+        List<OnTokenCompleteListener> waiters;
+        synchronized (entry){
+            if(entry.done){
+                return;
+            }
+            entry.done = true;
+            entry.result = result;
+            long now = mClock.now();
+            //failures are not cached,a begin still holding the entry sees it expired and owns the retry
+            entry.expireAt = ok ? now + mExpireMs : now;
+            if(!ok){
+                mEntries.remove(purchaseToken, entry);
+            }
+            waiters = new ArrayList<OnTokenCompleteListener>(entry.waiters);
+            entry.waiters.clear();
+        }
+
+        if(ok && mEntries.size() > mMaxSize){
+            trim();
+        }
+
+        for(OnTokenCompleteListener waiter : waiters){
+            waiter.onTokenComplete(purchaseToken, result);
+        }
+    }
+
+
+    public boolean isInFlight(String purchaseToken){
+        TokenEntry entry = mEntries.get(purchaseToken);
+        if(entry == null){
+            return false;
+        }
+        synchronized (entry){
+            return !entry.done;
+        }
+    }
+
+
+    public int size(){
+        return mEntries.size();
+    }
+
+
+    /**
+     * drop every token,callers still waiting for in-flight work get an ERROR result
+     * a complete() of the dropped work afterwards is ignored.
+     */
+    public void clear(){
+        BillingResult cleared = BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                .setDebugMessage("Purchase token registry is cleared.")
+                .build();
+
+        Iterator<Map.Entry<String, TokenEntry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<String, TokenEntry> mapEntry = iterator.next();
+            TokenEntry entry = mapEntry.getValue();
+            iterator.remove();
+
+            List<OnTokenCompleteListener> waiters;
+            synchronized (entry){
+                if(entry.done){
+                    continue;
+                }
+                entry.done = true;
+                entry.result = cleared;
+                waiters = new ArrayList<OnTokenCompleteListener>(entry.waiters);
+                entry.waiters.clear();
+            }
+
+            for(OnTokenCompleteListener waiter : waiters){
+                waiter.onTokenComplete(mapEntry.getKey(), cleared);
+            }
+        }
+    }
+
+
+    //drop expired entries first,then any completed entries till under max size,in-flight entries are kept
+    private void trim(){
+        long now = mClock.now();
+        boolean expiredOnly = true;
+        while (mEntries.size() > mMaxSize){
+            boolean removed = false;
+            Iterator<Map.Entry<String, TokenEntry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext() && mEntries.size() > mMaxSize){
+                TokenEntry entry = iterator.next().getValue();
+                synchronized (entry){
+                    if(entry.done && (!expiredOnly || now >= entry.expireAt)){
+                        iterator.remove();
+                        removed = true;
+                    }
+                }
+            }
+
+            if(!expiredOnly && !removed){
+                return;
+            }
+            expiredOnly = false;
+        }
+    }
+
+
+    private static class TokenEntry{
+        final List<OnTokenCompleteListener> waiters = new ArrayList<OnTokenCompleteListener>(1);
+        boolean done;
+        BillingResult result;
+        long expireAt;
+    }
+
+
+    public interface OnTokenCompleteListener{
+        void onTokenComplete(String purchaseToken, BillingResult result);
+    }
+}
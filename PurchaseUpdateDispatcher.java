@@ -0,0 +1,297 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * route purchase updates to the purchase flows that started them
+ * purchases are matched to flows by sku,oldest flow first,a flow left with a pending purchase only
+ * matches that purchase token afterwards.
+ * an update without purchases (canceled,error) goes to the latest flow,
+ * purchases no flow is waiting for go to background subscribers.
+ * flows end on the update,when a restore or check settles their pending purchase,or when they expire.
+ */
+public class PurchaseUpdateDispatcher {
+
+    /**
+     * a flow ended before any update reached it,it expired,was ended or cleared
+     */
+    public interface OnFlowEndedListener{
+        void onFlowEnded();
+    }
+
+    public static final String TAG = "PurchaseUpdateDispatcher";
+
+    //a launched flow without any update
+    public static final long DEFAULT_FLOW_EXPIRE_MS = 30 * 60 * 1000L;
+    //a flow waiting for its pending purchase,like a cash payment
+    public static final long DEFAULT_PENDING_FLOW_EXPIRE_MS = 3 * 24 * 60 * 60 * 1000L;
+
+    private final IabClock mClock;
+    private final long mFlowExpireMs;
+    private final long mPendingFlowExpireMs;
+    private final CopyOnWriteArrayList<Flow> mFlows = new CopyOnWriteArrayList<Flow>();
+    private final CopyOnWriteArrayList<IabHelper.OnIabPurchaseListener> mSubscribers
+            = new CopyOnWriteArrayList<IabHelper.OnIabPurchaseListener>();
+    private volatile Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+
+    public PurchaseUpdateDispatcher(){
+        this(IabClock.SYSTEM, DEFAULT_FLOW_EXPIRE_MS, DEFAULT_PENDING_FLOW_EXPIRE_MS);
+    }
+
+
+    public PurchaseUpdateDispatcher(IabClock clock, long flowExpireMs, long pendingFlowExpireMs){
+        mClock = clock;
+        mFlowExpireMs = flowExpireMs;
+        mPendingFlowExpireMs = pendingFlowExpireMs;
+    }
+
+
+    /**
+     * deliver updates on executor,by default on the thread of onPurchasesUpdated
+     * @param executor
+     */
+    public void setExecutor(Executor executor){
+        if(executor != null){
+            mExecutor = executor;
+        }
+    }
+
+
+    /**
+     * a purchase flow is launched
+     * @param sku
+     * @param listener
+     * @return the flow,pass it to endFlow if it fails before launch
+     */
+    public Object beginFlow(String sku, IabHelper.OnIabPurchaseListener listener){
+        return beginFlow(sku, listener, null);
+    }
+
+
+    /**
+     * a purchase flow is launched
+     * @param sku
+     * @param listener
+     * @param endedListener called if the flow ends without any update,may be null
+     * @return the flow,pass it to endFlow if it fails before launch
+     */
+    public Object beginFlow(String sku, IabHelper.OnIabPurchaseListener listener, OnFlowEndedListener endedListener){
+        removeExpired();
+        Flow flow = new Flow(sku, listener, endedListener, mClock.now() + mFlowExpireMs);
+        mFlows.add(flow);
+        return flow;
+    }
+
+
+    public void endFlow(Object flow){
+        if(mFlows.remove(flow)){
+            ended((Flow) flow);
+        }
+    }
+
+
+    /**
+     * a pending purchase is settled outside of purchase updates,paid or cancelled as seen by a restore or a check
+     * the flow waiting for it ends without a callback,the purchase is handled by whoever settled it.
+     * @param purchaseToken
+     */
+    public void endPendingFlow(String purchaseToken){
+        for(Flow flow : mFlows){
+            if(purchaseToken.equals(flow.purchaseToken)){
+                mFlows.remove(flow);
+            }
+        }
+    }
+
+
+    public int getFlowCount(){
+        return mFlows.size();
+    }
+
+
+    public void addSubscriber(IabHelper.OnIabPurchaseListener listener){
+        mSubscribers.addIfAbsent(listener);
+    }
+
+
+    public void removeSubscriber(IabHelper.OnIabPurchaseListener listener){
+        mSubscribers.remove(listener);
+    }
+
+
+    /**
+     * forget every flow and subscriber
+     */
+    public void clear(){
+        for(Flow flow : mFlows){
+            if(mFlows.remove(flow)){
+                ended(flow);
+            }
+        }
+        mSubscribers.clear();
+    }
+
+
+    public void dispatch(BillingResult billingResult, List<Purchase> purchases){
+        removeExpired();
+        if(purchases == null || purchases.isEmpty()){
+            //no sku to match,it belongs to the flow in the foreground
+            Flow latest = null;
+            for(Flow flow : mFlows){
+                if(flow.purchaseToken == null){
+                    latest = flow;
+                }
+            }
+
+            if(latest != null && mFlows.remove(latest)){
+                deliver(latest.listener, billingResult, purchases);
+            }else{
+                deliverToSubscribers(billingResult, purchases);
+            }
+            return;
+        }
+
+        Map<Flow, List<Purchase>> matched = new LinkedHashMap<Flow, List<Purchase>>();
+        List<Purchase> unmatched = new ArrayList<Purchase>();
+        for(Purchase purchase : purchases){
+            Flow flow = findFlow(purchase, matched);
+            if(flow == null){
+                unmatched.add(purchase);
+                continue;
+            }
+
+            List<Purchase> flowPurchases = matched.get(flow);
+            if(flowPurchases == null){
+                flowPurchases = new ArrayList<Purchase>(1);
+                matched.put(flow, flowPurchases);
+            }
+            flowPurchases.add(purchase);
+        }
+
+        for(Map.Entry<Flow, List<Purchase>> entry : matched.entrySet()){
+            Flow flow = entry.getKey();
+            Purchase pending = findPending(entry.getValue());
+            if(pending == null){
+                mFlows.remove(flow);
+            }else{
+                //a pending purchase keeps its flow for the later update of the same token
+                flow.purchaseToken = pending.getPurchaseToken();
+                flow.expireAt = mClock.now() + mPendingFlowExpireMs;
+            }
+            deliver(flow.listener, billingResult, entry.getValue());
+        }
+
+        if(!unmatched.isEmpty()){
+            deliverToSubscribers(billingResult, unmatched);
+        }
+    }
+
+
+    //flow waiting for this pending purchase,or the oldest flow of sku which isn't matched in this update yet
+    private Flow findFlow(Purchase purchase, Map<Flow, List<Purchase>> matched){
+        String sku = purchase.getSku();
+        for(Flow flow : mFlows){
+            if(purchase.getPurchaseToken().equals(flow.purchaseToken)){
+                return flow;
+            }
+        }
+
+        for(Flow flow : mFlows){
+            if(flow.purchaseToken == null && flow.sku != null && flow.sku.equals(sku) && !matched.containsKey(flow)){
+                return flow;
+            }
+        }
+
+        //same sku bought twice in one update,give it to the flow already matched
+        for(Flow flow : matched.keySet()){
+            if(flow.sku.equals(sku)){
+                return flow;
+            }
+        }
+        return null;
+    }
+
+
+    private static Purchase findPending(List<Purchase> purchases){
+        for(Purchase purchase : purchases){
+            if(purchase.getPurchaseState() == Purchase.PurchaseState.PENDING){
+                return purchase;
+            }
+        }
+        return null;
+    }
+
+
+    //an expired flow is dropped without a purchase callback,a late update goes to background subscribers
+    private void removeExpired(){
+        long now = mClock.now();
+        for(Flow flow : mFlows){
+            if(now >= flow.expireAt && mFlows.remove(flow)){
+                IabLog.d(TAG,"flow expired: ", flow.sku);
+                ended(flow);
+            }
+        }
+    }
+
+
+    //only a flow no update reached,a pending flow already had its first update
+    private static void ended(Flow flow){
+        if(flow.purchaseToken == null && flow.endedListener != null){
+            flow.endedListener.onFlowEnded();
+        }
+    }
+
+
+    private void deliverToSubscribers(BillingResult billingResult, List<Purchase> purchases){
+        if(mSubscribers.isEmpty()){
+            IabLog.d(TAG,"dispatch: no flow or subscriber for the purchase update.");
+            return;
+        }
+
+        for(IabHelper.OnIabPurchaseListener subscriber : mSubscribers){
+            deliver(subscriber, billingResult, purchases);
+        }
+    }
+
+
+    private void deliver(final IabHelper.OnIabPurchaseListener listener, final BillingResult billingResult,
+                         final List<Purchase> purchases){
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPurchaseResponse(billingResult, purchases);
+            }
+        });
+    }
+
+
+    private static class Flow{
+        final String sku;
+        final IabHelper.OnIabPurchaseListener listener;
+        final OnFlowEndedListener endedListener;
+        //token of the pending purchase the flow waits for
+        volatile String purchaseToken;
+        volatile long expireAt;
+
+        Flow(String sku, IabHelper.OnIabPurchaseListener listener, OnFlowEndedListener endedListener, long expireAt){
+            this.sku = sku;
+            this.listener = listener;
+            this.endedListener = endedListener;
+            this.expireAt = expireAt;
+        }
+    }
+}
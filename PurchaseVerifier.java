@@ -0,0 +1,364 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * verify purchases on our backend before acknowledge
+ * tokens arriving within a short window are sent in one request,verdicts are cached by purchase token.
+ * the default transport posts json over keep-alive HttpURLConnection,so a restore reuses one tls connection,
+ * point it at a local stub server for testing or replace the transport.
+ * request:  {"purchases":[{"purchaseToken","productId","orderId","originalJson","signature"}]}
+ * response: {"results":[{"purchaseToken","valid":true}]}
+ */
+public class PurchaseVerifier {
+    public static final String TAG = "PurchaseVerifier";
+
+    public static final int VERDICT_VALID = 0;
+    public static final int VERDICT_INVALID = 1;
+    //network or server error,not cached,verify again later
+    public static final int VERDICT_ERROR = 2;
+
+    public static final long DEFAULT_BATCH_WINDOW_MS = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final int DEFAULT_MAX_CACHED_VERDICTS = 500;
+
+    private final Transport mTransport;
+    private final IabScheduler mScheduler;
+    private final Executor mCallbackExecutor;
+    private final long mBatchWindowMs;
+    private final int mMaxBatchSize;
+
+    //guarded by this
+    private final LinkedHashMap<String, List<OnPurchaseVerifiedListener>> mPending
+            = new LinkedHashMap<String, List<OnPurchaseVerifiedListener>>();
+    private final Map<String, Purchase> mPendingPurchases = new HashMap<String, Purchase>();
+    private IabScheduler.Cancellable mFlushTask;
+    private boolean mShutdown = false;
+    private final LinkedHashMap<String, Integer> mVerdicts = new LinkedHashMap<String, Integer>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > DEFAULT_MAX_CACHED_VERDICTS;
+        }
+    };
+
+    //requests in flight,a couple of threads share the keep-alive connections
+    private final ExecutorService mNetworkExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "IabVerify-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+
+    public PurchaseVerifier(String endpoint, IabScheduler scheduler, Executor callbackExecutor){
+        this(new HttpTransport(endpoint), scheduler, callbackExecutor, DEFAULT_BATCH_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+
+    public PurchaseVerifier(Transport transport, IabScheduler scheduler, Executor callbackExecutor,
+                            long batchWindowMs, int maxBatchSize){
+        mTransport = transport;
+        mScheduler = scheduler;
+        mCallbackExecutor = callbackExecutor;
+        mBatchWindowMs = batchWindowMs;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+
+    /**
+     * verify a purchase,answered from cache if verified before
+     * @param purchase
+     * @param listener called on the callback executor
+     */
+    public void verify(Purchase purchase, final OnPurchaseVerifiedListener listener){
+        final String purchaseToken = purchase.getPurchaseToken();
+        boolean flushNow = false;
+        final Integer cached;
+        synchronized (this){
+            //shut down,an error verdict,verified again on next restore
+            cached = mShutdown ? Integer.valueOf(VERDICT_ERROR) : mVerdicts.get(purchaseToken);
+            if(cached == null){
+                List<OnPurchaseVerifiedListener> listeners = mPending.get(purchaseToken);
+                if(listeners == null){
+                    listeners = new ArrayList<OnPurchaseVerifiedListener>(1);
+                    mPending.put(purchaseToken, listeners);
+                    mPendingPurchases.put(purchaseToken, purchase);
+                }
+                listeners.add(listener);
+
+                flushNow = mPending.size() >= mMaxBatchSize;
+                if(!flushNow && mFlushTask == null){
+                    mFlushTask = mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, mBatchWindowMs);
+                }
+            }
+        }
+        if(cached != null){
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPurchaseVerified(purchaseToken, cached);
+                }
+            });
+            return;
+        }
+
+        if(flushNow){
+            flush();
+        }
+    }
+
+
+    public synchronized void invalidate(String purchaseToken){
+        mVerdicts.remove(purchaseToken);
+    }
+
+
+    //queued callers get an error verdict,later ones too,requests in flight still deliver
+    public void shutdown(){
+        Map<String, List<OnPurchaseVerifiedListener>> queued;
+        synchronized (this){
+            mShutdown = true;
+            if(mFlushTask != null){
+                mFlushTask.cancel();
+                mFlushTask = null;
+            }
+            queued = new LinkedHashMap<String, List<OnPurchaseVerifiedListener>>(mPending);
+            mPending.clear();
+            mPendingPurchases.clear();
+        }
+        mNetworkExecutor.shutdown();
+        deliver(queued, new HashMap<String, Integer>());
+    }
+
+
+    private void flush(){
+        final List<Purchase> batch;
+        final Map<String, List<OnPurchaseVerifiedListener>> listeners;
+        synchronized (this){
+            if(mFlushTask != null){
+                mFlushTask.cancel();
+                mFlushTask = null;
+            }
+            if(mPending.isEmpty()){
+                return;
+            }
+
+            listeners = new LinkedHashMap<String, List<OnPurchaseVerifiedListener>>();
+            batch = new ArrayList<Purchase>();
+            for(Map.Entry<String, List<OnPurchaseVerifiedListener>> entry : mPending.entrySet()){
+                listeners.put(entry.getKey(), entry.getValue());
+                batch.add(mPendingPurchases.get(entry.getKey()));
+                if(batch.size() == mMaxBatchSize){
+                    break;
+                }
+            }
+            for(String purchaseToken : listeners.keySet()){
+                mPending.remove(purchaseToken);
+                mPendingPurchases.remove(purchaseToken);
+            }
+            //more than one batch queued,send the rest after the window
+            if(!mPending.isEmpty()){
+                mFlushTask = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, mBatchWindowMs);
+            }
+        }
+
+        IabLog.d(TAG, "flush: ", batch.size());
+        try {
+            sendBatch(batch, listeners);
+        } catch (RejectedExecutionException e) {
+            //shut down after the batch was taken
+            deliver(listeners, new HashMap<String, Integer>());
+        }
+    }
+
+
+    private void sendBatch(final List<Purchase> batch, final Map<String, List<OnPurchaseVerifiedListener>> listeners){
+        mNetworkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Integer> verdicts;
+                try {
+                    verdicts = mTransport.verify(batch);
+                } catch (IOException e) {
+                    IabLog.e(TAG, "verify: ", e.getMessage());
+                    verdicts = new HashMap<String, Integer>();
+                }
+                deliver(listeners, verdicts);
+            }
+        });
+    }
+
+
+    private void deliver(Map<String, List<OnPurchaseVerifiedListener>> listeners, Map<String, Integer> verdicts){
+        synchronized (this){
+            for(Map.Entry<String, Integer> verdict : verdicts.entrySet()){
+                if(verdict.getValue() != VERDICT_ERROR){
+                    mVerdicts.put(verdict.getKey(), verdict.getValue());
+                }
+            }
+        }
+
+        for(final Map.Entry<String, List<OnPurchaseVerifiedListener>> entry : listeners.entrySet()){
+            Integer verdict = verdicts.get(entry.getKey());
+            final int result = verdict != null ? verdict : VERDICT_ERROR;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(OnPurchaseVerifiedListener listener : entry.getValue()){
+                        listener.onPurchaseVerified(entry.getKey(), result);
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * send a batch to the backend
+     */
+    public interface Transport{
+        /**
+         * @param purchases
+         * @return purchase token -> VERDICT_*,tokens missing are treated as VERDICT_ERROR
+         * @throws IOException
+         */
+        Map<String, Integer> verify(List<Purchase> purchases) throws IOException;
+    }
+
+
+    /**
+     * json over HttpURLConnection,connections are kept alive and pooled by the platform
+     * as long as every response body is read to the end and the connection is not disconnected.
+     */
+    public static class HttpTransport implements Transport{
+        private final String mEndpoint;
+        private int mConnectTimeoutMs = 10 * 1000;
+        private int mReadTimeoutMs = 15 * 1000;
+
+
+        public HttpTransport(String endpoint){
+            mEndpoint = endpoint;
+        }
+
+
+        public void setTimeouts(int connectTimeoutMs, int readTimeoutMs){
+            mConnectTimeoutMs = connectTimeoutMs;
+            mReadTimeoutMs = readTimeoutMs;
+        }
+
+
+        @Override
+        public Map<String, Integer> verify(List<Purchase> purchases) throws IOException {
+            byte[] body;
+            try {
+                JSONArray array = new JSONArray();
+                for(Purchase purchase : purchases){
+                    JSONObject json = new JSONObject();
+                    json.put("purchaseToken", purchase.getPurchaseToken());
+                    json.put("productId", purchase.getSku());
+                    json.put("orderId", purchase.getOrderId());
+                    json.put("originalJson", purchase.getOriginalJson());
+                    json.put("signature", purchase.getSignature());
+                    array.put(json);
+                }
+                body = new JSONObject().put("purchases", array).toString().getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(mEndpoint).openConnection();
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Connection", "keep-alive");
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            //read to the end,or the connection can't go back to the pool
+            String response = in != null ? readFully(in) : "";
+            if(code != HttpURLConnection.HTTP_OK){
+                throw new IOException("verify http code: " + code);
+            }
+
+            Map<String, Integer> verdicts = new HashMap<String, Integer>();
+            try {
+                JSONArray results = new JSONObject(response).getJSONArray("results");
+                for(int i = 0; i < results.length(); i++){
+                    JSONObject result = results.getJSONObject(i);
+                    verdicts.put(result.getString("purchaseToken"),
+                            result.optBoolean("valid") ? VERDICT_VALID : VERDICT_INVALID);
+                }
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+            return verdicts;
+        }
+
+
+        private static String readFully(InputStream in) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1){
+                    out.write(buffer, 0, n);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+
+    //verification callback
+    public interface OnPurchaseVerifiedListener{
+        void onPurchaseVerified(String purchaseToken, int verdict);
+    }
+}
@@ -0,0 +1,241 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * merge sku details lookups into as few querySkuDetailsAsync calls as possible
+ * single sku lookups within a short window share one call,large lists are split into chunks.
+ * every caller gets its own SkuDetails back from the shared response.
+ */
+public class SkuDetailsBatcher {
+    public static final String TAG = "SkuDetailsBatcher";
+
+    //skus per SkuDetailsParams,same as the chunk size used by play store
+    public static final int MAX_SKUS_PER_REQUEST = 20;
+    public static final long DEFAULT_WINDOW_MS = 50;
+
+    private final IabHelper mIabHelper;
+    private final SkuDetailsCache mCache;
+    private final IabScheduler mScheduler;
+    private final long mWindowMs;
+
+    //skuType -> (sku -> waiting listeners),guarded by this
+    private final Map<String, LinkedHashMap<String, List<SkuDetailsResponseListener>>> mPending
+            = new HashMap<String, LinkedHashMap<String, List<SkuDetailsResponseListener>>>();
+    private final Map<String, IabScheduler.Cancellable> mFlushTasks = new HashMap<String, IabScheduler.Cancellable>();
+
+
+    public SkuDetailsBatcher(IabHelper iabHelper, SkuDetailsCache cache){
+        this(iabHelper, cache, new IabScheduler.MainThreadScheduler(), DEFAULT_WINDOW_MS);
+    }
+
+
+    public SkuDetailsBatcher(IabHelper iabHelper, SkuDetailsCache cache, IabScheduler scheduler, long windowMs){
+        mIabHelper = iabHelper;
+        mCache = cache;
+        mScheduler = scheduler;
+        mWindowMs = windowMs;
+    }
+
+
+    /**
+     * query one sku,merged with other lookups of the same type within the window
+     * @param sku
+     * @param skuType
+     * @param listener receive a list with the sku details,or an empty list if play doesn't know the sku
+     */
+    public void querySku(String sku, @BillingClient.SkuType final String skuType, SkuDetailsResponseListener listener){
+        synchronized (this){
+            enqueue(skuType, sku, listener);
+            if(mFlushTasks.containsKey(skuType)){
+                return;
+            }
+
+            mFlushTasks.put(skuType, mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(skuType);
+                }
+            }, mWindowMs));
+        }
+    }
+
+
+    /**
+     * prefetch a sku catalog into cache,fresh cached skus are not queried again
+     * @param skus
+     * @param skuType
+     * @param listener optional,receive all sku details once every chunk is back
+     */
+    public void prefetchSkus(Collection<String> skus, @BillingClient.SkuType String skuType, SkuDetailsResponseListener listener){
+        List<SkuDetails> cachedList = new ArrayList<SkuDetails>();
+        List<String> missingList = new ArrayList<String>();
+        for(String sku : skus){
+            SkuDetails cached = mCache.get(skuType, sku);
+            if(cached != null && !mCache.claimRefresh(skuType, sku)){
+                cachedList.add(cached);
+            }else if(!missingList.contains(sku)){
+                missingList.add(sku);
+            }
+        }
+
+        IabLog.d(TAG,"prefetchSkus: cached ", cachedList.size(), ", query ", missingList.size());
+        Aggregator aggregator = new Aggregator(missingList.size(), cachedList, listener);
+        if(missingList.isEmpty()){
+            aggregator.finish();
+            return;
+        }
+
+        synchronized (this){
+            for(String sku : missingList){
+                enqueue(skuType, sku, aggregator);
+            }
+        }
+        flush(skuType);
+    }
+
+
+    //must hold this
+    private void enqueue(String skuType, String sku, SkuDetailsResponseListener listener){
+        LinkedHashMap<String, List<SkuDetailsResponseListener>> pending = mPending.get(skuType);
+        if(pending == null){
+            pending = new LinkedHashMap<String, List<SkuDetailsResponseListener>>();
+            mPending.put(skuType, pending);
+        }
+
+        List<SkuDetailsResponseListener> listeners = pending.get(sku);
+        if(listeners == null){
+            listeners = new ArrayList<SkuDetailsResponseListener>(1);
+            pending.put(sku, listeners);
+        }
+        listeners.add(listener);
+    }
+
+
+    private void flush(@BillingClient.SkuType final String skuType){
+        LinkedHashMap<String, List<SkuDetailsResponseListener>> pending;
+        synchronized (this){
+            IabScheduler.Cancellable flushTask = mFlushTasks.remove(skuType);
+            if(flushTask != null){
+                flushTask.cancel();
+            }
+            pending = mPending.remove(skuType);
+        }
+
+        if(pending == null || pending.isEmpty()){
+            return;
+        }
+
+        List<String> skuList = new ArrayList<String>(pending.keySet());
+        for(int start = 0; start < skuList.size(); start += MAX_SKUS_PER_REQUEST){
+            List<String> chunk = new ArrayList<String>(
+                    skuList.subList(start, Math.min(start + MAX_SKUS_PER_REQUEST, skuList.size())));
+            queryChunk(skuType, chunk, pending);
+        }
+    }
+
+
+    private void queryChunk(@BillingClient.SkuType final String skuType, final List<String> chunk,
+                            final Map<String, List<SkuDetailsResponseListener>> pending){
+        SkuDetailsParams skuDetailsParams = SkuDetailsParams.newBuilder()
+                .setSkusList(chunk)
+                .setType(skuType)
+                .build();
+
+        //a chunk only prefetches are waiting for goes behind interactive requests
+        int priority = IabRequestScheduler.PRIORITY_PREFETCH;
+        for(String sku : chunk){
+            for(SkuDetailsResponseListener listener : pending.get(sku)){
+                if(!(listener instanceof Aggregator)){
+                    priority = IabRequestScheduler.PRIORITY_QUERY;
+                }
+            }
+        }
+
+        mIabHelper.querySkuDetails(skuDetailsParams, priority).addListener(new IabFuture.Callback<IabHelper.SkuDetailsResult>() {
+            @Override
+            public void onComplete(IabHelper.SkuDetailsResult response) {
+                BillingResult billingResult = response.billingResult;
+                List<SkuDetails> skuDetailsList = response.skuDetailsList;
+                boolean ok = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK;
+                Map<String, SkuDetails> detailsMap = new HashMap<String, SkuDetails>();
+                if(ok && skuDetailsList != null){
+                    mCache.putAll(skuType, skuDetailsList);
+                    for(SkuDetails skuDetails : skuDetailsList){
+                        detailsMap.put(skuDetails.getSku(), skuDetails);
+                    }
+                }
+
+                for(String sku : chunk){
+                    SkuDetails skuDetails = detailsMap.get(sku);
+                    //not refreshed,failed or play doesn't return the sku,let the next caller retry
+                    if(skuDetails == null){
+                        mCache.releaseRefresh(skuType, sku);
+                    }
+
+                    List<SkuDetails> result = !ok ? null
+                            : skuDetails != null ? Collections.singletonList(skuDetails)
+                            : Collections.<SkuDetails>emptyList();
+                    for(SkuDetailsResponseListener listener : pending.get(sku)){
+                        listener.onSkuDetailsResponse(billingResult, result);
+                    }
+                }
+            }
+        }, mIabHelper.getCallbackExecutor());
+    }
+
+
+    //collect per sku responses of one prefetch into a single callback
+    private static class Aggregator implements SkuDetailsResponseListener{
+        private final SkuDetailsResponseListener mListener;
+        private final List<SkuDetails> mResultList;
+        private int mRemaining;
+        private BillingResult mFirstError;
+
+        Aggregator(int count, List<SkuDetails> cachedList, SkuDetailsResponseListener listener){
+            mRemaining = count;
+            mResultList = cachedList;
+            mListener = listener;
+        }
+
+        @Override
+        public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+            synchronized (this){
+                if(billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                    if(mFirstError == null){
+                        mFirstError = billingResult;
+                    }
+                }else if(skuDetailsList != null){
+                    mResultList.addAll(skuDetailsList);
+                }
+
+                if(--mRemaining > 0){
+                    return;
+                }
+            }
+            finish();
+        }
+
+        void finish(){
+            if(mListener == null){
+                return;
+            }
+
+            BillingResult billingResult = mFirstError != null ? mFirstError
+                    : BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build();
+            mListener.onSkuDetailsResponse(billingResult, mResultList);
+        }
+    }
+}
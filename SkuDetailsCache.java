@@ -0,0 +1,192 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.SkuDetails;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * in-memory SkuDetails cache keyed by (skuType, sku)
+ * entries are fresh within ttl,stale (served but should be refreshed) within ttl + staleWindow,
+ * the least recently used entry is evicted when the cache is full.
+ */
+public class SkuDetailsCache {
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    public static final long DEFAULT_STALE_WINDOW_MS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_SIZE = 200;
+
+    private final long mTtlMs;
+    private final long mStaleWindowMs;
+    private final int mMaxSize;
+    private final IabClock mClock;
+
+    //access ordered,eldest is least recently used
+    private final LinkedHashMap<String, CacheEntry> mEntries;
+
+    private long mHitCount;
+    private long mStaleHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+
+    public SkuDetailsCache(){
+        this(DEFAULT_TTL_MS, DEFAULT_STALE_WINDOW_MS, DEFAULT_MAX_SIZE, IabClock.SYSTEM);
+    }
+
+
+    public SkuDetailsCache(long ttlMs, long staleWindowMs, final int maxSize, IabClock clock){
+        mTtlMs = ttlMs;
+        mStaleWindowMs = staleWindowMs;
+        mMaxSize = maxSize;
+        mClock = clock;
+        mEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if(size() > mMaxSize){
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * get a fresh or stale sku details
+     * @param skuType
+     * @param sku
+     * @return null if missing or expired
+     */
+    public synchronized SkuDetails get(@BillingClient.SkuType String skuType, String sku){
+        String key = key(skuType, sku);
+        CacheEntry entry = mEntries.get(key);
+        if(entry == null){
+            mMissCount++;
+            return null;
+        }
+
+        long age = mClock.now() - entry.storedAt;
+        if(age > mTtlMs + mStaleWindowMs){
+            mEntries.remove(key);
+            mMissCount++;
+            return null;
+        }
+
+        if(age > mTtlMs){
+            mStaleHitCount++;
+        }else{
+            mHitCount++;
+        }
+        return entry.skuDetails;
+    }
+
+
+    /**
+     * check if a cached entry is stale and claim its refresh,
+     * only the first caller gets true until the entry is put again.
+     * @param skuType
+     * @param sku
+     * @return true if caller should refresh the entry
+     */
+    public synchronized boolean claimRefresh(@BillingClient.SkuType String skuType, String sku){
+        CacheEntry entry = mEntries.get(key(skuType, sku));
+        if(entry == null || entry.refreshing || mClock.now() - entry.storedAt <= mTtlMs){
+            return false;
+        }
+        entry.refreshing = true;
+        return true;
+    }
+
+
+    /**
+     * release a refresh claim if the refresh failed,so the next caller can retry
+     * @param skuType
+     * @param sku
+     */
+    public synchronized void releaseRefresh(@BillingClient.SkuType String skuType, String sku){
+        CacheEntry entry = mEntries.get(key(skuType, sku));
+        if(entry != null){
+            entry.refreshing = false;
+        }
+    }
+
+
+    public synchronized void put(@BillingClient.SkuType String skuType, SkuDetails skuDetails){
+        mEntries.put(key(skuType, skuDetails.getSku()), new CacheEntry(skuDetails, mClock.now()));
+    }
+
+
+    public synchronized void putAll(@BillingClient.SkuType String skuType, List<SkuDetails> skuDetailsList){
+        long now = mClock.now();
+        for(SkuDetails skuDetails : skuDetailsList){
+            mEntries.put(key(skuType, skuDetails.getSku()), new CacheEntry(skuDetails, now));
+        }
+    }
+
+
+    public synchronized void invalidate(@BillingClient.SkuType String skuType, String sku){
+        mEntries.remove(key(skuType, sku));
+    }
+
+
+    public synchronized void invalidateType(@BillingClient.SkuType String skuType){
+        String prefix = skuType + ":";
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().startsWith(prefix)){
+                iterator.remove();
+            }
+        }
+    }
+
+
+    public synchronized void invalidateAll(){
+        mEntries.clear();
+    }
+
+
+    public synchronized int size(){
+        return mEntries.size();
+    }
+
+
+    public synchronized long getHitCount(){
+        return mHitCount;
+    }
+
+
+    public synchronized long getStaleHitCount(){
+        return mStaleHitCount;
+    }
+
+
+    public synchronized long getMissCount(){
+        return mMissCount;
+    }
+
+
+    public synchronized long getEvictionCount(){
+        return mEvictionCount;
+    }
+
+
+    private static String key(String skuType, String sku){
+        return skuType + ":" + sku;
+    }
+
+
+    private static class CacheEntry{
+        final SkuDetails skuDetails;
+        final long storedAt;
+        boolean refreshing;
+
+        CacheEntry(SkuDetails skuDetails, long storedAt){
+            this.skuDetails = skuDetails;
+            this.storedAt = storedAt;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * active subscriptions indexed by sku
+ * renewal time of every subscription is estimated from purchase time and SkuDetails.getSubscriptionPeriod(),
+ * one timer fires at the nearest renewal to re-validate,instead of polling queryPurchases.
+ * replace sku flows (upgrade/downgrade) are tracked so the old sku leaves the index by its proration mode.
+ */
+public class SubscriptionEngine {
+    public static final String TAG = "SubscriptionEngine";
+
+    //re-validate a while after the estimated renewal,google play renews around it
+    public static final long REVALIDATE_GRACE_MS = 5 * 60 * 1000L;
+    //period unknown,re-validate once a day
+    public static final long DEFAULT_REVALIDATE_MS = 24 * 60 * 60 * 1000L;
+    //re-validation failed,try again after
+    public static final long RETRY_DELAY_MS = 5 * 60 * 1000L;
+    //a replace flow not settled by then is dropped,its purchase dialog is long gone
+    public static final long REPLACE_EXPIRE_MS = 30 * 60 * 1000L;
+
+    //purchase times of google play are wall clock
+    private static final IabClock WALL_CLOCK = new IabClock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final Pattern PERIOD_PATTERN = Pattern.compile("P(?:(\\d+)Y)?(?:(\\d+)M)?(?:(\\d+)W)?(?:(\\d+)D)?");
+
+    private final Revalidator mRevalidator;
+    private final SkuDetailsCache mSkuDetailsCache;
+    private final IabScheduler mScheduler;
+    private final IabClock mWallClock;
+
+    //guarded by this
+    private final Map<String, Subscription> mIndex = new HashMap<String, Subscription>();
+    //sku -> ISO 8601 period,remembered once seen in SkuDetails
+    private final Map<String, String> mPeriods = new HashMap<String, String>();
+    //new sku -> replace in flight
+    private final Map<String, Replace> mReplaces = new HashMap<String, Replace>();
+    private IabScheduler.Cancellable mTimer;
+
+
+    public SubscriptionEngine(Revalidator revalidator, SkuDetailsCache skuDetailsCache, IabScheduler scheduler){
+        this(revalidator, skuDetailsCache, scheduler, WALL_CLOCK);
+    }
+
+
+    /**
+     * @param revalidator
+     * @param skuDetailsCache
+     * @param scheduler
+     * @param wallClock milliseconds since epoch,compared with Purchase.getPurchaseTime()
+     */
+    public SubscriptionEngine(Revalidator revalidator, SkuDetailsCache skuDetailsCache, IabScheduler scheduler, IabClock wallClock){
+        mRevalidator = revalidator;
+        mSkuDetailsCache = skuDetailsCache;
+        mScheduler = scheduler;
+        mWallClock = wallClock;
+    }
+
+
+    /**
+     * replace the index with subs purchases queried from google play
+     * @param purchases purchases of BillingClient.SkuType.SUBS
+     */
+    public void update(List<Purchase> purchases){
+        long now = mWallClock.now();
+        synchronized (this){
+            Map<String, Subscription> index = new HashMap<String, Subscription>();
+            for(Purchase purchase : purchases){
+                if(purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED){
+                    index.put(purchase.getSku(), newSubscription(purchase, now));
+                }
+            }
+
+            //deferred replace,the old sku stays until its renewal time
+            for(Subscription subscription : mIndex.values()){
+                if(subscription.replacedBy != null && !index.containsKey(subscription.sku)
+                        && index.containsKey(subscription.replacedBy) && subscription.renewalTime > now){
+                    index.put(subscription.sku, subscription);
+                }
+            }
+
+            mIndex.clear();
+            mIndex.putAll(index);
+            IabLog.d(TAG, "update: active subscriptions: ", mIndex.size());
+            reschedule(now);
+        }
+    }
+
+
+    /**
+     * a subs purchase from a purchase update,new,renewed or replacing another sku
+     * @param purchase
+     */
+    public void onPurchaseUpdated(Purchase purchase){
+        if(purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED){
+            return;
+        }
+
+        long now = mWallClock.now();
+        synchronized (this){
+            String sku = purchase.getSku();
+            mIndex.put(sku, newSubscription(purchase, now));
+
+            expireReplaces(now);
+            Replace replace = mReplaces.remove(sku);
+            if(replace != null){
+                Subscription old = mIndex.get(replace.oldSku);
+                if(old != null){
+                    if(replace.prorationMode == BillingFlowParams.ProrationMode.DEFERRED){
+                        //old sku is still owned until its renewal,then the new one starts
+                        old.replacedBy = sku;
+                        old.autoRenewing = false;
+                    }else{
+                        mIndex.remove(replace.oldSku);
+                    }
+                }
+                IabLog.d(TAG, "onPurchaseUpdated: replaced ", replace.oldSku, " by ", sku);
+            }
+            reschedule(now);
+        }
+    }
+
+
+    /**
+     * remember a replace flow before launching it
+     * @param oldSku
+     * @param newSku
+     * @param prorationMode BillingFlowParams.ProrationMode
+     */
+    public synchronized void beginReplace(String oldSku, String newSku, int prorationMode){
+        long now = mWallClock.now();
+        expireReplaces(now);
+        mReplaces.put(newSku, new Replace(oldSku, prorationMode, now));
+    }
+
+
+    //guarded by this
+    private void expireReplaces(long now){
+        Iterator<Map.Entry<String, Replace>> iterator = mReplaces.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<String, Replace> entry = iterator.next();
+            if(now - entry.getValue().startedAt > REPLACE_EXPIRE_MS){
+                IabLog.d(TAG, "expireReplaces: ", entry.getValue().oldSku, " by ", entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+
+    //the replace flow failed or was cancelled
+    public synchronized void cancelReplace(String newSku){
+        mReplaces.remove(newSku);
+    }
+
+
+    /**
+     * O(1),no ipc
+     * @param sku
+     * @return true if subscribed and not past the renewal time of a cancelled subscription
+     */
+    public synchronized boolean isActive(String sku){
+        Subscription subscription = mIndex.get(sku);
+        return subscription != null
+                && (subscription.autoRenewing || subscription.renewalTime == 0
+                || subscription.renewalTime > mWallClock.now());
+    }
+
+
+    public synchronized Subscription get(String sku){
+        return mIndex.get(sku);
+    }
+
+
+    public synchronized Collection<Subscription> getAll(){
+        return Collections.unmodifiableCollection(new ArrayList<Subscription>(mIndex.values()));
+    }
+
+
+    /**
+     * @param sku
+     * @return true if sku is known as a subscription,from the index or cached SkuDetails
+     */
+    public boolean isSubscription(String sku){
+        synchronized (this){
+            if(mIndex.containsKey(sku) || mPeriods.containsKey(sku)){
+                return true;
+            }
+        }
+        return mSkuDetailsCache.get(BillingClient.SkuType.SUBS, sku) != null;
+    }
+
+
+    //re-validation failed,try again later with the same single timer
+    public synchronized void onRevalidateFailed(){
+        schedule(RETRY_DELAY_MS);
+    }
+
+
+    public synchronized void shutdown(){
+        if(mTimer != null){
+            mTimer.cancel();
+            mTimer = null;
+        }
+        mIndex.clear();
+        mReplaces.clear();
+    }
+
+
+    //must hold this
+    private Subscription newSubscription(Purchase purchase, long now){
+        String sku = purchase.getSku();
+        long renewalTime = 0;
+        String period = getPeriod(sku);
+        if(period != null){
+            renewalTime = nextRenewal(purchase.getPurchaseTime(), period, now);
+        }
+        return new Subscription(sku, purchase.getPurchaseToken(), purchase.getPurchaseTime(), purchase.isAutoRenewing(), renewalTime);
+    }
+
+
+    //must hold this
+    private String getPeriod(String sku){
+        String period = mPeriods.get(sku);
+        if(period == null){
+            SkuDetails skuDetails = mSkuDetailsCache.get(BillingClient.SkuType.SUBS, sku);
+            if(skuDetails != null && skuDetails.getSubscriptionPeriod() != null){
+                period = skuDetails.getSubscriptionPeriod();
+                mPeriods.put(sku, period);
+            }
+        }
+        return period;
+    }
+
+
+    //must hold this,one timer for the nearest renewal
+    private void reschedule(long now){
+        long nearest = Long.MAX_VALUE;
+        for(Subscription subscription : mIndex.values()){
+            if(subscription.renewalTime > 0){
+                nearest = Math.min(nearest, subscription.renewalTime);
+            }
+        }
+
+        if(mIndex.isEmpty()){
+            if(mTimer != null){
+                mTimer.cancel();
+                mTimer = null;
+            }
+            return;
+        }
+
+        long delay = nearest == Long.MAX_VALUE ? DEFAULT_REVALIDATE_MS : Math.max(0, nearest - now) + REVALIDATE_GRACE_MS;
+        schedule(delay);
+    }
+
+
+    //must hold this
+    private void schedule(long delayMs){
+        if(mTimer != null){
+            mTimer.cancel();
+        }
+        IabLog.d(TAG, "schedule re-validation(ms) ", delayMs);
+        mTimer = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SubscriptionEngine.this){
+                    mTimer = null;
+                }
+                mRevalidator.revalidate();
+            }
+        }, delayMs);
+    }
+
+
+    /**
+     * @param purchaseTime
+     * @param period ISO 8601,like P1W,P1M,P1Y
+     * @param now
+     * @return first renewal after now,0 if the period can't be parsed
+     */
+    static long nextRenewal(long purchaseTime, String period, long now){
+        Matcher matcher = PERIOD_PATTERN.matcher(period);
+        if(!matcher.matches()){
+            return 0;
+        }
+
+        int years = parse(matcher.group(1));
+        int months = parse(matcher.group(2));
+        int days = parse(matcher.group(3)) * 7 + parse(matcher.group(4));
+        if(years == 0 && months == 0 && days == 0){
+            return 0;
+        }
+
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        //add whole periods from the purchase,so month ends don't drift
+        for(int n = 1; ; n++){
+            calendar.setTimeInMillis(purchaseTime);
+            calendar.add(Calendar.YEAR, years * n);
+            calendar.add(Calendar.MONTH, months * n);
+            calendar.add(Calendar.DAY_OF_MONTH, days * n);
+            if(calendar.getTimeInMillis() > now){
+                return calendar.getTimeInMillis();
+            }
+        }
+    }
+
+
+    private static int parse(String group){
+        return group != null ? Integer.parseInt(group) : 0;
+    }
+
+
+    /**
+     * re-validate subscriptions,call update() or onRevalidateFailed() when done
+     */
+    public interface Revalidator{
+        void revalidate();
+    }
+
+
+    public static class Subscription{
+        public final String sku;
+        public final String purchaseToken;
+        public final long purchaseTime;
+        //estimated,0 if the period is unknown
+        public final long renewalTime;
+        volatile boolean autoRenewing;
+        //deferred replace target
+        volatile String replacedBy;
+
+        Subscription(String sku, String purchaseToken, long purchaseTime, boolean autoRenewing, long renewalTime){
+            this.sku = sku;
+            this.purchaseToken = purchaseToken;
+            this.purchaseTime = purchaseTime;
+            this.autoRenewing = autoRenewing;
+            this.renewalTime = renewalTime;
+        }
+
+        public boolean isAutoRenewing(){
+            return autoRenewing;
+        }
+    }
+
+
+    private static class Replace{
+        final String oldSku;
+        final int prorationMode;
+        final long startedAt;
+
+        Replace(String oldSku, int prorationMode, long startedAt){
+            this.oldSku = oldSku;
+            this.prorationMode = prorationMode;
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * benchmarks of the billing wrapper on FakeBillingService,runs on a plain JVM without a device.
+ * every benchmark prints the mean wall time of an operation and the billing requests it costs.
+ * usage: java com.tencent.imsdk.samples.IabBenchmark [benchmark...] [-latency ms] [-iterations n]
+ * benchmarks: dispatch,query,restore,churn,batcher,settlement,differ,dialog
+ * a plain main() harness instead of JMH,this tree has no build to host a JMH module,
+ * the numbers are a baseline for regressions,not absolute device timings.
+ */
+public class IabBenchmark {
+    public static final String TAG = "IabBenchmark";
+
+    private static final long TIMEOUT_MS = 60 * 1000;
+    private static final int WARMUP_ITERATIONS = 3;
+    //a diff is too short to time alone
+    private static final int DIFFS_PER_OP = 100;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+    private final long mLatencyMs;
+    private final int mIterations;
+
+
+    private IabBenchmark(long latencyMs, int iterations){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+        mLatencyMs = latencyMs;
+        mIterations = iterations;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        IabLog.setLevel(Log.ASSERT);
+
+        long latencyMs = 5;
+        int iterations = 10;
+        List<String> benchmarks = new ArrayList<String>();
+        for(int i = 0; i < args.length; i++){
+            if("-latency".equals(args[i]) && i + 1 < args.length){
+                latencyMs = Long.parseLong(args[++i]);
+            }else if("-iterations".equals(args[i]) && i + 1 < args.length){
+                iterations = Integer.parseInt(args[++i]);
+            }else{
+                benchmarks.add(args[i]);
+            }
+        }
+
+        IabBenchmark benchmark = new IabBenchmark(latencyMs, iterations);
+        System.out.println("latency(ms): " + latencyMs + ", iterations: " + iterations);
+        if(benchmarks.isEmpty() || benchmarks.contains("dispatch")){
+            benchmark.dispatch(1000);
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("query")){
+            benchmark.query(100, false);
+            benchmark.query(100, true);
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("restore")){
+            for(int purchases : new int[]{1, 100, 1000, 10000}){
+                benchmark.restore(purchases);
+            }
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("churn")){
+            benchmark.churn(500, 0);
+            benchmark.churn(500, 50);
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("batcher")){
+            benchmark.batcher(50);
+            benchmark.batcher(200);
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("settlement")){
+            for(int purchases : new int[]{10, 100, 1000}){
+                for(int concurrency : new int[]{1, 4, 16}){
+                    benchmark.settlement(purchases, concurrency, 0);
+                }
+                benchmark.settlement(purchases, PurchaseSettlement.DEFAULT_MAX_CONCURRENCY, 10);
+            }
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("differ")){
+            for(int purchases : new int[]{100, 1000, 10000}){
+                benchmark.differ(purchases);
+            }
+        }
+        if(benchmarks.isEmpty() || benchmarks.contains("dialog")){
+            benchmark.dialog(false);
+            benchmark.dialog(true);
+        }
+
+        benchmark.mCallbackExecutor.shutdown();
+        benchmark.mTimer.shutdown();
+        System.exit(0);
+    }
+
+
+    /********************************* dispatch *************************************/
+
+    //overhead of IabHelper itself,requests on a zero latency service
+    private void dispatch(final int requestCount) throws Exception {
+        final FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.addSku("bench_sku_0", BillingClient.SkuType.INAPP, 990000L, "bench item");
+        final IabHelper helper = newHelper(service);
+        final SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList("bench_sku_0"))
+                .setType(BillingClient.SkuType.INAPP)
+                .build();
+
+        measure("dispatch, requests: " + requestCount + ", latency: 0", service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                final CountDownLatch remaining = new CountDownLatch(requestCount);
+                for(int i = 0; i < requestCount; i++){
+                    helper.querySkuDetails(params).addListener(new IabFuture.Callback<IabHelper.SkuDetailsResult>() {
+                        @Override
+                        public void onComplete(IabHelper.SkuDetailsResult result) {
+                            remaining.countDown();
+                            if(remaining.getCount() == 0){
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        helper.dispose();
+    }
+
+
+    /********************************* query *************************************/
+
+    //in-app and subs legs of queryPurchases merged into one result,serial or parallel
+    private void query(int purchaseCount, boolean parallel) throws Exception {
+        final FakeBillingService service = newService();
+        for(int i = 0; i < purchaseCount; i++){
+            String skuType = i % 2 == 0 ? BillingClient.SkuType.INAPP : BillingClient.SkuType.SUBS;
+            service.addSku("bench_sku_" + i, skuType, 990000L, "bench item " + i, i % 2 == 0 ? null : "P1M");
+            service.grantPurchase("bench_sku_" + i);
+        }
+        final IabHelper helper = newHelper(service);
+        helper.setParallelPurchaseQuery(parallel);
+
+        measure("query, purchases: " + purchaseCount + (parallel ? ", parallel" : ", serial"), service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                helper.queryPurchases().addListener(new IabFuture.Callback<IabHelper.PurchaseListResult>() {
+                    @Override
+                    public void onComplete(IabHelper.PurchaseListResult result) {
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        helper.dispose();
+    }
+
+
+    /********************************* restore *************************************/
+
+    //PayHelper restore of purchaseCount purchases made on another device,until every one is consumed
+    private void restore(final int purchaseCount) throws Exception {
+        final FakeBillingService service = newService();
+        for(int i = 0; i < purchaseCount; i++){
+            service.addSku("bench_sku_" + i, BillingClient.SkuType.INAPP, 990000L, "bench item " + i);
+        }
+        File filesDir = createFilesDir();
+        final PayHelper payHelper = new PayHelper(service, mCallbackExecutor, mScheduler);
+        payHelper.init(filesDir);
+
+        //large restores take long,keep the total time bounded
+        int iterations = Math.max(1, mIterations * 100 / Math.max(100, purchaseCount));
+        measure("restore, purchases: " + purchaseCount, service, 1, iterations, new Operation() {
+            @Override
+            public void run(CountDownLatch done) throws Exception {
+                for(int i = 0; i < purchaseCount; i++){
+                    service.grantPurchase("bench_sku_" + i);
+                }
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        payHelper.queryPurchases();
+                    }
+                });
+
+                //a restore takes longer with more purchases,TIMEOUT_MS per 1000
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS * Math.max(1, purchaseCount / 1000);
+                while (!service.getUnsettledTokens().isEmpty()){
+                    if(System.currentTimeMillis() >= deadline){
+                        throw new IllegalStateException("restore doesn't settle in time.");
+                    }
+                    Thread.sleep(1);
+                }
+                done.countDown();
+            }
+        });
+        payHelper.dispose();
+        deleteDir(filesDir);
+    }
+
+
+    /********************************* churn *************************************/
+
+    //requests while the service connection drops every disconnectEvery requests,0 never drops
+    private void churn(final int requestCount, final int disconnectEvery) throws Exception {
+        final FakeBillingService service = newService();
+        service.addSku("bench_sku_0", BillingClient.SkuType.INAPP, 990000L, "bench item");
+        final IabHelper helper = newHelper(service);
+        helper.setReconnectPolicy(new IabReconnectPolicy(10, 100, 100, 1000, IabClock.SYSTEM, new Random()));
+        final SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList("bench_sku_0"))
+                .setType(BillingClient.SkuType.INAPP)
+                .build();
+
+        final int[] connections = new int[1];
+        measure("churn, requests: " + requestCount + ", disconnect every: " + disconnectEvery, service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                final CountDownLatch remaining = new CountDownLatch(requestCount);
+                for(int i = 0; i < requestCount; i++){
+                    if(disconnectEvery > 0 && i > 0 && i % disconnectEvery == 0){
+                        service.disconnect();
+                    }
+                    helper.querySkuDetails(params).addListener(new IabFuture.Callback<IabHelper.SkuDetailsResult>() {
+                        @Override
+                        public void onComplete(IabHelper.SkuDetailsResult result) {
+                            remaining.countDown();
+                            if(remaining.getCount() == 0){
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        System.out.println(String.format("%-64s %10d connections", "churn, disconnect every: " + disconnectEvery,
+                service.getConnectionCount()));
+        helper.dispose();
+    }
+
+
+    /********************************* batcher *************************************/
+
+    //a store page of skuCount products,one querySkuDetails per sku against prefetchSkus and merged querySku
+    private void batcher(final int skuCount) throws Exception {
+        final FakeBillingService service = newService();
+        final List<String> skus = new ArrayList<String>(skuCount);
+        for(int i = 0; i < skuCount; i++){
+            skus.add("bench_sku_" + i);
+            service.addSku(skus.get(i), BillingClient.SkuType.INAPP, 990000L, "bench item " + i);
+        }
+        final IabHelper helper = newHelper(service);
+
+        measure("batcher single, skus: " + skuCount, service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                final CountDownLatch remaining = new CountDownLatch(skus.size());
+                for(String sku : skus){
+                    SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                            .setSkusList(Collections.singletonList(sku))
+                            .setType(BillingClient.SkuType.INAPP)
+                            .build();
+                    helper.querySkuDetails(params).addListener(new IabFuture.Callback<IabHelper.SkuDetailsResult>() {
+                        @Override
+                        public void onComplete(IabHelper.SkuDetailsResult result) {
+                            remaining.countDown();
+                            if(remaining.getCount() == 0){
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+
+        measure("batcher prefetchSkus, skus: " + skuCount, service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                //cold cache every time
+                SkuDetailsBatcher batcher = new SkuDetailsBatcher(helper, new SkuDetailsCache(), mScheduler,
+                        SkuDetailsBatcher.DEFAULT_WINDOW_MS);
+                batcher.prefetchSkus(skus, BillingClient.SkuType.INAPP, new SkuDetailsResponseListener() {
+                    @Override
+                    public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                        done.countDown();
+                    }
+                });
+            }
+        });
+
+        measure("batcher querySku, skus: " + skuCount, service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                SkuDetailsBatcher batcher = new SkuDetailsBatcher(helper, new SkuDetailsCache(), mScheduler,
+                        SkuDetailsBatcher.DEFAULT_WINDOW_MS);
+                final CountDownLatch remaining = new CountDownLatch(skus.size());
+                for(String sku : skus){
+                    batcher.querySku(sku, BillingClient.SkuType.INAPP, new SkuDetailsResponseListener() {
+                        @Override
+                        public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                            remaining.countDown();
+                            if(remaining.getCount() == 0){
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        helper.dispose();
+    }
+
+
+    /********************************* settlement *************************************/
+
+    //consume a restore of purchaseCount purchases,failurePercent of the consumes fail once and are retried
+    private void settlement(final int purchaseCount, int concurrency, final int failurePercent) throws Exception {
+        final FakeBillingService service = newService();
+        for(int i = 0; i < purchaseCount; i++){
+            service.addSku("bench_sku_" + i, BillingClient.SkuType.INAPP, 990000L, "bench item " + i);
+        }
+        final IabHelper helper = newHelper(service);
+        final PurchaseSettlement settlement = new PurchaseSettlement(new PurchaseSettlement.Settler() {
+            @Override
+            public void settle(final Purchase purchase, final PayHelper.OnPurchaseHandledListener listener) {
+                ConsumeParams params = ConsumeParams.newBuilder()
+                        .setPurchaseToken(purchase.getPurchaseToken())
+                        .build();
+                helper.consume(params).addListener(new IabFuture.Callback<IabHelper.ConsumeResult>() {
+                    @Override
+                    public void onComplete(IabHelper.ConsumeResult result) {
+                        listener.onPurchaseHandled(purchase, result.billingResult);
+                    }
+                });
+            }
+        }, concurrency, PurchaseSettlement.DEFAULT_MAX_RETRIES, mScheduler, 10);
+
+        measure("settlement, purchases: " + purchaseCount + ", concurrency: " + concurrency
+                + (failurePercent > 0 ? ", failures: " + failurePercent + "%" : ""), service, new Operation() {
+            @Override
+            public void run(final CountDownLatch done) {
+                List<Purchase> purchases = new ArrayList<Purchase>(purchaseCount);
+                for(int i = 0; i < purchaseCount; i++){
+                    purchases.add(service.grantPurchase("bench_sku_" + i));
+                }
+                service.failNextRequests(purchaseCount * failurePercent / 100,
+                        BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+                settlement.settle(purchases, new PurchaseSettlement.OnSettlementFinishedListener() {
+                    @Override
+                    public void onSettlementFinished(Map<String, BillingResult> outcomes) {
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        helper.dispose();
+    }
+
+
+    /********************************* differ *************************************/
+
+    //diff cost vs owned purchases,for a result without changes and for one purchase added and removed
+    private void differ(int purchaseCount) throws Exception {
+        FakeBillingService service = newService();
+        List<Purchase> purchases = new ArrayList<Purchase>(purchaseCount + 1);
+        for(int i = 0; i <= purchaseCount; i++){
+            service.addSku("bench_sku_" + i, BillingClient.SkuType.INAPP, 990000L, "bench item " + i);
+            purchases.add(service.grantPurchase("bench_sku_" + i));
+        }
+        final List<Purchase> changedList = new ArrayList<Purchase>(purchases);
+        purchases.remove(purchaseCount);
+        final List<Purchase> unchangedList = purchases;
+        final PurchaseDiffer differ = new PurchaseDiffer();
+        differ.diff(unchangedList, BillingClient.SkuType.INAPP, null);
+
+        measure("differ, purchases: " + purchaseCount + ", " + DIFFS_PER_OP + " diffs, unchanged", service,
+                new Operation() {
+            @Override
+            public void run(CountDownLatch done) {
+                for(int i = 0; i < DIFFS_PER_OP; i++){
+                    differ.diff(unchangedList, BillingClient.SkuType.INAPP, null);
+                }
+                done.countDown();
+            }
+        });
+        measure("differ, purchases: " + purchaseCount + ", " + DIFFS_PER_OP + " diffs, 1 changed", service,
+                new Operation() {
+            @Override
+            public void run(CountDownLatch done) {
+                for(int i = 0; i < DIFFS_PER_OP; i++){
+                    differ.diff(i % 2 == 0 ? changedList : unchangedList, BillingClient.SkuType.INAPP, null);
+                }
+                done.countDown();
+            }
+        });
+    }
+
+
+    /********************************* dialog *************************************/
+
+    //tap to first purchase dialog of a new PayHelper,cold init on the tap against prewarm before it
+    private void dialog(final boolean prewarm) throws Exception {
+        final FakeBillingService service = newService();
+        final List<String> skus = new ArrayList<String>();
+        for(int i = 0; i < 10; i++){
+            skus.add("bench_sku_" + i);
+            service.addSku(skus.get(i), BillingClient.SkuType.INAPP, 990000L, "bench item " + i);
+        }
+        //the dialog is closed,nothing is bought
+        service.setNextPurchaseOutcome(FakeBillingService.OUTCOME_USER_CANCELED);
+
+        long totalMillis = 0;
+        for(int i = 0; i < WARMUP_ITERATIONS + mIterations; i++){
+            long elapsedMillis = firstDialog(service, skus, prewarm);
+            if(i >= WARMUP_ITERATIONS){
+                totalMillis += elapsedMillis;
+            }
+        }
+        System.out.println(String.format("%-64s %10.2f ms to first dialog", "dialog, " + (prewarm ? "prewarm" : "cold"),
+                totalMillis / (double) mIterations));
+    }
+
+
+    private long firstDialog(FakeBillingService service, final List<String> skus, final boolean prewarm) throws Exception {
+        final File filesDir = createFilesDir();
+        final PayHelper payHelper = new PayHelper(service, mCallbackExecutor, mScheduler);
+        final CountDownLatch shown = new CountDownLatch(1);
+        final long[] elapsed = new long[1];
+        payHelper.setOnPurchaseDialogShownListener(new PayHelper.OnPurchaseDialogShownListener() {
+            @Override
+            public void onPurchaseDialogShown(String productId, long elapsedMillis, boolean first, boolean prewarmed) {
+                if(first){
+                    elapsed[0] = elapsedMillis;
+                    shown.countDown();
+                }
+            }
+        });
+
+        if(prewarm){
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    payHelper.prewarm(filesDir, skus, Collections.<String>emptyList());
+                }
+            });
+            //the user taps once the catalog is there
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (payHelper.getSkuDetailsCache().get(BillingClient.SkuType.INAPP, skus.get(0)) == null){
+                if(System.currentTimeMillis() >= deadline){
+                    throw new IllegalStateException("prewarm doesn't finish in time.");
+                }
+                Thread.sleep(1);
+            }
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!prewarm){
+                    payHelper.init(filesDir);
+                }
+                payHelper.pay(null, skus.get(0), BillingClient.SkuType.INAPP);
+            }
+        });
+        if(!shown.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+            throw new IllegalStateException("purchase dialog isn't shown in time.");
+        }
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                payHelper.dispose();
+            }
+        });
+        deleteDir(filesDir);
+        return elapsed[0];
+    }
+
+
+    /********************************* harness *************************************/
+
+    private FakeBillingService newService(){
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.setLatency(mLatencyMs);
+        return service;
+    }
+
+
+    private IabHelper newHelper(FakeBillingService service){
+        return new IabHelper(service, mCallbackExecutor, mScheduler);
+    }
+
+
+    private void measure(String name, FakeBillingService service, Operation operation) throws Exception {
+        measure(name, service, WARMUP_ITERATIONS, mIterations, operation);
+    }
+
+
+    //warm up,then print mean wall time and billing requests of one operation
+    private void measure(String name, FakeBillingService service, int warmupIterations, int iterations,
+                         Operation operation) throws Exception {
+        for(int i = 0; i < warmupIterations; i++){
+            runOnce(operation);
+        }
+
+        int requests = service.getRequestCount();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++){
+            runOnce(operation);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        System.out.println(String.format("%-64s %10.2f ms/op %8.1f requests/op", name,
+                elapsedNanos / 1000000.0 / iterations, (service.getRequestCount() - requests) / (double) iterations));
+    }
+
+
+    private void runOnce(Operation operation) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        operation.run(done);
+        if(!done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+            throw new IllegalStateException("operation doesn't finish in time.");
+        }
+    }
+
+
+    private static File createFilesDir() throws IOException {
+        File dir = File.createTempFile("iabbench", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+
+    private static void deleteDir(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    //count down done once finished
+    private interface Operation{
+        void run(CountDownLatch done) throws Exception;
+    }
+}
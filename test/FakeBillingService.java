@@ -0,0 +1,898 @@
+package com.tencent.imsdk.samples;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * in-process stand-in of google play billing,for load tests and reproducing failures without a device
+ * simulates sku catalog,purchases,pending to purchased transitions,acknowledge/consume,
+ * refund of purchases not acknowledged in 3 days,latency,request failures and disconnects.
+ * callbacks are delivered on the scheduler after the injected latency,time comes from the clock,
+ * a virtual clock and scheduler make every run deterministic.
+ * json payloads are written by hand,the fake itself has no org.json dependency.
+ * usage: new IabHelper(fakeBillingService),clients created by one service share its purchases.
+ */
+public class FakeBillingService implements IabBillingClient.Factory {
+    public static final String TAG = "FakeBillingService";
+
+    //unacknowledged purchases are refunded after this
+    public static final long REFUND_WINDOW_MS = 3 * 24 * 60 * 60 * 1000L;
+
+    //result of the next launchBillingFlow
+    public static final int OUTCOME_PURCHASED = 0;
+    public static final int OUTCOME_PENDING = 1;
+    public static final int OUTCOME_USER_CANCELED = 2;
+
+    //purchaseState in purchase json
+    private static final int JSON_STATE_PURCHASED = 0;
+    private static final int JSON_STATE_PENDING = 4;
+
+    private static final String PACKAGE_NAME = "com.tencent.imsdk.samples";
+
+    private final IabScheduler mScheduler;
+    private final IabClock mClock;
+
+    //guarded by this
+    private final Map<String, SkuDetails> mCatalog = new LinkedHashMap<String, SkuDetails>();
+    private final Map<String, FakePurchase> mPurchases = new LinkedHashMap<String, FakePurchase>();
+    private final Set<String> mUnsupportedFeatures = new HashSet<String>();
+    private final ArrayDeque<Integer> mConnectionFailures = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mRequestFailures = new ArrayDeque<Integer>();
+    //sku type -> failures of the blocking queryPurchases
+    private final Map<String, ArrayDeque<Integer>> mQueryFailures = new LinkedHashMap<String, ArrayDeque<Integer>>();
+    private final List<Client> mClients = new ArrayList<Client>();
+    private int mNextOutcome = OUTCOME_PURCHASED;
+    private long mLatencyMs = 0;
+    private int mOrderSeq = 0;
+    private int mConnectionCount = 0;
+    private int mRequestCount = 0;
+    private int mFeatureCheckCount = 0;
+    //blocking calls,queryPurchases and isFeatureSupported
+    private long mBlockingLatencyMs = 0;
+    private int mBlockingInFlight = 0;
+    private int mMaxBlockingInFlight = 0;
+    private final Set<String> mBlockingThreads = new HashSet<String>();
+    private int mHangingConnections = 0;
+
+
+    public FakeBillingService(IabScheduler scheduler, IabClock clock){
+        mScheduler = scheduler;
+        mClock = clock;
+    }
+
+
+    @Override
+    public IabBillingClient create(PurchasesUpdatedListener listener) {
+        Client client = new Client(listener);
+        synchronized (this){
+            mClients.add(client);
+        }
+        return client;
+    }
+
+
+    /********************************* catalog *************************************/
+
+    public void addSku(String sku, @BillingClient.SkuType String skuType, long priceAmountMicros, String title){
+        addSku(sku, skuType, priceAmountMicros, title, null);
+    }
+
+
+    /**
+     * @param subscriptionPeriod ISO 8601 period of subs,like P1M
+     */
+    public synchronized void addSku(String sku, @BillingClient.SkuType String skuType, long priceAmountMicros,
+                                    String title, String subscriptionPeriod){
+        mCatalog.put(sku, newSkuDetails(sku, skuType, priceAmountMicros, title, subscriptionPeriod));
+    }
+
+
+    /**
+     * sku details no service sells,for checks that feed sku details to a single class
+     * @param subscriptionPeriod ISO 8601 period of subs,like P1M,null for in-app
+     */
+    public static SkuDetails newSkuDetails(String sku, @BillingClient.SkuType String skuType, long priceAmountMicros,
+                                           String title, String subscriptionPeriod){
+        Json json = new Json()
+                .put("productId", sku)
+                .put("type", skuType)
+                .put("price", "$" + (priceAmountMicros / 10000L) / 100.0)
+                .put("price_amount_micros", priceAmountMicros)
+                .put("price_currency_code", "USD")
+                .put("title", title)
+                .put("description", title);
+        if(subscriptionPeriod != null){
+            json.put("subscriptionPeriod", subscriptionPeriod);
+        }
+
+        try {
+            return new SkuDetails(json.toString());
+        } catch (Exception e) {
+            //SkuDetails parses the json itself
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+
+    /********************************* fault injection *************************************/
+
+    /**
+     * @param outcome OUTCOME_*,used by every launchBillingFlow until changed
+     */
+    public synchronized void setNextPurchaseOutcome(int outcome){
+        mNextOutcome = outcome;
+    }
+
+
+    //delay of every callback
+    public synchronized void setLatency(long latencyMs){
+        mLatencyMs = Math.max(0, latencyMs);
+    }
+
+
+    //the next count startConnection calls finish with responseCode
+    public synchronized void failNextConnections(int count, int responseCode){
+        for(int i = 0; i < count; i++){
+            mConnectionFailures.add(responseCode);
+        }
+    }
+
+
+    //the next count startConnection calls never finish,like a play store stuck while updating
+    public synchronized void hangNextConnections(int count){
+        mHangingConnections += count;
+    }
+
+
+    //blocking calls take latencyMs on the calling thread,like an ipc
+    public synchronized void setBlockingLatency(long latencyMs){
+        mBlockingLatencyMs = latencyMs;
+    }
+
+
+    //the next count async requests finish with responseCode
+    public synchronized void failNextRequests(int count, int responseCode){
+        for(int i = 0; i < count; i++){
+            mRequestFailures.add(responseCode);
+        }
+    }
+
+
+    //the next count queryPurchases of skuType return responseCode,like a subs leg failing on its own
+    public synchronized void failNextPurchaseQueries(@BillingClient.SkuType String skuType, int count, int responseCode){
+        ArrayDeque<Integer> failures = mQueryFailures.get(skuType);
+        if(failures == null){
+            failures = new ArrayDeque<Integer>();
+            mQueryFailures.put(skuType, failures);
+        }
+        for(int i = 0; i < count; i++){
+            failures.add(responseCode);
+        }
+    }
+
+
+    public synchronized void setFeatureSupported(String feature, boolean supported){
+        if(supported){
+            mUnsupportedFeatures.remove(feature);
+        }else{
+            mUnsupportedFeatures.add(feature);
+        }
+    }
+
+
+    /**
+     * drop the service connection of every client,like play store being updated
+     */
+    public void disconnect(){
+        List<BillingClientStateListener> listeners = new ArrayList<BillingClientStateListener>();
+        long latencyMs;
+        synchronized (this){
+            for(Client client : mClients){
+                if(client.mConnected && client.mStateListener != null){
+                    listeners.add(client.mStateListener);
+                }
+                client.mConnected = false;
+            }
+            latencyMs = mLatencyMs;
+        }
+
+        for(final BillingClientStateListener listener : listeners){
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBillingServiceDisconnected();
+                }
+            }, latencyMs);
+        }
+    }
+
+
+    /********************************* purchase transitions *************************************/
+
+    /**
+     * a purchase no service owns,for checks that feed purchases to a single class
+     * @param sku
+     * @param skuType
+     * @param seq its token is fake-token-seq
+     * @param purchaseState
+     * @return
+     */
+    public static Purchase newPurchase(String sku, @BillingClient.SkuType String skuType, int seq, int purchaseState){
+        return newPurchase(sku, skuType, seq, purchaseState, System.currentTimeMillis());
+    }
+
+
+    /**
+     * @param sku
+     * @param skuType
+     * @param seq its token is fake-token-seq
+     * @param purchaseState
+     * @param purchaseTime wall clock,subscription renewals are estimated from it
+     * @return
+     */
+    public static Purchase newPurchase(String sku, @BillingClient.SkuType String skuType, int seq, int purchaseState,
+                                       long purchaseTime){
+        return new FakePurchase(sku, skuType, seq, 0, purchaseState, purchaseTime).toPurchase();
+    }
+
+
+    /**
+     * a purchase made on another device,owned without a purchase update,only queryPurchases returns it
+     * @param sku
+     * @return the purchase,or null if the sku is unknown or already owned
+     */
+    public synchronized Purchase grantPurchase(String sku){
+        SkuDetails skuDetails = mCatalog.get(sku);
+        refundUnacknowledged();
+        if(skuDetails == null || findOwned(sku) != null){
+            return null;
+        }
+
+        FakePurchase purchase = new FakePurchase(sku, skuDetails.getType(), ++mOrderSeq, mClock.now(),
+                Purchase.PurchaseState.PURCHASED);
+        mPurchases.put(purchase.token, purchase);
+        return purchase.toPurchase();
+    }
+
+
+    /**
+     * a pending purchase is paid,clients get a purchase update
+     * @param purchaseToken
+     * @return false if the token is not pending
+     */
+    public boolean completePendingPurchase(String purchaseToken){
+        Purchase updated;
+        synchronized (this){
+            FakePurchase purchase = mPurchases.get(purchaseToken);
+            if(purchase == null || !purchase.isOwned() || purchase.state != Purchase.PurchaseState.PENDING){
+                return false;
+            }
+            purchase.state = Purchase.PurchaseState.PURCHASED;
+            purchase.purchasedAt = mClock.now();
+            updated = purchase.toPurchase();
+        }
+
+        notifyPurchasesUpdated(ok(), Collections.singletonList(updated));
+        return true;
+    }
+
+
+    /**
+     * a pending purchase is never paid,it disappears from queryPurchases
+     * @param purchaseToken
+     * @return false if the token is not pending
+     */
+    public synchronized boolean cancelPendingPurchase(String purchaseToken){
+        FakePurchase purchase = mPurchases.get(purchaseToken);
+        if(purchase == null || !purchase.isOwned() || purchase.state != Purchase.PurchaseState.PENDING){
+            return false;
+        }
+        purchase.refunded = true;
+        return true;
+    }
+
+
+    //startConnection calls of every client
+    public synchronized int getConnectionCount(){
+        return mConnectionCount;
+    }
+
+
+    //async requests of every client,sku details,history,consume and acknowledge
+    public synchronized int getRequestCount(){
+        return mRequestCount;
+    }
+
+
+    //every purchase made,owned or not
+    //isFeatureSupported ipc of every client
+    public synchronized int getFeatureCheckCount(){
+        return mFeatureCheckCount;
+    }
+
+
+    //most blocking calls running at once
+    public synchronized int getMaxBlockingInFlight(){
+        return mMaxBlockingInFlight;
+    }
+
+
+    //names of the threads blocking calls were made on
+    public synchronized Set<String> getBlockingThreads(){
+        return new HashSet<String>(mBlockingThreads);
+    }
+
+
+    public synchronized int getPurchaseCount(){
+        return mPurchases.size();
+    }
+
+
+    public synchronized List<String> getPendingTokens(){
+        List<String> tokens = new ArrayList<String>();
+        for(FakePurchase purchase : mPurchases.values()){
+            if(purchase.isOwned() && purchase.state == Purchase.PurchaseState.PENDING){
+                tokens.add(purchase.token);
+            }
+        }
+        return tokens;
+    }
+
+
+    /**
+     * @return purchased tokens with work left,in-app items not consumed and subs not acknowledged
+     */
+    public synchronized List<String> getUnsettledTokens(){
+        refundUnacknowledged();
+        List<String> tokens = new ArrayList<String>();
+        for(FakePurchase purchase : mPurchases.values()){
+            if(purchase.isOwned() && purchase.state == Purchase.PurchaseState.PURCHASED
+                    && (BillingClient.SkuType.INAPP.equals(purchase.type) || !purchase.acknowledged)){
+                tokens.add(purchase.token);
+            }
+        }
+        return tokens;
+    }
+
+
+    public synchronized boolean isAcknowledged(String purchaseToken){
+        FakePurchase purchase = mPurchases.get(purchaseToken);
+        return purchase != null && purchase.acknowledged;
+    }
+
+
+    public synchronized boolean isConsumed(String purchaseToken){
+        FakePurchase purchase = mPurchases.get(purchaseToken);
+        return purchase != null && purchase.consumed;
+    }
+
+
+    public synchronized boolean isRefunded(String purchaseToken){
+        refundUnacknowledged();
+        FakePurchase purchase = mPurchases.get(purchaseToken);
+        return purchase != null && purchase.refunded;
+    }
+
+
+    //must hold this,refund purchases not acknowledged within REFUND_WINDOW_MS of being paid
+    private void refundUnacknowledged(){
+        long now = mClock.now();
+        for(FakePurchase purchase : mPurchases.values()){
+            if(purchase.isOwned() && purchase.state == Purchase.PurchaseState.PURCHASED
+                    && !purchase.acknowledged && now - purchase.purchasedAt >= REFUND_WINDOW_MS){
+                purchase.refunded = true;
+                IabLog.d(TAG, "refund unacknowledged purchase: ", purchase.sku);
+            }
+        }
+    }
+
+
+    //must hold this
+    private FakePurchase findOwned(String sku){
+        for(FakePurchase purchase : mPurchases.values()){
+            if(purchase.isOwned() && purchase.sku.equals(sku)){
+                return purchase;
+            }
+        }
+        return null;
+    }
+
+
+    //not holding this,blocking calls of several threads overlap like they would on the binder
+    private void beginBlockingCall(){
+        long latencyMs;
+        synchronized (this){
+            mBlockingThreads.add(Thread.currentThread().getName());
+            mMaxBlockingInFlight = Math.max(mMaxBlockingInFlight, ++mBlockingInFlight);
+            latencyMs = mBlockingLatencyMs;
+        }
+        if(latencyMs > 0){
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private synchronized void endBlockingCall(){
+        mBlockingInFlight--;
+    }
+
+
+    //must hold this
+    private Integer takeRequestFailure(){
+        return mRequestFailures.poll();
+    }
+
+
+    private void notifyPurchasesUpdated(final BillingResult result, final List<Purchase> purchases){
+        List<PurchasesUpdatedListener> listeners = new ArrayList<PurchasesUpdatedListener>();
+        long latencyMs;
+        synchronized (this){
+            for(Client client : mClients){
+                if(client.mConnected){
+                    listeners.add(client.mPurchasesListener);
+                }
+            }
+            latencyMs = mLatencyMs;
+        }
+
+        for(final PurchasesUpdatedListener listener : listeners){
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPurchasesUpdated(result, purchases);
+                }
+            }, latencyMs);
+        }
+    }
+
+
+    private void deliver(Runnable callback){
+        long latencyMs;
+        synchronized (this){
+            latencyMs = mLatencyMs;
+        }
+        mScheduler.schedule(callback, latencyMs);
+    }
+
+
+    private static BillingResult ok(){
+        return result(BillingClient.BillingResponseCode.OK, null);
+    }
+
+
+    private static BillingResult result(int responseCode, String debugMessage){
+        BillingResult.Builder builder = BillingResult.newBuilder().setResponseCode(responseCode);
+        if(debugMessage != null){
+            builder.setDebugMessage(debugMessage);
+        }
+        return builder.build();
+    }
+
+
+    /********************************* client *************************************/
+
+    private class Client implements IabBillingClient{
+        private final PurchasesUpdatedListener mPurchasesListener;
+        //guarded by FakeBillingService.this
+        private boolean mConnected = false;
+        private BillingClientStateListener mStateListener;
+
+        Client(PurchasesUpdatedListener listener){
+            mPurchasesListener = listener;
+        }
+
+
+        @Override
+        public boolean isReady() {
+            synchronized (FakeBillingService.this){
+                return mConnected;
+            }
+        }
+
+        @Override
+        public void startConnection(final BillingClientStateListener listener) {
+            final Integer failure;
+            synchronized (FakeBillingService.this){
+                mStateListener = listener;
+                mConnectionCount++;
+                if(mHangingConnections > 0){
+                    mHangingConnections--;
+                    return;
+                }
+                failure = mConnectionFailures.poll();
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FakeBillingService.this){
+                        if(mStateListener != listener){
+                            //ended meanwhile
+                            return;
+                        }
+                        mConnected = failure == null;
+                    }
+                    listener.onBillingSetupFinished(failure == null ? ok() : result(failure, "Injected setup failure."));
+                }
+            });
+        }
+
+        @Override
+        public void endConnection() {
+            synchronized (FakeBillingService.this){
+                mConnected = false;
+                mStateListener = null;
+                //a BillingClient is not reused after endConnection
+                mClients.remove(this);
+            }
+        }
+
+        @Override
+        public BillingResult isFeatureSupported(String feature) {
+            beginBlockingCall();
+            try {
+                return featureSupport(feature);
+            } finally {
+                endBlockingCall();
+            }
+        }
+
+        private BillingResult featureSupport(String feature) {
+            synchronized (FakeBillingService.this){
+                mFeatureCheckCount++;
+                if(!mConnected){
+                    return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, null);
+                }
+                return mUnsupportedFeatures.contains(feature)
+                        ? result(BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED, null) : ok();
+            }
+        }
+
+        @Override
+        public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+            final BillingResult updateResult;
+            final List<Purchase> updatePurchases;
+            synchronized (FakeBillingService.this){
+                if(!mConnected){
+                    return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, null);
+                }
+
+                String sku = params.getSku();
+                SkuDetails skuDetails = mCatalog.get(sku);
+                if(skuDetails == null){
+                    return result(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE, "Unknown sku.");
+                }
+
+                refundUnacknowledged();
+                if(findOwned(sku) != null){
+                    updateResult = result(BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED, null);
+                    updatePurchases = null;
+                }else if(mNextOutcome == OUTCOME_USER_CANCELED){
+                    updateResult = result(BillingClient.BillingResponseCode.USER_CANCELED, null);
+                    updatePurchases = null;
+                }else{
+                    //subscription replace,the old one stops being owned
+                    String oldSku = params.getOldSku();
+                    FakePurchase old = oldSku != null ? findOwned(oldSku) : null;
+                    if(old != null){
+                        old.consumed = true;
+                    }
+
+                    FakePurchase purchase = new FakePurchase(sku, skuDetails.getType(), ++mOrderSeq, mClock.now(),
+                            mNextOutcome == OUTCOME_PENDING ? Purchase.PurchaseState.PENDING : Purchase.PurchaseState.PURCHASED);
+                    mPurchases.put(purchase.token, purchase);
+                    updateResult = ok();
+                    updatePurchases = Collections.singletonList(purchase.toPurchase());
+                }
+            }
+
+            //only this client launched the flow
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mPurchasesListener.onPurchasesUpdated(updateResult, updatePurchases);
+                }
+            });
+            return ok();
+        }
+
+        @Override
+        public void querySkuDetailsAsync(SkuDetailsParams params, final SkuDetailsResponseListener listener) {
+            final BillingResult billingResult;
+            final List<SkuDetails> skuDetailsList = new ArrayList<SkuDetails>();
+            synchronized (FakeBillingService.this){
+                billingResult = checkRequest();
+                if(billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    for(String sku : params.getSkusList()){
+                        SkuDetails skuDetails = mCatalog.get(sku);
+                        if(skuDetails != null && skuDetails.getType().equals(params.getSkuType())){
+                            skuDetailsList.add(skuDetails);
+                        }
+                    }
+                }
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSkuDetailsResponse(billingResult,
+                            billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK ? skuDetailsList : null);
+                }
+            });
+        }
+
+        @Override
+        public Purchase.PurchasesResult queryPurchases(String skuType) {
+            beginBlockingCall();
+            try {
+                return queryOwned(skuType);
+            } finally {
+                endBlockingCall();
+            }
+        }
+
+        private Purchase.PurchasesResult queryOwned(String skuType) {
+            synchronized (FakeBillingService.this){
+                if(!mConnected){
+                    return new Purchase.PurchasesResult(result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, null), null);
+                }
+                ArrayDeque<Integer> failures = mQueryFailures.get(skuType);
+                Integer failure = failures != null ? failures.poll() : null;
+                if(failure != null){
+                    return new Purchase.PurchasesResult(result(failure, "Injected query failure."), null);
+                }
+
+                refundUnacknowledged();
+                List<Purchase> purchases = new ArrayList<Purchase>();
+                for(FakePurchase purchase : mPurchases.values()){
+                    if(purchase.isOwned() && purchase.type.equals(skuType)){
+                        purchases.add(purchase.toPurchase());
+                    }
+                }
+                return new Purchase.PurchasesResult(ok(), purchases);
+            }
+        }
+
+        @Override
+        public void queryPurchaseHistoryAsync(String skuType, final PurchaseHistoryResponseListener listener) {
+            final BillingResult billingResult;
+            final List<PurchaseHistoryRecord> records = new ArrayList<PurchaseHistoryRecord>();
+            synchronized (FakeBillingService.this){
+                billingResult = checkRequest();
+                if(billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    //latest purchase of every sku,consumed and refunded included
+                    Map<String, FakePurchase> latest = new LinkedHashMap<String, FakePurchase>();
+                    for(FakePurchase purchase : mPurchases.values()){
+                        if(purchase.type.equals(skuType)){
+                            latest.put(purchase.sku, purchase);
+                        }
+                    }
+                    for(FakePurchase purchase : latest.values()){
+                        records.add(purchase.toHistoryRecord());
+                    }
+                }
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPurchaseHistoryResponse(billingResult,
+                            billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK ? records : null);
+                }
+            });
+        }
+
+        @Override
+        public void consumeAsync(final ConsumeParams params, final ConsumeResponseListener listener) {
+            final BillingResult billingResult;
+            synchronized (FakeBillingService.this){
+                BillingResult checked = checkRequest();
+                if(checked.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    refundUnacknowledged();
+                    FakePurchase purchase = mPurchases.get(params.getPurchaseToken());
+                    if(purchase == null || !purchase.isOwned()){
+                        checked = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED, null);
+                    }else if(purchase.state != Purchase.PurchaseState.PURCHASED
+                            || !BillingClient.SkuType.INAPP.equals(purchase.type)){
+                        checked = result(BillingClient.BillingResponseCode.DEVELOPER_ERROR, "Only purchased in-app items can be consumed.");
+                    }else{
+                        purchase.consumed = true;
+                        purchase.acknowledged = true;
+                    }
+                }
+                billingResult = checked;
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onConsumeResponse(billingResult, params.getPurchaseToken());
+                }
+            });
+        }
+
+        @Override
+        public void acknowledgePurchase(AcknowledgePurchaseParams params, final AcknowledgePurchaseResponseListener listener) {
+            final BillingResult billingResult;
+            synchronized (FakeBillingService.this){
+                BillingResult checked = checkRequest();
+                if(checked.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                    refundUnacknowledged();
+                    FakePurchase purchase = mPurchases.get(params.getPurchaseToken());
+                    if(purchase == null || !purchase.isOwned()){
+                        checked = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED, null);
+                    }else if(purchase.state != Purchase.PurchaseState.PURCHASED){
+                        checked = result(BillingClient.BillingResponseCode.DEVELOPER_ERROR, "Pending purchases can't be acknowledged.");
+                    }else{
+                        purchase.acknowledged = true;
+                    }
+                }
+                billingResult = checked;
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAcknowledgePurchaseResponse(billingResult);
+                }
+            });
+        }
+
+
+        //must hold FakeBillingService.this
+        private BillingResult checkRequest(){
+            if(!mConnected){
+                return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, null);
+            }
+            mRequestCount++;
+            Integer failure = takeRequestFailure();
+            return failure != null ? result(failure, "Injected request failure.") : ok();
+        }
+    }
+
+
+    /********************************* purchase *************************************/
+
+    private static class FakePurchase{
+        final String sku;
+        final String type;
+        final String token;
+        final String orderId;
+        //wall clock like google play,subscription renewals are estimated from it
+        final long purchaseTime;
+        int state;
+        //on mClock,for the refund window
+        long purchasedAt;
+        boolean acknowledged = false;
+        boolean consumed = false;
+        boolean refunded = false;
+
+        FakePurchase(String sku, String type, int seq, long purchasedAt, int state){
+            this(sku, type, seq, purchasedAt, state, System.currentTimeMillis());
+        }
+
+        FakePurchase(String sku, String type, int seq, long purchasedAt, int state, long purchaseTime){
+            this.sku = sku;
+            this.type = type;
+            this.token = "fake-token-" + seq;
+            this.orderId = "GPA.fake-" + seq;
+            this.purchaseTime = purchaseTime;
+            this.state = state;
+            this.purchasedAt = purchasedAt;
+        }
+
+        boolean isOwned(){
+            return !consumed && !refunded;
+        }
+
+        Purchase toPurchase(){
+            Json json = toJson()
+                    .put("purchaseState", state == Purchase.PurchaseState.PENDING ? JSON_STATE_PENDING : JSON_STATE_PURCHASED)
+                    .put("orderId", orderId)
+                    .put("packageName", PACKAGE_NAME)
+                    .put("acknowledged", acknowledged)
+                    .put("autoRenewing", BillingClient.SkuType.SUBS.equals(type));
+
+            try {
+                return new Purchase(json.toString(), "");
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        PurchaseHistoryRecord toHistoryRecord(){
+            try {
+                return new PurchaseHistoryRecord(toJson().toString(), "");
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        private Json toJson(){
+            return new Json()
+                    .put("productId", sku)
+                    .put("purchaseToken", token)
+                    .put("purchaseTime", purchaseTime);
+        }
+    }
+
+
+    //flat json object,keys in insertion order
+    private static class Json{
+        private final StringBuilder mBuilder = new StringBuilder("{");
+
+        Json put(String key, String value){
+            key(key);
+            quote(value);
+            return this;
+        }
+
+        Json put(String key, long value){
+            key(key);
+            mBuilder.append(value);
+            return this;
+        }
+
+        Json put(String key, boolean value){
+            key(key);
+            mBuilder.append(value);
+            return this;
+        }
+
+        private void key(String key){
+            if(mBuilder.length() > 1){
+                mBuilder.append(',');
+            }
+            quote(key);
+            mBuilder.append(':');
+        }
+
+        private void quote(String value){
+            mBuilder.append('"');
+            for(int i = 0; i < value.length(); i++){
+                char c = value.charAt(i);
+                if(c == '"' || c == '\\'){
+                    mBuilder.append('\\').append(c);
+                }else if(c < 0x20){
+                    mBuilder.append(String.format("\\u%04x", (int) c));
+                }else{
+                    mBuilder.append(c);
+                }
+            }
+            mBuilder.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return mBuilder.toString() + "}";
+        }
+    }
+}
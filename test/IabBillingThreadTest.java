@@ -0,0 +1,174 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.SkuDetailsParams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * threads of blocking billing calls in IabHelper on FakeBillingService,checks that:
+ * queryPurchases,feature checks and the feature warm up never block the calling thread,
+ * they run one at a time on the serial billing thread even when many threads ask at once,
+ * results come back on the callback executor.
+ * usage: java com.tencent.imsdk.samples.IabBillingThreadTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabBillingThreadTest {
+    public static final String TAG = "IabBillingThreadTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final String BILLING_THREAD = "IabBilling";
+    private static final String CALLBACK_THREAD = "main";
+    private static final int CALLERS = 8;
+    private static final int CALLS = 10;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+
+
+    private IabBillingThreadTest(){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon(CALLBACK_THREAD));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        IabLog.setLevel(Log.ASSERT);
+
+        IabBillingThreadTest test = new IabBillingThreadTest();
+        boolean passed = test.run("offthread", test.offThread());
+        passed &= test.run("serial", test.serial());
+
+        test.mCallbackExecutor.shutdown();
+        test.mTimer.shutdown();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //every blocking call of a restore,a feature check and the warm up is made on the billing thread
+    private boolean offThread() throws Exception {
+        FakeBillingService service = newService();
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.querySkuDetails(params()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        final Set<String> callbackThreads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch called = new CountDownLatch(1);
+        helper.queryPurchases().addListener(new IabFuture.Callback<IabHelper.PurchaseListResult>() {
+            @Override
+            public void onComplete(IabHelper.PurchaseListResult result) {
+                callbackThreads.add(Thread.currentThread().getName());
+                called.countDown();
+            }
+        }, helper.getCallbackExecutor());
+        helper.queryFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        boolean passed = called.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                && expect("callback threads", Collections.singleton(CALLBACK_THREAD), callbackThreads)
+                && expect("blocking threads", Collections.singleton(BILLING_THREAD), service.getBlockingThreads());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //many threads restore and check features at once,the binder sees one blocking call at a time
+    private boolean serial() throws Exception {
+        FakeBillingService service = newService();
+        service.setBlockingLatency(2);
+        final IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.setWarmFeatureCache(false);
+
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS, daemon("caller"));
+        final List<IabFuture<?>> futures = Collections.synchronizedList(new ArrayList<IabFuture<?>>());
+        final CountDownLatch submitted = new CountDownLatch(CALLERS);
+        for(int t = 0; t < CALLERS; t++){
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < CALLS; i++){
+                        futures.add(helper.queryPurchases());
+                        futures.add(helper.queryFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE));
+                    }
+                    submitted.countDown();
+                }
+            });
+        }
+
+        boolean passed = submitted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        for(IabFuture<?> future : new ArrayList<IabFuture<?>>(futures)){
+            future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        passed &= expect("calls", CALLERS * CALLS * 2, futures.size())
+                && expect("blocking calls at once", 1, service.getMaxBlockingInFlight())
+                && expect("blocking threads", Collections.singleton(BILLING_THREAD), service.getBlockingThreads());
+        callers.shutdown();
+        helper.dispose();
+        return passed;
+    }
+
+
+    private FakeBillingService newService(){
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item");
+        service.grantPurchase("sku_0");
+        return service;
+    }
+
+
+    private static SkuDetailsParams params(){
+        return SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList("sku_0"))
+                .setType(BillingClient.SkuType.INAPP)
+                .build();
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static boolean expect(String what, Set<String> expected, Set<String> actual){
+        if(!expected.equals(actual)){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,253 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.SkuDetailsParams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * connection scenarios of IabHelper on FakeBillingService,runs on a plain JVM without a device:
+ * coalesced connection of a burst,reconnect with backoff,replay after a disconnect,reconnect budget,
+ * circuit cool down,hung setup.
+ * usage: java com.tencent.imsdk.samples.IabConnectionTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabConnectionTest {
+    public static final String TAG = "IabConnectionTest";
+
+    private static final int BURST = 50;
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final long COOL_DOWN_MS = 200;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+
+
+    private IabConnectionTest(){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        IabLog.setLevel(Log.ASSERT);
+
+        IabConnectionTest test = new IabConnectionTest();
+        boolean passed = test.run("coalesce", test.coalesce());
+        passed &= test.run("retry", test.retry());
+        passed &= test.run("replay", test.replay());
+        passed &= test.run("budget", test.budget());
+        passed &= test.run("cooldown", test.coolDown());
+        passed &= test.run("timeout", test.timeout());
+
+        test.mCallbackExecutor.shutdown();
+        test.mTimer.shutdown();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //a burst of requests on a cold connection shares a single startConnection
+    private boolean coalesce() throws Exception {
+        FakeBillingService service = newService();
+        service.setLatency(20);
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+
+        List<IabFuture<IabHelper.SkuDetailsResult>> futures = burst(helper);
+        boolean passed = expect("failed requests", 0, countFailed(futures))
+                && expect("connections", 1, service.getConnectionCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //failed setups are retried with backoff,the queued requests wait for it instead of failing
+    private boolean retry() throws Exception {
+        FakeBillingService service = newService();
+        service.failNextConnections(3, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        IabHelper helper = newHelper(service, 5);
+
+        List<IabFuture<IabHelper.SkuDetailsResult>> futures = burst(helper);
+        boolean passed = expect("failed requests", 0, countFailed(futures))
+                && expect("connections", 4, service.getConnectionCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //requests made right after a dropped connection are replayed on the new one
+    private boolean replay() throws Exception {
+        FakeBillingService service = newService();
+        service.setLatency(5);
+        IabHelper helper = newHelper(service, 5);
+        IabFuture<IabHelper.SkuDetailsResult> warm = helper.querySkuDetails(params());
+        if(!expect("failed requests", 0, countFailed(Collections.singletonList(warm)))){
+            return false;
+        }
+
+        service.disconnect();
+        Thread.sleep(20);
+        List<IabFuture<IabHelper.SkuDetailsResult>> futures = burst(helper);
+        boolean passed = expect("failed requests", 0, countFailed(futures))
+                && expect("connections", 2, service.getConnectionCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //a dead service uses up the budget,requests fail instead of hanging,the open circuit stops reconnect storms
+    private boolean budget() throws Exception {
+        FakeBillingService service = newService();
+        service.failNextConnections(100, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        IabHelper helper = newHelper(service, 3);
+
+        boolean passed = expect("failed requests", BURST, countFailed(burst(helper)))
+                && expect("connections", 4, service.getConnectionCount())
+                && expect("failed requests", BURST, countFailed(burst(helper)))
+                && expect("connections", 4, service.getConnectionCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //once the open circuit cools down a burst shares one new connection,nothing waits for the deadline
+    private boolean coolDown() throws Exception {
+        FakeBillingService service = newService();
+        service.failNextConnections(3, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.setReconnectPolicy(new IabReconnectPolicy(10, 100, 2, COOL_DOWN_MS, IabClock.SYSTEM, new Random()));
+
+        boolean passed = expect("failed requests", BURST, countFailed(burst(helper)))
+                && expect("connections", 3, service.getConnectionCount());
+        Thread.sleep(COOL_DOWN_MS + 50);
+        long start = System.currentTimeMillis();
+        passed &= expect("failed requests", 0, countFailed(burst(helper)))
+                && expect("connections", 4, service.getConnectionCount())
+                && System.currentTimeMillis() - start < TIMEOUT_MS / 2;
+        helper.dispose();
+        return passed;
+    }
+
+
+    //a hung setup fails the queued requests at the deadline,a new client reconnects for the next ones
+    private boolean timeout() throws Exception {
+        FakeBillingService service = newService();
+        service.hangNextConnections(1);
+        IabHelper helper = newHelper(service, 3);
+        helper.setConnectionTimeout(100);
+
+        //requests behind the hung ones in the request scheduler get the new client
+        List<IabFuture<IabHelper.SkuDetailsResult>> futures = burst(helper);
+        int failed = countFailed(futures);
+        int timedOut = countResult(futures, IabHelper.IAB_TIMEOUT);
+        boolean passed = expect("failed requests not timed out", 0, failed - timedOut)
+                && timedOut > 0
+                && expect("failed requests", 0, countFailed(burst(helper)))
+                && expect("connections", 2, service.getConnectionCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    private IabHelper newHelper(FakeBillingService service, int maxAttempts){
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.setReconnectPolicy(new IabReconnectPolicy(10, 100, maxAttempts, 60 * 1000,
+                IabClock.SYSTEM, new Random()));
+        return helper;
+    }
+
+
+    private FakeBillingService newService(){
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item");
+        return service;
+    }
+
+
+    //BURST requests at once,from another thread like the callbacks of a restore
+    private static List<IabFuture<IabHelper.SkuDetailsResult>> burst(IabHelper helper){
+        SkuDetailsParams params = params();
+        List<IabFuture<IabHelper.SkuDetailsResult>> futures = new ArrayList<IabFuture<IabHelper.SkuDetailsResult>>(BURST);
+        for(int i = 0; i < BURST; i++){
+            futures.add(helper.querySkuDetails(params));
+        }
+        return futures;
+    }
+
+
+    private static SkuDetailsParams params(){
+        return SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList("sku_0"))
+                .setType(BillingClient.SkuType.INAPP)
+                .build();
+    }
+
+
+    //requests not done with OK,a request still running after TIMEOUT_MS counts as failed
+    private static int countFailed(List<IabFuture<IabHelper.SkuDetailsResult>> futures) throws InterruptedException {
+        int failed = 0;
+        for(IabFuture<IabHelper.SkuDetailsResult> future : futures){
+            try {
+                IabHelper.SkuDetailsResult result = future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if(result.billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                    failed++;
+                }
+            } catch (TimeoutException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+
+    private static int countResult(List<IabFuture<IabHelper.SkuDetailsResult>> futures, int responseCode){
+        int count = 0;
+        for(IabFuture<IabHelper.SkuDetailsResult> future : futures){
+            IabHelper.SkuDetailsResult result = future.getNow(null);
+            if(result != null && result.billingResult.getResponseCode() == responseCode){
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,169 @@
+package com.tencent.imsdk.samples;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ring buffer of IabEventLog on a virtual clock,checks that:
+ * events are dumped oldest first with their fields,a full buffer keeps the newest capacity events
+ * in order across wraparound,purchase tokens only show as hashes,clear empties the buffer,
+ * concurrent recording never tears a row.
+ * usage: java com.tencent.imsdk.samples.IabEventLogTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabEventLogTest {
+    public static final String TAG = "IabEventLogTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final int CAPACITY = 4;
+    private static final int THREADS = 4;
+    private static final int EVENTS_PER_THREAD = 10000;
+
+
+    public static void main(String[] args) throws Exception {
+        IabEventLogTest test = new IabEventLogTest();
+        boolean passed = test.run("order", test.order());
+        passed &= test.run("wrap", test.wrap());
+        passed &= test.run("token", test.token());
+        passed &= test.run("clear", test.clear());
+        passed &= test.run("concurrent", test.concurrent());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //under capacity,every event in the order recorded,one line each
+    private boolean order(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabEventLog log = new IabEventLog(CAPACITY, clock);
+        log.record(IabEventLog.EVENT_LAUNCH, "sku_0", null, 0, 0, 120);
+        clock.advance(10);
+        log.record(IabEventLog.EVENT_PURCHASE_UPDATE, "sku_0", null, 1, 0, IabEventLog.NO_LATENCY);
+
+        String[] lines = lines(log);
+        return expect("size", 2, log.size())
+                && expect("lines", 2, lines.length)
+                && expect("first", "0 launch sku_0 token=#0 state=0 code=0 latency=120ms", lines[0])
+                && expect("second", "10 update sku_0 token=#0 state=1 code=0", lines[1]);
+    }
+
+
+    //10 events through a buffer of 4,the last 4 are left,oldest first
+    private boolean wrap(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabEventLog log = new IabEventLog(CAPACITY, clock);
+        for(int i = 0; i < 10; i++){
+            log.record(IabEventLog.EVENT_HANDLE, "sku_" + i, null, 0, 0, IabEventLog.NO_LATENCY);
+            clock.advance(1);
+        }
+
+        String[] lines = lines(log);
+        boolean passed = expect("size", CAPACITY, log.size())
+                && expect("lines", CAPACITY, lines.length);
+        for(int n = 0; passed && n < CAPACITY; n++){
+            int i = 10 - CAPACITY + n;
+            passed = expect("line " + n, i + " handle sku_" + i + " token=#0 state=0 code=0", lines[n]);
+        }
+        return passed;
+    }
+
+
+    //the token is kept as its hash,the raw token never reaches the dump
+    private boolean token(){
+        IabEventLog log = new IabEventLog(CAPACITY, new VirtualScheduler());
+        String token = "fake-token-1";
+        log.record(IabEventLog.EVENT_VERIFY, "sku_0", token, 1, 0, 5);
+
+        String dump = log.dump();
+        return expect("raw token", 0, dump.contains(token) ? 1 : 0)
+                && expect("token hash", 1, dump.contains("token=#" + Integer.toHexString(token.hashCode())) ? 1 : 0);
+    }
+
+
+    //a cleared buffer dumps nothing and fills again from the start
+    private boolean clear(){
+        IabEventLog log = new IabEventLog(CAPACITY, new VirtualScheduler());
+        for(int i = 0; i < 6; i++){
+            log.record(IabEventLog.EVENT_CONSUME, "sku_" + i, null, 0, 0, IabEventLog.NO_LATENCY);
+        }
+        log.clear();
+        boolean passed = expect("size", 0, log.size())
+                && expect("dump", "", log.dump());
+
+        log.record(IabEventLog.EVENT_ACKNOWLEDGE, "sku_9", null, 0, 0, IabEventLog.NO_LATENCY);
+        String[] lines = lines(log);
+        passed &= expect("lines", 1, lines.length)
+                && expect("line", "0 acknowledge sku_9 token=#0 state=0 code=0", lines[0]);
+        return passed;
+    }
+
+
+    //threads record rows whose fields all carry the thread id,a dumped row never mixes two threads
+    private boolean concurrent() throws InterruptedException {
+        final IabEventLog log = new IabEventLog(CAPACITY * 16, new VirtualScheduler());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for(int t = 0; t < THREADS; t++){
+            final int id = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < EVENTS_PER_THREAD; i++){
+                            log.record(IabEventLog.EVENT_HANDLE, "sku_" + id, null, id, id, id);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "recorder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+
+        boolean passed = done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        String[] lines = lines(log);
+        passed &= expect("lines", CAPACITY * 16, lines.length);
+        for(int n = 0; passed && n < lines.length; n++){
+            String id = lines[n].substring(lines[n].indexOf("sku_") + 4, lines[n].indexOf(" token="));
+            passed = expect("row " + n, "0 handle sku_" + id + " token=#0 state=" + id + " code=" + id
+                    + " latency=" + id + "ms", lines[n]);
+        }
+        return passed;
+    }
+
+
+    private static String[] lines(IabEventLog log){
+        String dump = log.dump();
+        return dump.isEmpty() ? new String[0] : dump.split("\n");
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static boolean expect(String what, String expected, String actual){
+        if(!expected.equals(actual)){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+}
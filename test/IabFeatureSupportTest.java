@@ -0,0 +1,183 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.SkuDetailsParams;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * feature support cache of IabHelper on FakeBillingService,checks that:
+ * a feature is asked once per connection session,supported or not,repeated restores make no feature ipc,
+ * a dropped connection forgets the answers,the warm up fills the cache right after connecting.
+ * usage: java com.tencent.imsdk.samples.IabFeatureSupportTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabFeatureSupportTest {
+    public static final String TAG = "IabFeatureSupportTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final int RESTORES = 5;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+
+
+    private IabFeatureSupportTest(){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        IabLog.setLevel(Log.ASSERT);
+
+        IabFeatureSupportTest test = new IabFeatureSupportTest();
+        boolean passed = test.run("session", test.session(true));
+        passed &= test.run("unsupported", test.session(false));
+        passed &= test.run("disconnect", test.disconnect());
+        passed &= test.run("warm", test.warm());
+
+        test.mCallbackExecutor.shutdown();
+        test.mTimer.shutdown();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //restores on one connection ask for subscription support once,the answer is cached either way
+    private boolean session(boolean supported) throws Exception {
+        FakeBillingService service = newService();
+        service.setFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS, supported);
+        IabHelper helper = newHelper(service, false);
+
+        for(int i = 0; i < RESTORES; i++){
+            helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        boolean passed = expect("feature checks", 1, service.getFeatureCheckCount())
+                && expect("cached", supported ? 1 : 0,
+                        Boolean.TRUE.equals(helper.getCachedFeatureSupport(BillingClient.FeatureType.SUBSCRIPTIONS)) ? 1 : 0)
+                && expect("cached query", supported ? 1 : 0, helper.queryFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS)
+                        .get(TIMEOUT_MS, TimeUnit.MILLISECONDS) ? 1 : 0)
+                && expect("feature checks after cached query", 1, service.getFeatureCheckCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //the next session may run against another play store version,it asks again
+    private boolean disconnect() throws Exception {
+        FakeBillingService service = newService();
+        IabHelper helper = newHelper(service, false);
+        helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        service.setFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS, false);
+        service.disconnect();
+        boolean passed = awaitForgotten(helper);
+        helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        passed &= expect("feature checks", 2, service.getFeatureCheckCount())
+                && expect("cached after reconnect", 1,
+                        Boolean.FALSE.equals(helper.getCachedFeatureSupport(BillingClient.FeatureType.SUBSCRIPTIONS)) ? 1 : 0);
+        helper.dispose();
+        return passed;
+    }
+
+
+    //every feature is asked once in background after connecting,a restore then makes no feature ipc
+    private boolean warm() throws Exception {
+        FakeBillingService service = newService();
+        IabHelper helper = newHelper(service, true);
+        helper.querySkuDetails(params()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        boolean passed = awaitCached(helper, BillingClient.FeatureType.SUBSCRIPTIONS)
+                && awaitCached(helper, BillingClient.FeatureType.PRICE_CHANGE_CONFIRMATION);
+        int warmChecks = service.getFeatureCheckCount();
+        helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        passed &= expect("feature checks of a restore", warmChecks, service.getFeatureCheckCount());
+        helper.dispose();
+        return passed;
+    }
+
+
+    private static boolean awaitCached(IabHelper helper, String feature) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(helper.getCachedFeatureSupport(feature) != null){
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        System.out.println(feature + ": not cached");
+        return false;
+    }
+
+
+    private static boolean awaitForgotten(IabHelper helper) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(helper.getCachedFeatureSupport(BillingClient.FeatureType.SUBSCRIPTIONS) == null){
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        System.out.println("feature support kept after disconnect");
+        return false;
+    }
+
+
+    private IabHelper newHelper(FakeBillingService service, boolean warm){
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.setWarmFeatureCache(warm);
+        return helper;
+    }
+
+
+    private FakeBillingService newService(){
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item");
+        return service;
+    }
+
+
+    private static SkuDetailsParams params(){
+        return SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList("sku_0"))
+                .setType(BillingClient.SkuType.INAPP)
+                .build();
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
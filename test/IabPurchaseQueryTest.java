@@ -0,0 +1,180 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * queryPurchases of IabHelper on FakeBillingService,serial and parallel,checks that:
+ * in-app and subs purchases are merged and kept apart by query leg,every leg reports its timing,
+ * subs are dropped when not supported,the combined result is the first failed leg
+ * and a failed leg doesn't hide the purchases of the other one.
+ * usage: java com.tencent.imsdk.samples.IabPurchaseQueryTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabPurchaseQueryTest {
+    public static final String TAG = "IabPurchaseQueryTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+
+
+    private IabPurchaseQueryTest(){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        //errors only,the fake fails queries on purpose
+        IabLog.setLevel(Log.ASSERT);
+
+        IabPurchaseQueryTest test = new IabPurchaseQueryTest();
+        boolean passed = true;
+        for(boolean parallel : new boolean[]{false, true}){
+            String mode = parallel ? "parallel " : "serial ";
+            passed &= test.run(mode + "merge", test.merge(parallel));
+            passed &= test.run(mode + "unsupported", test.unsupported(parallel));
+            passed &= test.run(mode + "subsfailed", test.subsFailed(parallel));
+            passed &= test.run(mode + "bothfailed", test.bothFailed(parallel));
+        }
+
+        test.mCallbackExecutor.shutdown();
+        test.mTimer.shutdown();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //both legs in one list,split again by leg
+    private boolean merge(boolean parallel) throws Exception {
+        FakeBillingService service = newService();
+        IabHelper helper = newHelper(service, parallel);
+        final Set<String> legs = Collections.synchronizedSet(new HashSet<String>());
+        helper.setQueryTimingListener(new IabHelper.OnIabQueryTimingListener() {
+            @Override
+            public void onQueryLegFinished(String leg, long latencyMs) {
+                legs.add(leg);
+            }
+        });
+
+        IabHelper.PurchaseListResult result = helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean passed = expect("response", BillingClient.BillingResponseCode.OK, result.billingResult.getResponseCode())
+                && expect("purchases", 3, result.purchasesList.size())
+                && expect("in-app purchases", 2, result.inAppPurchasesList.size())
+                && expect("subs purchases", 1, result.subsPurchasesList.size())
+                && expect("subs leg sku", 1, "sub_0".equals(result.subsPurchasesList.get(0).getSku()) ? 1 : 0)
+                && expect("in-app leg timed", 1, legs.contains(IabHelper.QUERY_LEG_INAPP) ? 1 : 0)
+                && expect("subs leg timed", 1, legs.contains(IabHelper.QUERY_LEG_SUBS) ? 1 : 0);
+        helper.dispose();
+        return passed;
+    }
+
+
+    //no subscription support,the subs leg is dropped and the query still succeeds
+    private boolean unsupported(boolean parallel) throws Exception {
+        FakeBillingService service = newService();
+        service.setFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS, false);
+        IabHelper helper = newHelper(service, parallel);
+
+        IabHelper.PurchaseListResult result = helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean passed = expect("response", BillingClient.BillingResponseCode.OK, result.billingResult.getResponseCode())
+                && expect("purchases", 2, result.purchasesList.size())
+                && expect("subs purchases", 0, result.subsPurchasesList.size());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //a failed subs leg is reported,the in-app purchases are still delivered
+    private boolean subsFailed(boolean parallel) throws Exception {
+        FakeBillingService service = newService();
+        service.failNextPurchaseQueries(BillingClient.SkuType.SUBS, 1, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        IabHelper helper = newHelper(service, parallel);
+
+        IabHelper.PurchaseListResult result = helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean passed = expect("response", BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE,
+                result.billingResult.getResponseCode())
+                && expect("purchases", 2, result.purchasesList.size())
+                && expect("in-app purchases", 2, result.inAppPurchasesList.size())
+                && expect("subs purchases", 0, result.subsPurchasesList.size());
+        helper.dispose();
+        return passed;
+    }
+
+
+    //both legs failed,the in-app failure is the combined result
+    private boolean bothFailed(boolean parallel) throws Exception {
+        FakeBillingService service = newService();
+        service.failNextPurchaseQueries(BillingClient.SkuType.INAPP, 1, BillingClient.BillingResponseCode.ERROR);
+        service.failNextPurchaseQueries(BillingClient.SkuType.SUBS, 1, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        IabHelper helper = newHelper(service, parallel);
+
+        IabHelper.PurchaseListResult result = helper.queryPurchases().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean passed = expect("response", BillingClient.BillingResponseCode.ERROR, result.billingResult.getResponseCode())
+                && expect("purchases", 0, result.purchasesList.size());
+        helper.dispose();
+        return passed;
+    }
+
+
+    private IabHelper newHelper(FakeBillingService service, boolean parallel){
+        IabHelper helper = new IabHelper(service, mCallbackExecutor, mScheduler);
+        helper.setParallelPurchaseQuery(parallel);
+        return helper;
+    }
+
+
+    //two in-app items and a subscription owned
+    private FakeBillingService newService(){
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.setLatency(5);
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item 0");
+        service.addSku("sku_1", BillingClient.SkuType.INAPP, 990000L, "item 1");
+        service.addSku("sub_0", BillingClient.SkuType.SUBS, 4990000L, "sub", "P1M");
+        service.grantPurchase("sku_0");
+        service.grantPurchase("sku_1");
+        service.grantPurchase("sub_0");
+        return service;
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,186 @@
+package com.tencent.imsdk.samples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * behavior checks of IabRequestScheduler on a virtual clock,checks that:
+ * queued requests start by priority class,class caps and the total cap hold,
+ * a request waiting longer than maxWait starts before higher classes,
+ * a request done while queued never runs,flush starts everything queued.
+ * usage: java com.tencent.imsdk.samples.IabRequestSchedulerTest
+ * exits with 1 if a scenario fails.
+ */
+public class IabRequestSchedulerTest {
+    public static final String TAG = "IabRequestSchedulerTest";
+
+    private static final long MAX_WAIT_MS = 1000;
+    private static final int[] ONE_EACH = {1, 1, 1, 1};
+
+    private final List<String> mStarted = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, IabFuture<Void>> mDone = new HashMap<String, IabFuture<Void>>();
+
+
+    public static void main(String[] args){
+        IabRequestSchedulerTest test = new IabRequestSchedulerTest();
+        boolean passed = test.run("priority", test.priority());
+        passed &= test.run("caps", test.caps());
+        passed &= test.run("starvation", test.starvation());
+        passed &= test.run("done", test.done());
+        passed &= test.run("flush", test.flush());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //one slot,queued requests start high class first,fifo within a class
+    private boolean priority(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabRequestScheduler scheduler = new IabRequestScheduler(ONE_EACH, 1, MAX_WAIT_MS, clock);
+        IabFuture<Void> busy = submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "busy");
+        submit(scheduler, IabRequestScheduler.PRIORITY_PREFETCH, "prefetch");
+        submit(scheduler, IabRequestScheduler.PRIORITY_SETTLEMENT, "settlement");
+        submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "query 1");
+        submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "query 2");
+        submit(scheduler, IabRequestScheduler.PRIORITY_PURCHASE, "purchase");
+
+        mStarted.clear();
+        busy.complete(null);
+        //each started request holds the only slot until completed
+        for(int i = 0; i < 4; i++){
+            completeLastStarted();
+        }
+        return expect("start order", Arrays.asList("purchase", "query 1", "query 2", "settlement", "prefetch"), mStarted);
+    }
+
+
+    //settlements stop at their cap,queries still get a slot,the total cap holds for every class
+    private boolean caps(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabRequestScheduler scheduler = new IabRequestScheduler(IabRequestScheduler.DEFAULT_CAPS,
+                IabRequestScheduler.DEFAULT_MAX_IN_FLIGHT, MAX_WAIT_MS, clock);
+        for(int i = 0; i < 5; i++){
+            submit(scheduler, IabRequestScheduler.PRIORITY_SETTLEMENT, "settlement " + i);
+        }
+        boolean passed = expect("settlements in flight", 2, scheduler.getInFlight(IabRequestScheduler.PRIORITY_SETTLEMENT))
+                && expect("settlements queued", 3, scheduler.getQueued(IabRequestScheduler.PRIORITY_SETTLEMENT));
+
+        IabFuture<Void> query = submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "query 0");
+        submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "query 1");
+        submit(scheduler, IabRequestScheduler.PRIORITY_PURCHASE, "purchase");
+        passed &= expect("queries in flight", 2, scheduler.getInFlight(IabRequestScheduler.PRIORITY_QUERY))
+                && expect("purchase queued at the total cap", 1, scheduler.getQueued(IabRequestScheduler.PRIORITY_PURCHASE));
+
+        //a freed slot goes to the purchase,not to a settlement
+        query.complete(null);
+        passed &= expect("purchase in flight", 1, scheduler.getInFlight(IabRequestScheduler.PRIORITY_PURCHASE))
+                && expect("settlements still queued", 3, scheduler.getQueued(IabRequestScheduler.PRIORITY_SETTLEMENT));
+        return passed;
+    }
+
+
+    //a steady stream of queries doesn't starve a prefetch past maxWait
+    private boolean starvation(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabRequestScheduler scheduler = new IabRequestScheduler(ONE_EACH, 1, MAX_WAIT_MS, clock);
+        submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "busy");
+        submit(scheduler, IabRequestScheduler.PRIORITY_PREFETCH, "prefetch");
+
+        //a new query is queued every 100ms,each one ends the running request
+        mStarted.clear();
+        mStarted.add("busy");
+        int prefetchAt = -1;
+        for(int i = 0; i < 20 && prefetchAt < 0; i++){
+            clock.advance(100);
+            submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "query " + i);
+            completeLastStarted();
+            if("prefetch".equals(mStarted.get(mStarted.size() - 1))){
+                prefetchAt = i;
+            }
+        }
+        //waited over maxWait at the 10th query,started on the 11th release,not after all 20
+        return expect("prefetch started at query", (int) (MAX_WAIT_MS / 100), prefetchAt);
+    }
+
+
+    //a request cancelled while queued never runs and doesn't keep its slot
+    private boolean done(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabRequestScheduler scheduler = new IabRequestScheduler(ONE_EACH, 1, MAX_WAIT_MS, clock);
+        IabFuture<Void> busy = submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "busy");
+        IabFuture<Void> cancelled = submit(scheduler, IabRequestScheduler.PRIORITY_PURCHASE, "cancelled");
+        submit(scheduler, IabRequestScheduler.PRIORITY_SETTLEMENT, "settlement");
+        cancelled.cancel();
+
+        mStarted.clear();
+        busy.complete(null);
+        return expect("started", Collections.singletonList("settlement"), mStarted)
+                && expect("purchase slot", 0, scheduler.getInFlight(IabRequestScheduler.PRIORITY_PURCHASE));
+    }
+
+
+    //dispose flushes,it starts every queued request at once,caps ignored
+    private boolean flush(){
+        VirtualScheduler clock = new VirtualScheduler();
+        IabRequestScheduler scheduler = new IabRequestScheduler(ONE_EACH, 1, MAX_WAIT_MS, clock);
+        submit(scheduler, IabRequestScheduler.PRIORITY_QUERY, "busy");
+        for(int i = 0; i < 3; i++){
+            submit(scheduler, IabRequestScheduler.PRIORITY_SETTLEMENT, "settlement " + i);
+        }
+
+        mStarted.clear();
+        scheduler.flush();
+        return expect("started", 3, mStarted.size())
+                && expect("settlements in flight", 3, scheduler.getInFlight(IabRequestScheduler.PRIORITY_SETTLEMENT))
+                && expect("queued", 0, scheduler.getQueued(IabRequestScheduler.PRIORITY_SETTLEMENT));
+    }
+
+
+    //the request records its start,it holds its slot until the returned future is done
+    private IabFuture<Void> submit(IabRequestScheduler scheduler, int priority, final String name){
+        IabFuture<Void> done = new IabFuture<Void>();
+        mDone.put(name, done);
+        scheduler.submit(priority, new Runnable() {
+            @Override
+            public void run() {
+                mStarted.add(name);
+            }
+        }, done);
+        return done;
+    }
+
+
+    //release the slot of the request started last
+    private void completeLastStarted(){
+        mDone.get(mStarted.get(mStarted.size() - 1)).complete(null);
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static boolean expect(String what, List<String> expected, List<String> actual){
+        if(!expected.equals(actual)){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+}
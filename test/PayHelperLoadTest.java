@@ -0,0 +1,236 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * load test of PayHelper purchase flows on FakeBillingService,runs on a plain JVM without a device.
+ * the billing library and org.json must be on the classpath,Purchase and SkuDetails parse json with it.
+ * every phase pays a round of skus concurrently from a single "main" thread and waits until the fake
+ * reports every purchase settled: in-app items consumed,subs acknowledged,nothing refunded.
+ * usage: java com.tencent.imsdk.samples.PayHelperLoadTest [rounds] [latencyMs]
+ * exits with 1 if a phase doesn't settle in time.
+ */
+public class PayHelperLoadTest {
+    public static final String TAG = "PayHelperLoadTest";
+
+    private static final int SKU_COUNT = 100;
+    private static final long SETTLE_TIMEOUT_MS = 60 * 1000;
+    private static final long RESTORE_INTERVAL_MS = 2000;
+
+    private final FakeBillingService mService;
+    private final PayHelper mPayHelper;
+    private final ExecutorService mMainExecutor;
+
+
+    private PayHelperLoadTest(FakeBillingService service, PayHelper payHelper, ExecutorService mainExecutor){
+        mService = service;
+        mPayHelper = payHelper;
+        mMainExecutor = mainExecutor;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 2;
+        //errors only,the fake fails requests on purpose
+        IabLog.setLevel(Log.ASSERT);
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        ExecutorService mainExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        IabScheduler scheduler = new IabScheduler.ExecutorScheduler(timer);
+
+        FakeBillingService service = new FakeBillingService(scheduler, IabClock.SYSTEM);
+        service.setLatency(latencyMs);
+        for(int i = 0; i < SKU_COUNT; i++){
+            service.addSku(inAppSku(i), BillingClient.SkuType.INAPP, 990000L, "load item " + i);
+        }
+        service.addSku("load_sub_0", BillingClient.SkuType.SUBS, 4990000L, "load sub", "P1M");
+
+        PayHelper payHelper = new PayHelper(service, mainExecutor, scheduler);
+        File filesDir = createFilesDir();
+        payHelper.init(filesDir);
+
+        PayHelperLoadTest test = new PayHelperLoadTest(service, payHelper, mainExecutor);
+        boolean passed = test.run(rounds);
+
+        payHelper.dispose();
+        mainExecutor.shutdown();
+        timer.shutdown();
+        deleteDir(filesDir);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(int rounds) throws InterruptedException {
+        //1. purchased,acknowledge and consume every in-app item,acknowledge the subscription
+        mService.setNextPurchaseOutcome(FakeBillingService.OUTCOME_PURCHASED);
+        int purchases = mService.getPurchaseCount();
+        pay("load_sub_0", BillingClient.SkuType.SUBS);
+        if(!awaitSettled("subscription", purchases + 1)){
+            return false;
+        }
+        long start = System.nanoTime();
+        for(int round = 0; round < rounds; round++){
+            purchases = mService.getPurchaseCount();
+            payRound();
+            if(!awaitSettled("purchased", purchases + SKU_COUNT)){
+                return false;
+            }
+        }
+        report("purchased", rounds * SKU_COUNT, start);
+
+        //2. chaos,failed consumes and acknowledges and a dropped connection,a restore settles what the purchase
+        //updates left,the connection drops after the launches,a launch racing it fails to the user by design
+        start = System.nanoTime();
+        for(int round = 0; round < rounds; round++){
+            purchases = mService.getPurchaseCount();
+            mService.failNextRequests(SKU_COUNT / 5, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+            payRound();
+            if(!awaitPurchases("chaos", purchases + SKU_COUNT)){
+                return false;
+            }
+            mService.disconnect();
+            if(!awaitSettled("chaos", purchases + SKU_COUNT)){
+                return false;
+            }
+        }
+        report("chaos", rounds * SKU_COUNT, start);
+
+        //3. pending,paid later in background
+        start = System.nanoTime();
+        for(int round = 0; round < rounds; round++){
+            purchases = mService.getPurchaseCount();
+            mService.setNextPurchaseOutcome(FakeBillingService.OUTCOME_PENDING);
+            payRound();
+            if(!awaitPurchases("pending", purchases + SKU_COUNT)){
+                return false;
+            }
+            for(String purchaseToken : mService.getPendingTokens()){
+                mService.completePendingPurchase(purchaseToken);
+            }
+            if(!awaitSettled("pending", purchases + SKU_COUNT)){
+                return false;
+            }
+        }
+        report("pending", rounds * SKU_COUNT, start);
+        mService.setNextPurchaseOutcome(FakeBillingService.OUTCOME_PURCHASED);
+        return true;
+    }
+
+
+    private void payRound(){
+        for(int i = 0; i < SKU_COUNT; i++){
+            pay(inAppSku(i), BillingClient.SkuType.INAPP);
+        }
+    }
+
+
+    //tap on buy,on the main thread
+    private void pay(final String sku, @BillingClient.SkuType final String skuType){
+        mMainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPayHelper.pay(null, sku, skuType);
+            }
+        });
+    }
+
+
+    private void restore(){
+        mMainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPayHelper.queryPurchases();
+            }
+        });
+    }
+
+
+    //purchases made and settled,retried by restores while the injected failures last
+    private boolean awaitSettled(String phase, int purchases) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        long nextRestore = System.currentTimeMillis() + RESTORE_INTERVAL_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(mService.getPurchaseCount() >= purchases
+                    && mService.getUnsettledTokens().isEmpty() && mService.getPendingTokens().isEmpty()){
+                return true;
+            }
+            if(System.currentTimeMillis() >= nextRestore){
+                restore();
+                nextRestore = System.currentTimeMillis() + RESTORE_INTERVAL_MS;
+            }
+            Thread.sleep(10);
+        }
+        System.out.println(phase + ": purchases: " + mService.getPurchaseCount() + "/" + purchases
+                + ", unsettled: " + mService.getUnsettledTokens().size()
+                + ", pending: " + mService.getPendingTokens().size());
+        return false;
+    }
+
+
+    private boolean awaitPurchases(String phase, int purchases) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(mService.getPurchaseCount() >= purchases){
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        System.out.println(phase + ": purchases: " + mService.getPurchaseCount() + "/" + purchases);
+        return false;
+    }
+
+
+    private static void report(String phase, int purchases, long startNanos){
+        long elapsedMillis = Math.max(1, (System.nanoTime() - startNanos) / 1000000L);
+        System.out.println(phase + ": " + purchases + " purchases settled in " + elapsedMillis + "ms, "
+                + (purchases * 1000L / elapsedMillis) + "/s");
+    }
+
+
+    private static String inAppSku(int i){
+        return "load_sku_" + i;
+    }
+
+
+    private static File createFilesDir() throws IOException {
+        File dir = File.createTempFile("payhelper", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+
+    private static void deleteDir(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,296 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * pending purchase checks on a virtual scheduler,checks that:
+ * a tick always ends and schedules the next one,even when a check throws,
+ * the delay doubles once per tick however many checks failed,a tick that moved a token keeps it,
+ * a new token restarts it from base and it never grows past max,
+ * PayHelper keeps checking a pending purchase on FakeBillingService until a check cancels it.
+ * usage: java com.tencent.imsdk.samples.PendingPurchaseTrackerTest
+ * exits with 1 if a scenario fails.
+ */
+public class PendingPurchaseTrackerTest {
+    public static final String TAG = "PendingPurchaseTrackerTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final long BASE_DELAY_MS = 100;
+    private static final long MAX_DELAY_MS = 1000;
+
+
+    public static void main(String[] args) throws Exception {
+        //errors only,checks throw on purpose
+        IabLog.setLevel(Log.ASSERT);
+
+        PendingPurchaseTrackerTest test = new PendingPurchaseTrackerTest();
+        boolean passed = test.run("throwing", test.throwing());
+        passed &= test.run("backoff", test.backoff());
+        passed &= test.run("payhelper", test.payHelper());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //a check that throws counts as failed,the tick still ends and backs off
+    private boolean throwing(){
+        VirtualScheduler scheduler = new VirtualScheduler();
+        final Purchase inApp = FakeBillingService.newPurchase("sku_0", BillingClient.SkuType.INAPP, 1, Purchase.PurchaseState.PENDING);
+        final Purchase subs = FakeBillingService.newPurchase("sub_0", BillingClient.SkuType.SUBS, 2, Purchase.PurchaseState.PENDING);
+        final AtomicInteger checks = new AtomicInteger();
+        RecordingListener listener = new RecordingListener();
+        PendingPurchaseTracker tracker = new PendingPurchaseTracker(new PendingPurchaseTracker.Checker() {
+            @Override
+            public void check(PendingPurchaseTracker tracker, String skuType) {
+                checks.incrementAndGet();
+                if(BillingClient.SkuType.SUBS.equals(skuType)){
+                    throw new IllegalStateException("check failed");
+                }
+                tracker.onChecked(skuType, Collections.singletonList(inApp));
+            }
+        }, listener, scheduler, BASE_DELAY_MS, MAX_DELAY_MS);
+        tracker.track(inApp, BillingClient.SkuType.INAPP);
+        tracker.track(subs, BillingClient.SkuType.SUBS);
+
+        boolean passed = expect("first tick", 1, scheduler.getPendingCount(BASE_DELAY_MS));
+        scheduler.advance(BASE_DELAY_MS);
+        passed &= expect("checks", 2, checks.get())
+                && expect("next tick", 1, scheduler.getPendingCount(2 * BASE_DELAY_MS))
+                && expect("ticks", 1, scheduler.getPendingCount());
+        scheduler.advance(2 * BASE_DELAY_MS);
+        passed &= expect("checks of the second tick", 4, checks.get())
+                && expect("settled", 0, listener.completed.size() + listener.cancelled.size())
+                && expect("third tick", 1, scheduler.getPendingCount(4 * BASE_DELAY_MS));
+        tracker.clear();
+        return passed && expect("ticks after clear", 0, scheduler.getPendingCount());
+    }
+
+
+    //two sku types per tick,the delay follows the tick and not the number of checks
+    private boolean backoff(){
+        VirtualScheduler scheduler = new VirtualScheduler();
+        Purchase inApp = FakeBillingService.newPurchase("sku_0", BillingClient.SkuType.INAPP, 1, Purchase.PurchaseState.PENDING);
+        Purchase subs = FakeBillingService.newPurchase("sub_0", BillingClient.SkuType.SUBS, 2, Purchase.PurchaseState.PENDING);
+        ScriptedChecker checker = new ScriptedChecker();
+        RecordingListener listener = new RecordingListener();
+        PendingPurchaseTracker tracker = new PendingPurchaseTracker(checker, listener, scheduler, BASE_DELAY_MS, MAX_DELAY_MS);
+        tracker.track(inApp, BillingClient.SkuType.INAPP);
+        tracker.track(subs, BillingClient.SkuType.SUBS);
+
+        //both checks failed,doubled once
+        checker.fail = true;
+        scheduler.advance(BASE_DELAY_MS);
+        boolean passed = expect("checks", 2, checker.checks.get())
+                && expect("after failed tick", 1, scheduler.getPendingCount(2 * BASE_DELAY_MS));
+
+        //both still pending,doubled once
+        checker.fail = false;
+        checker.owned = Arrays.asList(inApp, subs);
+        scheduler.advance(2 * BASE_DELAY_MS);
+        passed &= expect("after unchanged tick", 1, scheduler.getPendingCount(4 * BASE_DELAY_MS));
+
+        //the in-app one was paid,the tick moved a token,same delay
+        checker.owned = Arrays.asList(
+                FakeBillingService.newPurchase("sku_0", BillingClient.SkuType.INAPP, 1, Purchase.PurchaseState.PURCHASED), subs);
+        scheduler.advance(4 * BASE_DELAY_MS);
+        passed &= expect("completed", 1, listener.completed.size())
+                && expect("after moved tick", 1, scheduler.getPendingCount(4 * BASE_DELAY_MS));
+
+        //a new token starts over
+        tracker.track(FakeBillingService.newPurchase("sku_1", BillingClient.SkuType.INAPP, 3, Purchase.PurchaseState.PENDING),
+                BillingClient.SkuType.INAPP);
+        passed &= expect("after new token", 1, scheduler.getPendingCount(BASE_DELAY_MS))
+                && expect("ticks", 1, scheduler.getPendingCount());
+
+        //failing for good,capped at max
+        checker.fail = true;
+        long delay = BASE_DELAY_MS;
+        for(int i = 0; passed && i < 6; i++){
+            scheduler.advance(delay);
+            delay = Math.min(MAX_DELAY_MS, delay * 2);
+            passed = expect("tick " + i, 1, scheduler.getPendingCount(delay));
+        }
+        passed &= expect("capped", (int) MAX_DELAY_MS, (int) delay);
+        tracker.clear();
+        return passed;
+    }
+
+
+    //each check of PayHelper reports,an unpaid purchase backs the ticks off,a cancelled one ends them
+    private boolean payHelper() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        ExecutorService mainExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        IabScheduler realScheduler = new IabScheduler.ExecutorScheduler(timer);
+        //pending checks wait for advance(),billing latency and retries run in real time
+        VirtualScheduler scheduler = new VirtualScheduler(realScheduler, PendingPurchaseTracker.DEFAULT_BASE_DELAY_MS);
+        FakeBillingService service = new FakeBillingService(realScheduler, IabClock.SYSTEM);
+        service.addSku("pending_sku_0", BillingClient.SkuType.INAPP, 990000L, "pending item");
+
+        final PayHelper payHelper = new PayHelper(service, mainExecutor, scheduler);
+        File filesDir = createFilesDir();
+        payHelper.init(filesDir);
+        service.setNextPurchaseOutcome(FakeBillingService.OUTCOME_PENDING);
+        mainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                payHelper.pay(null, "pending_sku_0", BillingClient.SkuType.INAPP);
+            }
+        });
+
+        long delay = PendingPurchaseTracker.DEFAULT_BASE_DELAY_MS;
+        //an operation timeout is as long as the first tick,wait for the purchase first
+        boolean passed = awaitPending(service) && awaitTick(scheduler, delay);
+        if(passed){
+            //nothing moved,the next tick is later
+            scheduler.advance(delay);
+            passed = awaitTick(scheduler, 2 * delay);
+        }
+        if(passed){
+            //never paid,the check drops it and no tick is left
+            service.cancelPendingPurchase(service.getPendingTokens().get(0));
+            scheduler.advance(2 * delay);
+            passed = awaitTick(scheduler, -1);
+        }
+
+        payHelper.dispose();
+        mainExecutor.shutdown();
+        timer.shutdown();
+        deleteDir(filesDir);
+        return passed;
+    }
+
+
+    private static boolean awaitPending(FakeBillingService service) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(service.getPendingTokens().size() == 1){
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        System.out.println("pending purchases: " + service.getPendingTokens().size());
+        return false;
+    }
+
+
+    //the only long task waiting is a tick of delayMillis,-1 for no tick at all
+    private static boolean awaitTick(VirtualScheduler scheduler, long delayMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline){
+            if(delayMillis < 0 ? scheduler.getPendingCount() == 0
+                    : scheduler.getPendingCount() == 1 && scheduler.getPendingCount(delayMillis) == 1){
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        System.out.println("tick of " + delayMillis + "ms: waiting tasks " + scheduler.getPendingCount()
+                + ", of that delay " + scheduler.getPendingCount(delayMillis));
+        return false;
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static class RecordingListener implements PendingPurchaseTracker.OnPendingPurchaseListener{
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> cancelled = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onPendingPurchasesCompleted(List<Purchase> purchases) {
+            for(Purchase purchase : purchases){
+                completed.add(purchase.getPurchaseToken());
+            }
+        }
+
+        @Override
+        public void onPendingPurchaseCancelled(String sku, String purchaseToken) {
+            cancelled.add(purchaseToken);
+        }
+    }
+
+
+    //fails every check,or answers with the purchases it owns
+    private static class ScriptedChecker implements PendingPurchaseTracker.Checker{
+        final AtomicInteger checks = new AtomicInteger();
+        volatile boolean fail;
+        volatile List<Purchase> owned = Collections.emptyList();
+
+        @Override
+        public void check(PendingPurchaseTracker tracker, String skuType) {
+            checks.incrementAndGet();
+            if(fail){
+                tracker.onCheckFailed();
+                return;
+            }
+
+            List<Purchase> ofType = new ArrayList<Purchase>();
+            for(Purchase purchase : owned){
+                if(purchase.getSku().startsWith("sub_") == BillingClient.SkuType.SUBS.equals(skuType)){
+                    ofType.add(purchase);
+                }
+            }
+            tracker.onChecked(skuType, ofType);
+        }
+    }
+
+
+    private static File createFilesDir() throws IOException {
+        File dir = File.createTempFile("pending", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+
+    private static void deleteDir(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+package com.tencent.imsdk.samples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * replay tests of PurchaseJournal on a temp dir,checks that:
+ * every state is resumed after a reopen,a torn tail record is dropped and appending goes on after it,
+ * compaction keeps only unfinished tokens and forgets consumed items and settled subscriptions,
+ * records written on a background io executor are all replayed after close.
+ * usage: java com.tencent.imsdk.samples.PurchaseJournalTest
+ * exits with 1 if a scenario fails.
+ */
+public class PurchaseJournalTest {
+    public static final String TAG = "PurchaseJournalTest";
+
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private static final int[] STATES = {
+            PurchaseJournal.STATE_SEEN,
+            PurchaseJournal.STATE_ENTITLED,
+            PurchaseJournal.STATE_ACKED,
+            PurchaseJournal.STATE_CONSUMED,
+            PurchaseJournal.STATE_SETTLED,
+    };
+
+
+    public static void main(String[] args) throws Exception {
+        PurchaseJournalTest test = new PurchaseJournalTest();
+        boolean passed = test.run("resume", test.resume());
+        passed &= test.run("torn", test.torn());
+        passed &= test.run("compact", test.compact());
+        passed &= test.run("background", test.background());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //a token left in each state comes back in that state,only the unfinished ones are resumed
+    private boolean resume() throws IOException {
+        File dir = createFilesDir();
+        File file = new File(dir, "journal");
+        PurchaseJournal journal = new PurchaseJournal(file);
+        journal.open();
+        for(int state : STATES){
+            for(int step = PurchaseJournal.STATE_SEEN; step <= state; step++){
+                if(step == PurchaseJournal.STATE_CONSUMED && state == PurchaseJournal.STATE_SETTLED){
+                    //a subscription goes from acknowledged to settled
+                    continue;
+                }
+                journal.record("token_" + state, step);
+            }
+        }
+        //going back is ignored
+        journal.record("token_" + PurchaseJournal.STATE_ACKED, PurchaseJournal.STATE_SEEN);
+        journal.close();
+
+        PurchaseJournal reopened = new PurchaseJournal(file);
+        reopened.open();
+        boolean passed = true;
+        for(int state : STATES){
+            passed &= expect("state of token_" + state, state, reopened.getState("token_" + state));
+        }
+        Map<String, Integer> unfinished = reopened.getUnfinished();
+        passed &= expect("unfinished", 3, unfinished.size())
+                && expect("unfinished consumed", 0, unfinished.containsKey("token_" + PurchaseJournal.STATE_CONSUMED) ? 1 : 0)
+                && expect("unfinished settled", 0, unfinished.containsKey("token_" + PurchaseJournal.STATE_SETTLED) ? 1 : 0);
+        reopened.close();
+        deleteDir(dir);
+        return passed;
+    }
+
+
+    //a record cut by a crash is dropped on replay,the next record is appended where the valid ones end
+    private boolean torn() throws IOException {
+        File dir = createFilesDir();
+        File file = new File(dir, "journal");
+        PurchaseJournal journal = new PurchaseJournal(file);
+        journal.open();
+        journal.record("token_a", PurchaseJournal.STATE_ACKED);
+        journal.record("token_b", PurchaseJournal.STATE_ENTITLED);
+        journal.close();
+        long validLength = file.length();
+
+        //state byte and a utf length of 32 with only 2 bytes of it written
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{PurchaseJournal.STATE_SEEN, 0, 32, 't', 'o'});
+        } finally {
+            out.close();
+        }
+
+        PurchaseJournal reopened = new PurchaseJournal(file);
+        reopened.open();
+        boolean passed = expect("state of token_a", PurchaseJournal.STATE_ACKED, reopened.getState("token_a"))
+                && expect("state of token_b", PurchaseJournal.STATE_ENTITLED, reopened.getState("token_b"))
+                && expect("unfinished", 2, reopened.getUnfinished().size())
+                && expect("length after replay", (int) validLength, (int) file.length());
+        reopened.record("token_c", PurchaseJournal.STATE_SEEN);
+        reopened.record("token_b", PurchaseJournal.STATE_CONSUMED);
+        reopened.close();
+
+        PurchaseJournal appended = new PurchaseJournal(file);
+        appended.open();
+        passed &= expect("state of token_c", PurchaseJournal.STATE_SEEN, appended.getState("token_c"))
+                && expect("state of token_b after torn tail", PurchaseJournal.STATE_CONSUMED, appended.getState("token_b"))
+                && expect("unfinished after torn tail", 2, appended.getUnfinished().size());
+        appended.close();
+        deleteDir(dir);
+        return passed;
+    }
+
+
+    //consumed items and settled subscriptions leave the file,acknowledged ones stay
+    private boolean compact() throws IOException {
+        File dir = createFilesDir();
+        File file = new File(dir, "journal");
+        PurchaseJournal journal = new PurchaseJournal(file);
+        journal.open();
+        int tokens = 300;
+        int unfinished = 0;
+        for(int i = 0; i < tokens; i++){
+            String token = "token_" + i;
+            journal.record(token, PurchaseJournal.STATE_SEEN);
+            journal.record(token, PurchaseJournal.STATE_ENTITLED);
+            journal.record(token, PurchaseJournal.STATE_ACKED);
+            if(i % 3 == 0){
+                journal.record(token, PurchaseJournal.STATE_CONSUMED);
+            }else if(i % 3 == 1){
+                journal.record(token, PurchaseJournal.STATE_SETTLED);
+            }else{
+                unfinished++;
+            }
+        }
+        long before = file.length();
+        journal.compact();
+        long after = file.length();
+        boolean passed = expect("shrunk", 1, after < before ? 1 : 0)
+                && expect("state of consumed", PurchaseJournal.STATE_NONE, journal.getState("token_0"))
+                && expect("state of settled", PurchaseJournal.STATE_NONE, journal.getState("token_1"))
+                && expect("state of acked", PurchaseJournal.STATE_ACKED, journal.getState("token_2"));
+        //appended after compaction
+        journal.record("token_new", PurchaseJournal.STATE_SEEN);
+        journal.close();
+
+        PurchaseJournal reopened = new PurchaseJournal(file);
+        reopened.open();
+        passed &= expect("unfinished after compact", unfinished + 1, reopened.getUnfinished().size())
+                && expect("state of acked after compact", PurchaseJournal.STATE_ACKED, reopened.getState("token_2"))
+                && expect("state of settled after compact", PurchaseJournal.STATE_NONE, reopened.getState("token_1"))
+                && expect("state of appended after compact", PurchaseJournal.STATE_SEEN, reopened.getState("token_new"));
+        reopened.close();
+        deleteDir(dir);
+        return passed;
+    }
+
+
+    //records queued on the io executor are written before close finishes,compacted on the way
+    private boolean background() throws Exception {
+        File dir = createFilesDir();
+        File file = new File(dir, "journal");
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        PurchaseJournal journal = new PurchaseJournal(file, ioExecutor);
+        journal.open();
+        int tokens = 1000;
+        for(int i = 0; i < tokens; i++){
+            String token = "token_" + i;
+            journal.record(token, PurchaseJournal.STATE_SEEN);
+            journal.record(token, PurchaseJournal.STATE_ACKED);
+            journal.record(token, i % 2 == 0 ? PurchaseJournal.STATE_CONSUMED : PurchaseJournal.STATE_SETTLED);
+            if(i % 10 == 0){
+                journal.record("unfinished_" + i, PurchaseJournal.STATE_ENTITLED);
+            }
+        }
+        journal.close();
+        ioExecutor.shutdown();
+        if(!ioExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+            System.out.println("background: io executor timed out");
+            return false;
+        }
+
+        PurchaseJournal reopened = new PurchaseJournal(file);
+        reopened.open();
+        boolean passed = expect("unfinished", tokens / 10, reopened.getUnfinished().size())
+                && expect("state of unfinished", PurchaseJournal.STATE_ENTITLED, reopened.getState("unfinished_" + (tokens - 10)));
+        reopened.close();
+        deleteDir(dir);
+        return passed;
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static File createFilesDir() throws IOException {
+        File dir = File.createTempFile("journal", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+
+    private static void deleteDir(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
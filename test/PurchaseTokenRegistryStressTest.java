@@ -0,0 +1,307 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * concurrency stress test of PurchaseTokenRegistry,many threads deliver the same tokens at once
+ * like onPurchasesUpdated and queryPurchases racing on a restore. checks that:
+ * a token has one owner while its work is in flight or cached,every caller gets exactly one result,
+ * failed work is retried by a new owner,a begin racing a failing complete never gets the failure as a cached result,
+ * clear() completes every waiting caller.
+ * usage: java com.tencent.imsdk.samples.PurchaseTokenRegistryStressTest [threads] [tokens]
+ * exits with 1 if a check fails.
+ */
+public class PurchaseTokenRegistryStressTest {
+    public static final String TAG = "PurchaseTokenRegistryStressTest";
+
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final int mThreads;
+    private final int mTokens;
+    private final ExecutorService mCallers;
+    //completes owned work,like the billing callbacks
+    private final ExecutorService mWorkers;
+
+
+    private PurchaseTokenRegistryStressTest(int threads, int tokens){
+        mThreads = threads;
+        mTokens = tokens;
+        mCallers = Executors.newFixedThreadPool(threads);
+        mWorkers = Executors.newFixedThreadPool(4);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int tokens = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        PurchaseTokenRegistryStressTest test = new PurchaseTokenRegistryStressTest(threads, tokens);
+        boolean passed = test.run("dedup", test.dedup());
+        passed &= test.run("retry", test.retry());
+        passed &= test.run("failing", test.failing());
+        passed &= test.run("clear", test.clear());
+
+        test.mCallers.shutdownNow();
+        test.mWorkers.shutdownNow();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //every thread delivers every token,the work of a token runs once
+    private boolean dedup() throws Exception {
+        PurchaseTokenRegistry registry = new PurchaseTokenRegistry(60 * 1000, mTokens * 2, IabClock.SYSTEM);
+        Delivery delivery = new Delivery(registry, 0);
+        long start = System.nanoTime();
+        delivery.deliver();
+        if(!delivery.awaitResults()){
+            return false;
+        }
+        System.out.println("dedup: " + (mThreads * mTokens) + " deliveries in "
+                + (System.nanoTime() - start) / 1000000L + "ms");
+
+        return expect("results", mThreads * mTokens, delivery.results.get())
+                && expect("duplicate results", 0, delivery.duplicates.get())
+                && expect("owners", mTokens, delivery.owners.get())
+                && expect("tokens worked more than once", 0, delivery.countWorkedMoreThan(1));
+    }
+
+
+    //every other work fails,a later caller owns the retry,every caller still gets one result
+    private boolean retry() throws Exception {
+        PurchaseTokenRegistry registry = new PurchaseTokenRegistry(60 * 1000, mTokens * 2, IabClock.SYSTEM);
+        Delivery delivery = new Delivery(registry, 2);
+        delivery.deliver();
+        if(!delivery.awaitResults()){
+            return false;
+        }
+
+        return expect("results", mThreads * mTokens, delivery.results.get())
+                && expect("duplicate results", 0, delivery.duplicates.get())
+                && expect("tokens worked after a success", 0, delivery.countWorkedAfterSuccess());
+    }
+
+
+    //every work fails on the owner thread while the other threads begin the same token,
+    //a begin right after the failing complete owns a retry instead of getting the failure from the cache
+    private boolean failing() throws Exception {
+        final PurchaseTokenRegistry registry = new PurchaseTokenRegistry(60 * 1000, mTokens * 2, IabClock.SYSTEM);
+        final BillingResult failed = BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                .build();
+        final AtomicInteger cachedFailures = new AtomicInteger();
+        final AtomicInteger owners = new AtomicInteger();
+        final CountDownLatch delivered = new CountDownLatch(mThreads);
+        for(int t = 0; t < mThreads; t++){
+            mCallers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Thread caller = Thread.currentThread();
+                    for(int i = 0; i < mTokens; i++){
+                        final boolean[] inBegin = new boolean[]{true};
+                        boolean owner = registry.begin("failing_" + i, new PurchaseTokenRegistry.OnTokenCompleteListener() {
+                            @Override
+                            public void onTokenComplete(String token, BillingResult result) {
+                                //called by begin itself,so from the cache
+                                if(inBegin[0] && Thread.currentThread() == caller
+                                        && result.getResponseCode() != BillingClient.BillingResponseCode.OK){
+                                    cachedFailures.incrementAndGet();
+                                }
+                            }
+                        });
+                        inBegin[0] = false;
+                        if(owner){
+                            owners.incrementAndGet();
+                            registry.complete("failing_" + i, failed);
+                        }
+                    }
+                    delivered.countDown();
+                }
+            });
+        }
+        if(!delivered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+            System.out.println("deliveries don't finish in time.");
+            return false;
+        }
+
+        System.out.println("failing: " + owners.get() + " owners of " + (mThreads * mTokens) + " deliveries");
+        return expect("cached failures", 0, cachedFailures.get())
+                && expect("entries", 0, registry.size());
+    }
+
+
+    //work never completes,clear() releases every waiting caller
+    private boolean clear() throws Exception {
+        final PurchaseTokenRegistry registry = new PurchaseTokenRegistry(60 * 1000, mTokens * 2, IabClock.SYSTEM);
+        Delivery delivery = new Delivery(registry, -1);
+        delivery.deliver();
+        if(!delivery.awaitDelivered()){
+            return false;
+        }
+
+        registry.clear();
+        if(!delivery.awaitResults()){
+            return false;
+        }
+        return expect("results", mThreads * mTokens, delivery.results.get())
+                && expect("duplicate results", 0, delivery.duplicates.get())
+                && expect("ok results", 0, delivery.okResults.get())
+                && expect("entries", 0, registry.size());
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    //threads x tokens deliveries of one scenario
+    private class Delivery{
+        final PurchaseTokenRegistry registry;
+        //0 never fails,n fails every n-th work,-1 never completes
+        final int failEvery;
+        final CountDownLatch delivered = new CountDownLatch(mThreads);
+        final CountDownLatch done = new CountDownLatch(mThreads * mTokens);
+        final AtomicInteger results = new AtomicInteger();
+        final AtomicInteger okResults = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger owners = new AtomicInteger();
+        final AtomicInteger works = new AtomicInteger();
+        final AtomicIntegerArray worked;
+        final AtomicIntegerArray workedAfterSuccess;
+        final AtomicIntegerArray succeeded;
+
+        Delivery(PurchaseTokenRegistry registry, int failEvery){
+            this.registry = registry;
+            this.failEvery = failEvery;
+            worked = new AtomicIntegerArray(mTokens);
+            workedAfterSuccess = new AtomicIntegerArray(mTokens);
+            succeeded = new AtomicIntegerArray(mTokens);
+        }
+
+        void deliver(){
+            for(int t = 0; t < mThreads; t++){
+                final long seed = t;
+                mCallers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Integer> order = new ArrayList<Integer>(mTokens);
+                        for(int i = 0; i < mTokens; i++){
+                            order.add(i);
+                        }
+                        Collections.shuffle(order, new Random(seed));
+                        for(int i : order){
+                            deliver(i);
+                        }
+                        delivered.countDown();
+                    }
+                });
+            }
+        }
+
+        void deliver(final int index){
+            final String purchaseToken = "token_" + index;
+            final AtomicInteger called = new AtomicInteger();
+            boolean owner = registry.begin(purchaseToken, new PurchaseTokenRegistry.OnTokenCompleteListener() {
+                @Override
+                public void onTokenComplete(String token, BillingResult result) {
+                    if(called.incrementAndGet() > 1){
+                        duplicates.incrementAndGet();
+                        return;
+                    }
+                    if(result.getResponseCode() == BillingClient.BillingResponseCode.OK){
+                        okResults.incrementAndGet();
+                    }
+                    results.incrementAndGet();
+                    done.countDown();
+                }
+            });
+            if(!owner){
+                return;
+            }
+
+            owners.incrementAndGet();
+            if(succeeded.get(index) > 0){
+                workedAfterSuccess.incrementAndGet(index);
+            }
+            worked.incrementAndGet(index);
+            if(failEvery < 0){
+                return;
+            }
+
+            final boolean fail = failEvery > 0 && works.incrementAndGet() % failEvery == 0;
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!fail){
+                        succeeded.incrementAndGet(index);
+                    }
+                    registry.complete(purchaseToken, BillingResult.newBuilder()
+                            .setResponseCode(fail ? BillingClient.BillingResponseCode.ERROR
+                                    : BillingClient.BillingResponseCode.OK)
+                            .build());
+                }
+            });
+        }
+
+        boolean awaitDelivered() throws InterruptedException {
+            if(!delivered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+                System.out.println("deliveries don't finish in time.");
+                return false;
+            }
+            return true;
+        }
+
+        boolean awaitResults() throws InterruptedException {
+            if(!done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+                System.out.println("callers without result: " + done.getCount());
+                return false;
+            }
+            //duplicate results would come after the last expected one
+            Thread.sleep(50);
+            return true;
+        }
+
+        int countWorkedMoreThan(int times){
+            int count = 0;
+            for(int i = 0; i < mTokens; i++){
+                if(worked.get(i) > times){
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int countWorkedAfterSuccess(){
+            int count = 0;
+            for(int i = 0; i < mTokens; i++){
+                if(workedAfterSuccess.get(i) > 0){
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * routing of purchase updates on a virtual clock,checks that:
+ * a purchase goes to the oldest flow of its sku,an update without purchases to the latest flow,
+ * purchases no flow waits for to background subscribers,a pending flow waits for its own token,
+ * an expired flow is ended and its late update goes to subscribers,
+ * and IabHelper finishes the launch metric of every flow,delivered or failed.
+ * usage: java com.tencent.imsdk.samples.PurchaseUpdateDispatcherTest
+ * exits with 1 if a scenario fails.
+ */
+public class PurchaseUpdateDispatcherTest {
+    public static final String TAG = "PurchaseUpdateDispatcherTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final long FLOW_EXPIRE_MS = 1000;
+    private static final long PENDING_FLOW_EXPIRE_MS = 10 * 1000;
+
+    private int mSeq = 0;
+
+
+    public static void main(String[] args) throws Exception {
+        //errors only,the fake fails connections on purpose
+        IabLog.setLevel(Log.ASSERT);
+
+        PurchaseUpdateDispatcherTest test = new PurchaseUpdateDispatcherTest();
+        boolean passed = test.run("routing", test.routing());
+        passed &= test.run("pending", test.pending());
+        passed &= test.run("expiry", test.expiry());
+        passed &= test.run("metrics", test.metrics());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //purchases by sku,oldest flow first,a cancel to the flow in the foreground,the rest to subscribers
+    private boolean routing(){
+        PurchaseUpdateDispatcher dispatcher = new PurchaseUpdateDispatcher(new VirtualScheduler(), FLOW_EXPIRE_MS, PENDING_FLOW_EXPIRE_MS);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        Recorder other = new Recorder();
+        Recorder latest = new Recorder();
+        Recorder subscriber = new Recorder();
+        dispatcher.addSubscriber(subscriber);
+        dispatcher.beginFlow("sku_0", first);
+        dispatcher.beginFlow("sku_0", second);
+        dispatcher.beginFlow("sku_1", other);
+        dispatcher.beginFlow("sku_2", latest);
+
+        //oldest flow of the sku first
+        dispatcher.dispatch(ok(), Collections.singletonList(purchase("sku_0", Purchase.PurchaseState.PURCHASED)));
+        boolean passed = expect("first flow", 1, first.updates.get())
+                && expect("second flow", 0, second.updates.get());
+        dispatcher.dispatch(ok(), Collections.singletonList(purchase("sku_0", Purchase.PurchaseState.PURCHASED)));
+        passed &= expect("second flow", 1, second.updates.get());
+
+        //no flow waits for sku_3
+        dispatcher.dispatch(ok(), Collections.singletonList(purchase("sku_3", Purchase.PurchaseState.PURCHASED)));
+        passed &= expect("subscriber", 1, subscriber.updates.get());
+
+        //a cancel has no sku,the flow in the foreground gets it
+        dispatcher.dispatch(result(BillingClient.BillingResponseCode.USER_CANCELED), null);
+        passed &= expect("latest flow", 1, latest.updates.get())
+                && expect("latest flow response", BillingClient.BillingResponseCode.USER_CANCELED, latest.lastResponseCode)
+                && expect("other flow", 0, other.updates.get())
+                && expect("flows", 1, dispatcher.getFlowCount());
+        return passed;
+    }
+
+
+    //a pending purchase keeps its flow for the update of the same token,a restore may settle it instead
+    private boolean pending(){
+        PurchaseUpdateDispatcher dispatcher = new PurchaseUpdateDispatcher(new VirtualScheduler(), FLOW_EXPIRE_MS, PENDING_FLOW_EXPIRE_MS);
+        Recorder flow = new Recorder();
+        Recorder newer = new Recorder();
+        EndCounter ended = new EndCounter();
+        dispatcher.beginFlow("sku_0", flow, ended);
+        Purchase pending = purchase("sku_0", Purchase.PurchaseState.PENDING);
+        dispatcher.dispatch(ok(), Collections.singletonList(pending));
+        dispatcher.beginFlow("sku_0", newer);
+
+        //paid,same token,goes to the flow waiting for it and not to the newer flow of the sku
+        Purchase paid = FakeBillingService.newPurchase("sku_0", BillingClient.SkuType.INAPP, mSeq, Purchase.PurchaseState.PURCHASED);
+        dispatcher.dispatch(ok(), Collections.singletonList(paid));
+        boolean passed = expect("pending flow updates", 2, flow.updates.get())
+                && expect("newer flow updates", 0, newer.updates.get())
+                && expect("ended without update", 0, ended.count.get());
+
+        //settled by a restore,the flow ends without a callback
+        Recorder settled = new Recorder();
+        dispatcher.beginFlow("sku_1", settled, ended);
+        Purchase pendingOther = purchase("sku_1", Purchase.PurchaseState.PENDING);
+        dispatcher.dispatch(ok(), Collections.singletonList(pendingOther));
+        dispatcher.endPendingFlow(pendingOther.getPurchaseToken());
+        passed &= expect("settled flow updates", 1, settled.updates.get())
+                && expect("flows", 1, dispatcher.getFlowCount())
+                && expect("ended after an update", 0, ended.count.get());
+        return passed;
+    }
+
+
+    //an expired flow is ended once,its late update goes to subscribers
+    private boolean expiry(){
+        VirtualScheduler clock = new VirtualScheduler();
+        PurchaseUpdateDispatcher dispatcher = new PurchaseUpdateDispatcher(clock, FLOW_EXPIRE_MS, PENDING_FLOW_EXPIRE_MS);
+        Recorder flow = new Recorder();
+        Recorder pendingFlow = new Recorder();
+        Recorder subscriber = new Recorder();
+        EndCounter ended = new EndCounter();
+        dispatcher.addSubscriber(subscriber);
+        dispatcher.beginFlow("sku_0", flow, ended);
+        dispatcher.beginFlow("sku_1", pendingFlow, ended);
+        Purchase pending = purchase("sku_1", Purchase.PurchaseState.PENDING);
+        dispatcher.dispatch(ok(), Collections.singletonList(pending));
+
+        //the launched flow expires,the pending flow waits longer
+        clock.advance(FLOW_EXPIRE_MS);
+        dispatcher.dispatch(ok(), Collections.singletonList(purchase("sku_0", Purchase.PurchaseState.PURCHASED)));
+        boolean passed = expect("expired flow updates", 0, flow.updates.get())
+                && expect("late update to subscriber", 1, subscriber.updates.get())
+                && expect("ended", 1, ended.count.get())
+                && expect("flows", 1, dispatcher.getFlowCount());
+
+        clock.advance(PENDING_FLOW_EXPIRE_MS);
+        dispatcher.dispatch(ok(), Collections.singletonList(purchase("sku_2", Purchase.PurchaseState.PURCHASED)));
+        passed &= expect("flows after pending expiry", 0, dispatcher.getFlowCount())
+                && expect("ended after pending expiry", 1, ended.count.get());
+
+        //cleared flows end too
+        dispatcher.beginFlow("sku_0", flow, ended);
+        dispatcher.clear();
+        passed &= expect("ended by clear", 2, ended.count.get());
+        return passed;
+    }
+
+
+    //the launch to update metric is finished for a delivered flow and for a flow failed before launch
+    private boolean metrics() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        ExecutorService mainExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        IabScheduler scheduler = new IabScheduler.ExecutorScheduler(timer);
+        FakeBillingService service = new FakeBillingService(scheduler, IabClock.SYSTEM);
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item");
+        HistogramIabMetrics metrics = new HistogramIabMetrics();
+        IabHelper helper = new IabHelper(service, mainExecutor, scheduler);
+        helper.setMetrics(metrics);
+        helper.setReconnectPolicy(new IabReconnectPolicy(10, 100, 1, 60 * 1000, IabClock.SYSTEM, new Random()));
+
+        BillingFlowParams params = BillingFlowParams.newBuilder()
+                .setSkuDetails(FakeBillingService.newSkuDetails("sku_0", BillingClient.SkuType.INAPP, 990000L, "item", null))
+                .build();
+        Recorder canceled = new Recorder();
+        service.setNextPurchaseOutcome(FakeBillingService.OUTCOME_USER_CANCELED);
+        helper.launchPurchaseFlow(null, params, canceled).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        boolean passed = canceled.await(1)
+                && expect("in flight after update", 0, metrics.getInFlight(IabMetrics.OP_LAUNCH_TO_UPDATE));
+
+        //no connection,the flow ends before launch with the connection result
+        helper.dispose();
+        helper = new IabHelper(service, mainExecutor, scheduler);
+        helper.setMetrics(metrics);
+        helper.setReconnectPolicy(new IabReconnectPolicy(10, 100, 1, 60 * 1000, IabClock.SYSTEM, new Random()));
+        service.failNextConnections(10, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        Recorder failed = new Recorder();
+        helper.launchPurchaseFlow(null, params, failed).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        passed &= failed.await(1)
+                && expect("in flight after failure", 0, metrics.getInFlight(IabMetrics.OP_LAUNCH_TO_UPDATE))
+                && expect("finished", 2, (int) metrics.getCount(IabMetrics.OP_LAUNCH_TO_UPDATE));
+
+        helper.dispose();
+        mainExecutor.shutdown();
+        timer.shutdown();
+        return passed;
+    }
+
+
+    //a purchase with a new token
+    private Purchase purchase(String sku, int purchaseState){
+        return FakeBillingService.newPurchase(sku, BillingClient.SkuType.INAPP, ++mSeq, purchaseState);
+    }
+
+
+    private static BillingResult ok(){
+        return result(BillingClient.BillingResponseCode.OK);
+    }
+
+
+    private static BillingResult result(int responseCode){
+        return BillingResult.newBuilder().setResponseCode(responseCode).build();
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static class Recorder implements IabHelper.OnIabPurchaseListener{
+        final AtomicInteger updates = new AtomicInteger();
+        volatile int lastResponseCode;
+
+        @Override
+        public void onPurchaseResponse(BillingResult result, List<Purchase> purchasesList) {
+            lastResponseCode = result.getResponseCode();
+            updates.incrementAndGet();
+        }
+
+        boolean await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline){
+                if(updates.get() >= count){
+                    return true;
+                }
+                Thread.sleep(5);
+            }
+            System.out.println("updates: expected " + count + ", actual " + updates.get());
+            return false;
+        }
+    }
+
+
+    private static class EndCounter implements PurchaseUpdateDispatcher.OnFlowEndedListener{
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void onFlowEnded() {
+            count.incrementAndGet();
+        }
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,427 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PurchaseVerifier and its HttpTransport against a local stub server,runs on a plain JVM without a device:
+ * batching,verdict cache,server errors not cached,keep-alive connections,shutdown,
+ * and a verifier kept by PayHelper across dispose and init.
+ * the stub answers valid for every product id except the ones starting with "bad".
+ * usage: java com.tencent.imsdk.samples.PurchaseVerifierTest
+ * exits with 1 if a scenario fails.
+ */
+public class PurchaseVerifierTest {
+    public static final String TAG = "PurchaseVerifierTest";
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final long BATCH_WINDOW_MS = 50;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mCallbackExecutor;
+    private final IabScheduler mScheduler;
+    private final StubServer mServer;
+
+
+    private PurchaseVerifierTest(StubServer server){
+        mTimer = Executors.newSingleThreadScheduledExecutor(daemon("IabTimer"));
+        mCallbackExecutor = Executors.newSingleThreadExecutor(daemon("main"));
+        mScheduler = new IabScheduler.ExecutorScheduler(mTimer);
+        mServer = server;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        IabLog.setLevel(Log.ASSERT);
+
+        StubServer server = new StubServer();
+        PurchaseVerifierTest test = new PurchaseVerifierTest(server);
+        boolean passed = test.run("batch", test.batch());
+        passed &= test.run("error", test.error());
+        passed &= test.run("keepalive", test.keepAlive());
+        passed &= test.run("shutdown", test.shutdown());
+        passed &= test.run("reinit", test.reinit());
+
+        server.stop();
+        test.mCallbackExecutor.shutdown();
+        test.mTimer.shutdown();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //tokens verified within the window go in one request,verdicts are cached afterwards
+    private boolean batch() throws Exception {
+        PurchaseVerifier verifier = newVerifier();
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        for(int i = 0; i < 20; i++){
+            purchases.add(purchase(i % 4 == 0 ? "bad_sku_" + i : "sku_" + i, "batch-" + i));
+        }
+
+        int requests = mServer.getRequestCount();
+        Map<String, Integer> verdicts = verifyAll(verifier, purchases);
+        boolean passed = expect("requests", 1, mServer.getRequestCount() - requests)
+                && expect("invalid verdicts", 5, count(verdicts, PurchaseVerifier.VERDICT_INVALID))
+                && expect("valid verdicts", 15, count(verdicts, PurchaseVerifier.VERDICT_VALID));
+
+        requests = mServer.getRequestCount();
+        verdicts = verifyAll(verifier, purchases);
+        passed &= expect("cached requests", 0, mServer.getRequestCount() - requests)
+                && expect("cached invalid verdicts", 5, count(verdicts, PurchaseVerifier.VERDICT_INVALID));
+        verifier.shutdown();
+        return passed;
+    }
+
+
+    //a server error is an error verdict,not cached,the next verify asks again
+    private boolean error() throws Exception {
+        PurchaseVerifier verifier = newVerifier();
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(purchase("sku_0", "error-0"));
+
+        mServer.failNextRequests(1);
+        int requests = mServer.getRequestCount();
+        boolean passed = expect("error verdicts", 1, count(verifyAll(verifier, purchases), PurchaseVerifier.VERDICT_ERROR))
+                && expect("valid verdicts", 1, count(verifyAll(verifier, purchases), PurchaseVerifier.VERDICT_VALID))
+                && expect("requests", 2, mServer.getRequestCount() - requests);
+        verifier.shutdown();
+        return passed;
+    }
+
+
+    //batches one after another reuse the keep-alive connections of the two network threads
+    private boolean keepAlive() throws Exception {
+        PurchaseVerifier verifier = newVerifier();
+        mServer.resetConnections();
+        for(int i = 0; i < 10; i++){
+            List<Purchase> purchases = new ArrayList<Purchase>();
+            purchases.add(purchase("sku_0", "keepalive-" + i));
+            verifyAll(verifier, purchases);
+        }
+        int connections = mServer.getConnectionCount();
+        verifier.shutdown();
+        if(connections > 2){
+            System.out.println("connections: expected at most 2, actual " + connections);
+            return false;
+        }
+        return true;
+    }
+
+
+    //a shut down verifier answers an error verdict without a request
+    private boolean shutdown() throws Exception {
+        PurchaseVerifier verifier = newVerifier();
+        verifier.shutdown();
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(purchase("sku_0", "shutdown-0"));
+
+        int requests = mServer.getRequestCount();
+        return expect("error verdicts", 1, count(verifyAll(verifier, purchases), PurchaseVerifier.VERDICT_ERROR))
+                && expect("requests", 0, mServer.getRequestCount() - requests);
+    }
+
+
+    //PayHelper keeps the verifier across dispose and init,once it is shut down nothing is acknowledged
+    private boolean reinit() throws Exception {
+        FakeBillingService service = new FakeBillingService(mScheduler, IabClock.SYSTEM);
+        service.addSku("bad_sku_0", BillingClient.SkuType.INAPP, 990000L, "bad item");
+        service.addSku("sku_0", BillingClient.SkuType.INAPP, 990000L, "item");
+        service.addSku("sku_1", BillingClient.SkuType.INAPP, 990000L, "item");
+        PurchaseVerifier verifier = newVerifier();
+        PayHelper payHelper = new PayHelper(service, mCallbackExecutor, mScheduler);
+        payHelper.setPurchaseVerifier(verifier);
+
+        File filesDir = createFilesDir();
+        payHelper.init(filesDir);
+        payHelper.dispose();
+        payHelper.init(filesDir);
+
+        String badToken = service.grantPurchase("bad_sku_0").getPurchaseToken();
+        String goodToken = service.grantPurchase("sku_0").getPurchaseToken();
+        restore(payHelper);
+        boolean passed = awaitConsumed(service, goodToken)
+                && expect("verified bad purchase", 1, mServer.hasSeen(badToken) ? 1 : 0)
+                && expect("acknowledged bad purchase", 0, service.isAcknowledged(badToken) ? 1 : 0);
+
+        //verification unavailable,fails closed
+        verifier.shutdown();
+        String lateToken = service.grantPurchase("sku_1").getPurchaseToken();
+        restore(payHelper);
+        Thread.sleep(500);
+        passed &= expect("acknowledged after shutdown", 0, service.isAcknowledged(lateToken) ? 1 : 0);
+
+        payHelper.dispose();
+        deleteDir(filesDir);
+        return passed;
+    }
+
+
+    private PurchaseVerifier newVerifier(){
+        return new PurchaseVerifier(new PurchaseVerifier.HttpTransport(mServer.getEndpoint()), mScheduler,
+                mCallbackExecutor, BATCH_WINDOW_MS, PurchaseVerifier.DEFAULT_MAX_BATCH_SIZE);
+    }
+
+
+    private void restore(final PayHelper payHelper){
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                payHelper.queryPurchases();
+            }
+        });
+    }
+
+
+    //verify every purchase at once and wait for every verdict
+    private static Map<String, Integer> verifyAll(PurchaseVerifier verifier, List<Purchase> purchases) throws InterruptedException {
+        final Map<String, Integer> verdicts = new HashMap<String, Integer>();
+        final CountDownLatch done = new CountDownLatch(purchases.size());
+        for(Purchase purchase : purchases){
+            verifier.verify(purchase, new PurchaseVerifier.OnPurchaseVerifiedListener() {
+                @Override
+                public void onPurchaseVerified(String purchaseToken, int verdict) {
+                    synchronized (verdicts){
+                        verdicts.put(purchaseToken, verdict);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        if(!done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+            System.out.println("verdicts: " + (purchases.size() - done.getCount()) + "/" + purchases.size());
+        }
+        synchronized (verdicts){
+            return new HashMap<String, Integer>(verdicts);
+        }
+    }
+
+
+    private static boolean awaitConsumed(FakeBillingService service, String purchaseToken) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!service.isConsumed(purchaseToken)){
+            if(System.currentTimeMillis() >= deadline){
+                System.out.println("consumed: " + purchaseToken + " is not consumed in time");
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+
+    private static int count(Map<String, Integer> verdicts, int verdict){
+        int count = 0;
+        for(Integer value : verdicts.values()){
+            if(value == verdict){
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static Purchase purchase(String sku, String purchaseToken) throws Exception {
+        JSONObject json = new JSONObject()
+                .put("productId", sku)
+                .put("purchaseToken", purchaseToken)
+                .put("orderId", "GPA." + purchaseToken)
+                .put("purchaseTime", System.currentTimeMillis())
+                .put("purchaseState", 0);
+        return new Purchase(json.toString(), "");
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+
+
+    private static File createFilesDir() throws IOException {
+        File dir = File.createTempFile("verifier", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+
+    private static void deleteDir(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    private static ThreadFactory daemon(final String name){
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * verification backend on 127.0.0.1,speaks the request and response json of PurchaseVerifier
+     */
+    private static class StubServer implements HttpHandler{
+        private final HttpServer mServer;
+        //guarded by this
+        private final Set<String> mSeenTokens = new HashSet<String>();
+        private final Set<Integer> mRemotePorts = new HashSet<Integer>();
+        private int mRequestCount = 0;
+        private int mFailures = 0;
+
+
+        StubServer() throws IOException {
+            mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            mServer.createContext("/verify", this);
+            mServer.start();
+        }
+
+
+        String getEndpoint(){
+            return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/verify";
+        }
+
+
+        void stop(){
+            mServer.stop(0);
+        }
+
+
+        synchronized int getRequestCount(){
+            return mRequestCount;
+        }
+
+
+        //distinct client connections since resetConnections()
+        synchronized int getConnectionCount(){
+            return mRemotePorts.size();
+        }
+
+
+        synchronized void resetConnections(){
+            mRemotePorts.clear();
+        }
+
+
+        synchronized boolean hasSeen(String purchaseToken){
+            return mSeenTokens.contains(purchaseToken);
+        }
+
+
+        //the next count requests answer http 500
+        synchronized void failNextRequests(int count){
+            mFailures += count;
+        }
+
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String request = readFully(exchange.getRequestBody());
+            boolean fail;
+            synchronized (this){
+                mRequestCount++;
+                mRemotePorts.add(exchange.getRemoteAddress().getPort());
+                fail = mFailures > 0;
+                if(fail){
+                    mFailures--;
+                }
+            }
+
+            int code = 200;
+            String response;
+            try {
+                if(fail){
+                    throw new IOException("injected failure");
+                }
+                JSONArray purchases = new JSONObject(request).getJSONArray("purchases");
+                JSONArray results = new JSONArray();
+                for(int i = 0; i < purchases.length(); i++){
+                    JSONObject purchase = purchases.getJSONObject(i);
+                    String purchaseToken = purchase.getString("purchaseToken");
+                    synchronized (this){
+                        mSeenTokens.add(purchaseToken);
+                    }
+                    results.put(new JSONObject()
+                            .put("purchaseToken", purchaseToken)
+                            .put("valid", !purchase.getString("productId").startsWith("bad")));
+                }
+                response = new JSONObject().put("results", results).toString();
+            } catch (Exception e) {
+                code = 500;
+                response = "{}";
+            }
+
+            byte[] body = response.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(code, body.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+
+
+        private static String readFully(InputStream in) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1){
+                    out.write(buffer, 0, n);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
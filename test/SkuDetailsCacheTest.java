@@ -0,0 +1,115 @@
+package com.tencent.imsdk.samples;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.SkuDetails;
+
+/**
+ * behavior checks of SkuDetailsCache on a virtual clock,checks that:
+ * an entry is fresh within ttl,served stale within the stale window and dropped after it,
+ * the least recently used entry is evicted when full,
+ * only one caller claims the refresh of a stale entry until it is put again or released.
+ * usage: java com.tencent.imsdk.samples.SkuDetailsCacheTest
+ * exits with 1 if a scenario fails.
+ */
+public class SkuDetailsCacheTest {
+    public static final String TAG = "SkuDetailsCacheTest";
+
+    private static final long TTL_MS = 1000;
+    private static final long STALE_WINDOW_MS = 5000;
+
+
+    public static void main(String[] args){
+        SkuDetailsCacheTest test = new SkuDetailsCacheTest();
+        boolean passed = test.run("ttl", test.ttl());
+        passed &= test.run("lru", test.lru());
+        passed &= test.run("revalidate", test.revalidate());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //fresh up to ttl,stale up to ttl + stale window,then a miss
+    private boolean ttl(){
+        VirtualScheduler clock = new VirtualScheduler();
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MS, STALE_WINDOW_MS, 10, clock);
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_0"));
+
+        clock.advance(TTL_MS);
+        boolean passed = expect("fresh", 1, cache.get(BillingClient.SkuType.INAPP, "sku_0") != null ? 1 : 0)
+                && expect("other type", 0, cache.get(BillingClient.SkuType.SUBS, "sku_0") != null ? 1 : 0);
+        clock.advance(1);
+        passed &= expect("stale", 1, cache.get(BillingClient.SkuType.INAPP, "sku_0") != null ? 1 : 0);
+        clock.advance(STALE_WINDOW_MS);
+        passed &= expect("expired", 0, cache.get(BillingClient.SkuType.INAPP, "sku_0") != null ? 1 : 0)
+                && expect("size", 0, cache.size())
+                && expect("hits", 1, (int) cache.getHitCount())
+                && expect("stale hits", 1, (int) cache.getStaleHitCount())
+                && expect("misses", 2, (int) cache.getMissCount());
+        return passed;
+    }
+
+
+    //a get moves the entry to the back,the eldest untouched entry goes first
+    private boolean lru(){
+        VirtualScheduler clock = new VirtualScheduler();
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MS, STALE_WINDOW_MS, 3, clock);
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_0"));
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_1"));
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_2"));
+        cache.get(BillingClient.SkuType.INAPP, "sku_0");
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_3"));
+
+        return expect("size", 3, cache.size())
+                && expect("evictions", 1, (int) cache.getEvictionCount())
+                && expect("recently used", 1, cache.get(BillingClient.SkuType.INAPP, "sku_0") != null ? 1 : 0)
+                && expect("least recently used", 0, cache.get(BillingClient.SkuType.INAPP, "sku_1") != null ? 1 : 0)
+                && expect("newest", 1, cache.get(BillingClient.SkuType.INAPP, "sku_3") != null ? 1 : 0);
+    }
+
+
+    //stale-while-revalidate,the first stale read claims the refresh,the rest are served without one
+    private boolean revalidate(){
+        VirtualScheduler clock = new VirtualScheduler();
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MS, STALE_WINDOW_MS, 10, clock);
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_0"));
+
+        boolean passed = expect("claim fresh", 0, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0)
+                && expect("claim missing", 0, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_1") ? 1 : 0);
+        clock.advance(TTL_MS + 1);
+        passed &= expect("first claim", 1, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0)
+                && expect("second claim", 0, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0)
+                && expect("served while refreshing", 1, cache.get(BillingClient.SkuType.INAPP, "sku_0") != null ? 1 : 0);
+
+        //the refresh failed,the next caller retries it
+        cache.releaseRefresh(BillingClient.SkuType.INAPP, "sku_0");
+        passed &= expect("claim after release", 1, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0);
+
+        //the refresh put it again,fresh for another ttl
+        cache.put(BillingClient.SkuType.INAPP, skuDetails("sku_0"));
+        passed &= expect("claim after put", 0, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0);
+        clock.advance(TTL_MS + 1);
+        passed &= expect("claim when stale again", 1, cache.claimRefresh(BillingClient.SkuType.INAPP, "sku_0") ? 1 : 0);
+        return passed;
+    }
+
+
+    private static SkuDetails skuDetails(String sku){
+        return FakeBillingService.newSkuDetails(sku, BillingClient.SkuType.INAPP, 990000L, sku, null);
+    }
+
+
+    private static boolean expect(String what, int expected, int actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+package com.tencent.imsdk.samples;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.Purchase;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * behavior checks of SubscriptionEngine on a virtual wall clock,checks that:
+ * renewals are whole periods from the purchase,clamped at month ends without drifting,
+ * one timer re-validates a grace after the nearest renewal and retries after a failure,
+ * a deferred replace keeps the old sku until its renewal,an immediate one drops it,
+ * a replace flow older than REPLACE_EXPIRE_MS no longer touches the old sku.
+ * usage: java com.tencent.imsdk.samples.SubscriptionEngineTest
+ * exits with 1 if a scenario fails.
+ */
+public class SubscriptionEngineTest {
+    public static final String TAG = "SubscriptionEngineTest";
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long JAN_31_2024 = utc(2024, Calendar.JANUARY, 31);
+
+    private final AtomicInteger mRevalidations = new AtomicInteger();
+    private int mSeq = 0;
+
+
+    public static void main(String[] args){
+        IabLog.setLevel(Log.ASSERT);
+
+        SubscriptionEngineTest test = new SubscriptionEngineTest();
+        boolean passed = test.run("monthend", test.monthEnd());
+        passed &= test.run("timer", test.timer());
+        passed &= test.run("deferred", test.deferred());
+        passed &= test.run("immediate", test.immediate());
+        passed &= test.run("replaceexpiry", test.replaceExpiry());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run(String scenario, boolean passed){
+        System.out.println(scenario + ": " + (passed ? "ok" : "failed"));
+        return passed;
+    }
+
+
+    //jan 31 renews on the last day of shorter months,and back on the 31st after them
+    private boolean monthEnd(){
+        long jan31of2023 = utc(2023, Calendar.JANUARY, 31);
+        long feb29of2024 = utc(2024, Calendar.FEBRUARY, 29);
+        return expect("leap february", feb29of2024, SubscriptionEngine.nextRenewal(JAN_31_2024, "P1M", JAN_31_2024))
+                && expect("march after february", utc(2024, Calendar.MARCH, 31),
+                        SubscriptionEngine.nextRenewal(JAN_31_2024, "P1M", feb29of2024))
+                && expect("february", utc(2023, Calendar.FEBRUARY, 28),
+                        SubscriptionEngine.nextRenewal(jan31of2023, "P1M", jan31of2023))
+                && expect("year from feb 29", utc(2025, Calendar.FEBRUARY, 28),
+                        SubscriptionEngine.nextRenewal(feb29of2024, "P1Y", feb29of2024))
+                && expect("week", utc(2024, Calendar.FEBRUARY, 7), SubscriptionEngine.nextRenewal(JAN_31_2024, "P1W", JAN_31_2024))
+                && expect("empty period", 0, SubscriptionEngine.nextRenewal(JAN_31_2024, "P0D", JAN_31_2024))
+                && expect("bad period", 0, SubscriptionEngine.nextRenewal(JAN_31_2024, "1 month", JAN_31_2024));
+    }
+
+
+    //re-validated once,a grace after the renewal,retried after a failure
+    private boolean timer(){
+        VirtualScheduler clock = newClock();
+        SubscriptionEngine engine = newEngine(clock);
+        clock.advance(DAY_MS);
+        engine.update(Collections.singletonList(purchase("sub_month", JAN_31_2024)));
+
+        long delay = utc(2024, Calendar.FEBRUARY, 29) - clock.now() + SubscriptionEngine.REVALIDATE_GRACE_MS;
+        boolean passed = expect("timers", 1, clock.getPendingCount(delay))
+                && expect("renewal", utc(2024, Calendar.FEBRUARY, 29), engine.get("sub_month").renewalTime);
+        clock.advance(delay - 1);
+        passed &= expect("early revalidations", 0, mRevalidations.get());
+        clock.advance(1);
+        passed &= expect("revalidations", 1, mRevalidations.get());
+
+        engine.onRevalidateFailed();
+        passed &= expect("retry timers", 1, clock.getPendingCount(SubscriptionEngine.RETRY_DELAY_MS))
+                && expect("timers", 1, clock.getPendingCount());
+        engine.shutdown();
+        return passed && expect("timers after shutdown", 0, clock.getPendingCount());
+    }
+
+
+    //the old sku stays owned until its renewal,restores keep it,then it goes
+    private boolean deferred(){
+        VirtualScheduler clock = newClock();
+        SubscriptionEngine engine = newEngine(clock);
+        Purchase old = purchase("sub_month", JAN_31_2024);
+        engine.update(Collections.singletonList(old));
+        clock.advance(DAY_MS);
+        engine.beginReplace("sub_month", "sub_year", BillingFlowParams.ProrationMode.DEFERRED);
+        Purchase replacing = purchase("sub_year", clock.now());
+        engine.onPurchaseUpdated(replacing);
+
+        boolean passed = expect("old active", 1, engine.isActive("sub_month") ? 1 : 0)
+                && expect("old auto renewing", 0, engine.get("sub_month").isAutoRenewing() ? 1 : 0)
+                && expect("new active", 1, engine.isActive("sub_year") ? 1 : 0);
+        //google play no longer returns the old sku
+        engine.update(Collections.singletonList(replacing));
+        passed &= expect("old kept by restore", 1, engine.isActive("sub_month") ? 1 : 0);
+
+        clock.advance(utc(2024, Calendar.FEBRUARY, 29) - clock.now());
+        passed &= expect("old at renewal", 0, engine.isActive("sub_month") ? 1 : 0);
+        engine.update(Collections.singletonList(replacing));
+        passed &= expect("old after renewal", 0, engine.get("sub_month") != null ? 1 : 0)
+                && expect("subscriptions", 1, engine.getAll().size());
+        engine.shutdown();
+        return passed;
+    }
+
+
+    //time prorated,the old sku leaves the index with the purchase update
+    private boolean immediate(){
+        VirtualScheduler clock = newClock();
+        SubscriptionEngine engine = newEngine(clock);
+        engine.update(Collections.singletonList(purchase("sub_month", JAN_31_2024)));
+        engine.beginReplace("sub_month", "sub_year", BillingFlowParams.ProrationMode.IMMEDIATE_WITH_TIME_PRORATION);
+        engine.onPurchaseUpdated(purchase("sub_year", clock.now()));
+
+        boolean passed = expect("old", 0, engine.get("sub_month") != null ? 1 : 0)
+                && expect("new active", 1, engine.isActive("sub_year") ? 1 : 0);
+        engine.shutdown();
+        return passed;
+    }
+
+
+    //a replace flow past REPLACE_EXPIRE_MS is dropped,a late purchase of the new sku is just a new subscription
+    private boolean replaceExpiry(){
+        VirtualScheduler clock = newClock();
+        SubscriptionEngine engine = newEngine(clock);
+        engine.update(Collections.singletonList(purchase("sub_month", JAN_31_2024)));
+        engine.beginReplace("sub_month", "sub_year", BillingFlowParams.ProrationMode.IMMEDIATE_WITH_TIME_PRORATION);
+        clock.advance(SubscriptionEngine.REPLACE_EXPIRE_MS + 1);
+        engine.onPurchaseUpdated(purchase("sub_year", clock.now()));
+
+        boolean passed = expect("old kept", 1, engine.isActive("sub_month") ? 1 : 0)
+                && expect("old auto renewing", 1, engine.get("sub_month").isAutoRenewing() ? 1 : 0)
+                && expect("subscriptions", 2, engine.getAll().size());
+        engine.shutdown();
+        return passed;
+    }
+
+
+    //virtual wall clock at the purchase time of jan 31
+    private static VirtualScheduler newClock(){
+        VirtualScheduler clock = new VirtualScheduler();
+        clock.advance(JAN_31_2024);
+        return clock;
+    }
+
+
+    private SubscriptionEngine newEngine(VirtualScheduler clock){
+        SkuDetailsCache skuDetailsCache = new SkuDetailsCache();
+        skuDetailsCache.put(BillingClient.SkuType.SUBS,
+                FakeBillingService.newSkuDetails("sub_month", BillingClient.SkuType.SUBS, 4990000L, "month", "P1M"));
+        skuDetailsCache.put(BillingClient.SkuType.SUBS,
+                FakeBillingService.newSkuDetails("sub_year", BillingClient.SkuType.SUBS, 49990000L, "year", "P1Y"));
+        mRevalidations.set(0);
+        return new SubscriptionEngine(new SubscriptionEngine.Revalidator() {
+            @Override
+            public void revalidate() {
+                mRevalidations.incrementAndGet();
+            }
+        }, skuDetailsCache, clock, clock);
+    }
+
+
+    private Purchase purchase(String sku, long purchaseTime){
+        return FakeBillingService.newPurchase(sku, BillingClient.SkuType.SUBS, ++mSeq, Purchase.PurchaseState.PURCHASED, purchaseTime);
+    }
+
+
+    private static long utc(int year, int month, int day){
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTimeInMillis();
+    }
+
+
+    private static boolean expect(String what, long expected, long actual){
+        if(expected != actual){
+            System.out.println(what + ": expected " + expected + ", actual " + actual);
+            return false;
+        }
+        return true;
+    }
+}
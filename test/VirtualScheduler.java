@@ -0,0 +1,131 @@
+package com.tencent.imsdk.samples;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * virtual clock and scheduler of the harnesses,time only moves on advance()
+ * tasks due by then run on the thread calling advance(),in due time order.
+ * tasks shorter than realDelayMs go to a real scheduler instead,so billing latency and
+ * short retries keep running while long timers like pending checks wait for advance().
+ */
+public class VirtualScheduler implements IabScheduler, IabClock {
+    public static final String TAG = "VirtualScheduler";
+
+    private final IabScheduler mRealScheduler;
+    private final long mRealDelayMs;
+
+    //guarded by this
+    private final List<Task> mTasks = new ArrayList<Task>();
+    private long mNow;
+    private long mSeq;
+
+
+    //every task waits for advance()
+    public VirtualScheduler(){
+        this(null, 0);
+    }
+
+
+    /**
+     * @param realScheduler runs tasks shorter than realDelayMs
+     * @param realDelayMs
+     */
+    public VirtualScheduler(IabScheduler realScheduler, long realDelayMs){
+        mRealScheduler = realScheduler;
+        mRealDelayMs = realDelayMs;
+    }
+
+
+    @Override
+    public synchronized long now() {
+        return mNow;
+    }
+
+
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        if(mRealScheduler != null && delayMillis < mRealDelayMs){
+            return mRealScheduler.schedule(task, delayMillis);
+        }
+
+        final Task scheduled;
+        synchronized (this){
+            scheduled = new Task(task, mNow + Math.max(0, delayMillis), delayMillis, mSeq++);
+            mTasks.add(scheduled);
+        }
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                synchronized (VirtualScheduler.this){
+                    mTasks.remove(scheduled);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * move time forward,running every task due by then,tasks scheduled meanwhile included
+     * @param millis
+     */
+    public void advance(long millis){
+        long until;
+        synchronized (this){
+            until = mNow + millis;
+        }
+
+        while (true){
+            Task next;
+            synchronized (this){
+                next = null;
+                for(Task task : mTasks){
+                    if(task.dueAt <= until && (next == null || task.dueAt < next.dueAt
+                            || (task.dueAt == next.dueAt && task.seq < next.seq))){
+                        next = task;
+                    }
+                }
+                if(next == null){
+                    mNow = until;
+                    return;
+                }
+                mTasks.remove(next);
+                mNow = Math.max(mNow, next.dueAt);
+            }
+            next.runnable.run();
+        }
+    }
+
+
+    //tasks waiting for advance()
+    public synchronized int getPendingCount(){
+        return mTasks.size();
+    }
+
+
+    //tasks waiting for advance() which were scheduled with delayMillis
+    public synchronized int getPendingCount(long delayMillis){
+        int count = 0;
+        for(Task task : mTasks){
+            if(task.delayMs == delayMillis){
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static class Task{
+        final Runnable runnable;
+        final long dueAt;
+        final long delayMs;
+        final long seq;
+
+        Task(Runnable runnable, long dueAt, long delayMs, long seq){
+            this.runnable = runnable;
+            this.dueAt = dueAt;
+            this.delayMs = delayMs;
+            this.seq = seq;
+        }
+    }
+}